@@ -0,0 +1,402 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.Configuration;
+import org.apache.ivy.core.module.descriptor.DefaultDependencyDescriptor;
+import org.apache.ivy.core.module.descriptor.DefaultModuleDescriptor;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.descriptor.License;
+import org.apache.ivy.core.module.descriptor.MDArtifact;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.module.id.ModuleRules;
+import org.apache.ivy.plugins.parser.ParserSettings;
+import org.apache.ivy.plugins.parser.xml.XmlModuleDescriptorParser;
+import org.apache.ivy.util.ChecksumHelper;
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.resource.WharfUrlResource;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a binary copy of the parsed module descriptor next to each cached ivy file, so that a new JVM does not have to
+ * parse the XML again.
+ * <p/>
+ * A binary descriptor is used only if the ivy file checksum did not change and if all the variables substituted while
+ * parsing still have the same value. Descriptors using features this format does not support (conflict managers,
+ * overrides, excludes, dependency artifacts, inheritance...) are not written and always parsed.
+ */
+class BinaryModuleDescriptorCache {
+    private static final String SUFFIX = ".wbin";
+    private static final int MAGIC = 0x5742494E;
+    private static final int VERSION = 1;
+
+    private static final Field dependencyConfsField = getField(DefaultDependencyDescriptor.class, "confs");
+    private static final Field conflictManagersField = getField(DefaultModuleDescriptor.class, "conflictManagers");
+
+    /**
+     * @param ivyFile   The cached ivy file
+     * @param settings  The settings used to check the substituted variables
+     * @param validated true if the descriptor should have been validated
+     * @return The descriptor, null if there is no valid binary descriptor for this ivy file
+     */
+    public ModuleDescriptor read(File ivyFile, ParserSettings settings, boolean validated) {
+        File binaryFile = getBinaryFile(ivyFile);
+        if (!binaryFile.exists()) {
+            return null;
+        }
+        try {
+            byte[] content = AtomicFileHelper.read(binaryFile);
+            if (content == null) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (!ChecksumHelper.computeAsString(ivyFile, "sha1").equals(in.readUTF())) {
+                Message.debug("Binary descriptor is out of date: " + binaryFile);
+                return null;
+            }
+            boolean storedValidated = in.readBoolean();
+            if (validated && !storedValidated) {
+                return null;
+            }
+            int substitutions = in.readInt();
+            for (int i = 0; i < substitutions; i++) {
+                String key = in.readUTF();
+                String value = in.readUTF();
+                // Also records the substitution in the settings monitor
+                if (!value.equals(settings.substitute(key))) {
+                    Message.debug("Binary descriptor " + binaryFile + " used a variable which changed: " + key);
+                    return null;
+                }
+            }
+            return readDescriptor(in, ivyFile);
+        } catch (IOException e) {
+            Message.debug("Could not read binary descriptor " + binaryFile + ": " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            Message.debug("Could not read binary descriptor " + binaryFile + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @param substitutes The variables substituted while parsing the ivy file, and their values
+     */
+    public void write(File ivyFile, ModuleDescriptor md, boolean validated, Map<String, String> substitutes) {
+        File binaryFile = getBinaryFile(ivyFile);
+        if (!isSupported(md)) {
+            Message.debug("Module descriptor of " + ivyFile + " cannot be stored in binary format");
+            binaryFile.delete();
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(ChecksumHelper.computeAsString(ivyFile, "sha1"));
+            out.writeBoolean(validated);
+            out.writeInt(substitutes.size());
+            for (Map.Entry<String, String> entry : substitutes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            writeDescriptor(out, md);
+            out.flush();
+            AtomicFileHelper.write(binaryFile, bytes.toByteArray());
+        } catch (IOException e) {
+            Message.debug("Could not write binary descriptor " + binaryFile + ": " + e.getMessage());
+        } catch (IllegalAccessException e) {
+            Message.debug("Could not write binary descriptor " + binaryFile + ": " + e.getMessage());
+        }
+    }
+
+    private static File getBinaryFile(File ivyFile) {
+        return new File(ivyFile.getPath() + SUFFIX);
+    }
+
+    private boolean isSupported(ModuleDescriptor md) {
+        if (!(md instanceof DefaultModuleDescriptor) || dependencyConfsField == null || conflictManagersField == null) {
+            return false;
+        }
+        try {
+            ModuleRules conflictManagers = (ModuleRules) conflictManagersField.get(md);
+            if (conflictManagers != null && !conflictManagers.getAllRules().isEmpty()) {
+                return false;
+            }
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+        if (!md.getAllDependencyDescriptorMediators().getAllRules().isEmpty() || md.getAllExcludeRules().length > 0
+                || md.getInheritedDescriptors().length > 0
+                || ((DefaultModuleDescriptor) md).getNamespace() != null) {
+            return false;
+        }
+        for (Configuration conf : md.getConfigurations()) {
+            if (conf.getSourceModule() != null || !conf.getQualifiedExtraAttributes().isEmpty()) {
+                return false;
+            }
+        }
+        for (DependencyDescriptor dd : md.getDependencies()) {
+            if (!(dd instanceof DefaultDependencyDescriptor) || dd.getAllDependencyArtifacts().length > 0
+                    || dd.getAllIncludeRules().length > 0 || dd.getAllExcludeRules().length > 0
+                    || dd.getNamespace() != null
+                    || !md.getModuleRevisionId().equals(dd.getParentRevisionId())
+                    || (dd.getSourceModule() != null && !md.getModuleRevisionId().equals(dd.getSourceModule()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeDescriptor(DataOutputStream out, ModuleDescriptor md)
+            throws IOException, IllegalAccessException {
+        writeMrid(out, md.getModuleRevisionId());
+        writeMrid(out, md.getResolvedModuleRevisionId());
+        writeString(out, md.getStatus());
+        writeDate(out, md.getPublicationDate());
+        writeDate(out, md.getResolvedPublicationDate());
+        out.writeLong(md.getLastModified());
+        out.writeBoolean(md.isDefault());
+        writeString(out, md.getDescription());
+        writeString(out, md.getHomePage());
+        out.writeBoolean(((DefaultModuleDescriptor) md).isMappingOverride());
+        License[] licenses = md.getLicenses();
+        out.writeInt(licenses.length);
+        for (License license : licenses) {
+            writeString(out, license.getName());
+            writeString(out, license.getUrl());
+        }
+        writeMap(out, md.getExtraInfo());
+        writeMap(out, md.getExtraAttributesNamespaces());
+
+        Configuration[] configurations = md.getConfigurations();
+        out.writeInt(configurations.length);
+        for (Configuration conf : configurations) {
+            out.writeUTF(conf.getName());
+            out.writeUTF(conf.getVisibility().toString());
+            writeString(out, conf.getDescription());
+            writeStrings(out, conf.getExtends());
+            out.writeBoolean(conf.isTransitive());
+            writeString(out, conf.getDeprecated());
+        }
+
+        Artifact[] artifacts = md.getAllArtifacts();
+        out.writeInt(artifacts.length);
+        for (Artifact artifact : artifacts) {
+            out.writeUTF(artifact.getName());
+            out.writeUTF(artifact.getType());
+            out.writeUTF(artifact.getExt());
+            writeString(out, artifact.getUrl() == null ? null : artifact.getUrl().toExternalForm());
+            writeMap(out, artifact.getQualifiedExtraAttributes());
+            writeStrings(out, artifact.getConfigurations());
+        }
+
+        DependencyDescriptor[] dependencies = md.getDependencies();
+        out.writeInt(dependencies.length);
+        for (DependencyDescriptor dd : dependencies) {
+            writeMrid(out, dd.getDependencyRevisionId());
+            writeMrid(out, dd.getDynamicConstraintDependencyRevisionId());
+            out.writeBoolean(dd.isForce());
+            out.writeBoolean(dd.isChanging());
+            out.writeBoolean(dd.isTransitive());
+            Map<?, ?> confs = (Map<?, ?>) dependencyConfsField.get(dd);
+            out.writeInt(confs.size());
+            for (Map.Entry<?, ?> entry : confs.entrySet()) {
+                out.writeUTF((String) entry.getKey());
+                List<?> depConfs = (List<?>) entry.getValue();
+                writeStrings(out, depConfs.toArray(new String[depConfs.size()]));
+            }
+        }
+    }
+
+    private ModuleDescriptor readDescriptor(DataInputStream in, File ivyFile) throws IOException {
+        DefaultModuleDescriptor md = new DefaultModuleDescriptor(XmlModuleDescriptorParser.getInstance(),
+                new WharfUrlResource(ivyFile.toURI().toURL()));
+        md.setModuleRevisionId(readMrid(in));
+        md.setResolvedModuleRevisionId(readMrid(in));
+        md.setStatus(readString(in));
+        md.setPublicationDate(readDate(in));
+        md.setResolvedPublicationDate(readDate(in));
+        md.setLastModified(in.readLong());
+        md.setDefault(in.readBoolean());
+        md.setDescription(readString(in));
+        md.setHomePage(readString(in));
+        md.setMappingOverride(in.readBoolean());
+        int licenses = in.readInt();
+        for (int i = 0; i < licenses; i++) {
+            md.addLicense(new License(readString(in), readString(in)));
+        }
+        for (Map.Entry<String, String> entry : readMap(in).entrySet()) {
+            md.addExtraInfo(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : readMap(in).entrySet()) {
+            md.addExtraAttributeNamespace(entry.getKey(), entry.getValue());
+        }
+
+        int configurations = in.readInt();
+        for (int i = 0; i < configurations; i++) {
+            String name = in.readUTF();
+            Configuration.Visibility visibility = Configuration.Visibility.getVisibility(in.readUTF());
+            String description = readString(in);
+            String[] extendsFrom = readStrings(in);
+            boolean transitive = in.readBoolean();
+            String deprecated = readString(in);
+            md.addConfiguration(new Configuration(name, visibility, description, extendsFrom, transitive, deprecated));
+        }
+
+        int artifacts = in.readInt();
+        for (int i = 0; i < artifacts; i++) {
+            String name = in.readUTF();
+            String type = in.readUTF();
+            String ext = in.readUTF();
+            String url = readString(in);
+            Map<String, String> extraAttributes = readMap(in);
+            MDArtifact artifact = new MDArtifact(md, name, type, ext, url == null ? null : new URL(url),
+                    extraAttributes);
+            for (String conf : readStrings(in)) {
+                artifact.addConfiguration(conf);
+                md.addArtifact(conf, artifact);
+            }
+        }
+
+        int dependencies = in.readInt();
+        for (int i = 0; i < dependencies; i++) {
+            ModuleRevisionId mrid = readMrid(in);
+            ModuleRevisionId dynamicMrid = readMrid(in);
+            boolean force = in.readBoolean();
+            boolean changing = in.readBoolean();
+            boolean transitive = in.readBoolean();
+            DefaultDependencyDescriptor dd =
+                    new DefaultDependencyDescriptor(md, mrid, dynamicMrid, force, changing, transitive);
+            int confs = in.readInt();
+            for (int j = 0; j < confs; j++) {
+                String masterConf = in.readUTF();
+                for (String depConf : readStrings(in)) {
+                    dd.addDependencyConfiguration(masterConf, depConf);
+                }
+            }
+            md.addDependency(dd);
+        }
+        return md;
+    }
+
+    private static void writeMrid(DataOutputStream out, ModuleRevisionId mrid) throws IOException {
+        out.writeBoolean(mrid != null);
+        if (mrid != null) {
+            writeString(out, mrid.getOrganisation());
+            writeString(out, mrid.getName());
+            writeString(out, mrid.getBranch());
+            writeString(out, mrid.getRevision());
+            writeMap(out, mrid.getQualifiedExtraAttributes());
+        }
+    }
+
+    private static ModuleRevisionId readMrid(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String organisation = readString(in);
+        String name = readString(in);
+        String branch = readString(in);
+        String revision = readString(in);
+        return ModuleRevisionId.newInstance(organisation, name, branch, revision, readMap(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readUTF();
+        }
+        return values;
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date == null ? Long.MIN_VALUE : date.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time == Long.MIN_VALUE ? null : new Date(time);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            out.writeUTF(String.valueOf(entry.getKey()));
+            writeString(out, (String) entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new LinkedHashMap<String, String>(size);
+        for (int i = 0; i < size; i++) {
+            map.put(in.readUTF(), readString(in));
+        }
+        return map;
+    }
+
+    private static Field getField(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            Message.debug("Binary module descriptors are not supported with this version of Ivy: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -21,51 +21,298 @@ package org.jfrog.wharf.ivy.cache;
 import org.apache.ivy.core.IvyPatternHelper;
 import org.apache.ivy.core.module.descriptor.Artifact;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.util.Message;
 import org.jfrog.wharf.ivy.lock.LockHolder;
 import org.jfrog.wharf.ivy.lock.LockHolderFactory;
 import org.jfrog.wharf.ivy.marshall.api.MrmMarshaller;
+import org.jfrog.wharf.ivy.marshall.api.StampedMrmMarshaller;
+import org.jfrog.wharf.ivy.marshall.kryo.MrmKryoStoreMarshallerImpl;
 import org.jfrog.wharf.ivy.model.ArtifactMetadata;
 import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.util.WharfUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Tomer Cohen
  */
 public class CacheMetadataHandler {
+    private static final String MEMORY_CACHE_SIZE = "wharf.metadataCacheSize";
+    private static final int DEFAULT_MEMORY_CACHE_SIZE = 1000;
+    /**
+     * Many file systems only keep the last modified time to the second, a file modified in the same second by another
+     * process may keep the same size and last modified time.
+     */
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000L;
+    /**
+     * Journals bigger than this are coalesced as soon as the metadata lock is released.
+     */
+    private static final long MAX_JOURNAL_LENGTH = 64 * 1024L;
 
     private final MrmMarshaller mrmMarshaller;
     private final File baseDir;
     private final LockHolderFactory lockFactory;
+    private final Map<String, CachedMetadata> memoryCache;
+    private final Map<String, LockedMetadata> lockedMetadata = new HashMap<String, LockedMetadata>();
+    private final Map<String, ModuleRevisionId> journaled = new HashMap<String, ModuleRevisionId>();
+    /**
+     * The lock holders only exclude other processes, these exclude the other threads of this one.
+     */
+    private final ConcurrentMap<String, ReentrantLock> threadLocks = new ConcurrentHashMap<String, ReentrantLock>();
 
     public CacheMetadataHandler(File baseDir, LockHolderFactory lockFactory, MrmMarshaller mrmMarshaller) {
+        this(baseDir, lockFactory, mrmMarshaller, Integer.getInteger(MEMORY_CACHE_SIZE, DEFAULT_MEMORY_CACHE_SIZE));
+    }
+
+    /**
+     * @param memoryCacheSize The maximum number of decoded module revision metadata kept in memory, 0 to disable
+     */
+    public CacheMetadataHandler(File baseDir, LockHolderFactory lockFactory, MrmMarshaller mrmMarshaller,
+            final int memoryCacheSize) {
         this.baseDir = baseDir;
         this.mrmMarshaller = mrmMarshaller;
         this.lockFactory = lockFactory;
+        this.memoryCache = new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest) {
+                return size() > memoryCacheSize;
+            }
+        };
     }
 
     public void saveModuleRevisionMetadata(ModuleRevisionId mrid, ModuleRevisionMetadata mrm) {
-        File wharfDataFile = getWharfDataFile(mrid);
-        mrmMarshaller.save(mrm, wharfDataFile);
+        saveModuleRevisionMetadata(getWharfDataFile(mrid), mrm);
     }
 
+    void saveModuleRevisionMetadata(File wharfDataFile, ModuleRevisionMetadata mrm) {
+        MetadataJournal journal = new MetadataJournal(wharfDataFile);
+        if (journal.exists()) {
+            // If we crash before deleting the journal, replaying it must still give this metadata
+            journal.appendSnapshot(mrm);
+        }
+        writeModuleRevisionMetadata(wharfDataFile, mrm);
+    }
+
+    /**
+     * The returned metadata can be freely modified by the caller, it is never shared with other callers.
+     */
     public ModuleRevisionMetadata getModuleRevisionMetadata(ModuleRevisionId mrid) {
+        return getModuleRevisionMetadata(getWharfDataFile(mrid));
+    }
+
+    ModuleRevisionMetadata getModuleRevisionMetadata(File wharfDataFile) {
+        LockedMetadata locked = getLockedMetadata(wharfDataFile);
+        if (locked != null && locked.loaded) {
+            return locked.mrm == null ? null : new ModuleRevisionMetadata(locked.mrm);
+        }
+        MetadataJournal journal = new MetadataJournal(wharfDataFile);
+        ModuleRevisionMetadata mrm = journal.replay(readModuleRevisionMetadata(wharfDataFile));
+        if (locked != null) {
+            // Nobody else can change the metadata until we release the lock
+            journal.truncateTornTail();
+            locked.mrm = mrm == null ? null : new ModuleRevisionMetadata(mrm);
+            locked.loaded = true;
+        }
+        return mrm;
+    }
+
+    /**
+     * Add the artifact metadata to the metadata of its module revision, if not already there. When the metadata lock
+     * is held the change is only appended to the journal of the module revision, the data file is rewritten once
+     * when the journal is coalesced.
+     */
+    public void addArtifactMetadata(ModuleRevisionId mrid, ArtifactMetadata artMd) {
         File wharfDataFile = getWharfDataFile(mrid);
-        return mrmMarshaller.getModuleRevisionMetadata(wharfDataFile);
+        LockedMetadata locked = getLockedMetadata(wharfDataFile);
+        if (locked == null) {
+            ModuleRevisionMetadata mrm = getModuleRevisionMetadata(mrid);
+            if (mrm == null) {
+                mrm = newModuleRevisionMetadata(mrid);
+            }
+            mrm.addArtifactMetadata(artMd);
+            saveModuleRevisionMetadata(mrid, mrm);
+            return;
+        }
+        getModuleRevisionMetadata(mrid);
+        MetadataJournal journal = new MetadataJournal(wharfDataFile);
+        if (locked.mrm == null) {
+            ModuleRevisionMetadata mrm = newModuleRevisionMetadata(mrid);
+            journal.appendResolved(mrm.latestResolvedRevision, mrm.latestResolvedTime);
+            locked.mrm = mrm;
+        }
+        journal.appendAddArtifact(artMd);
+        locked.mrm.addArtifactMetadata(new ArtifactMetadata(artMd));
+        journaled(wharfDataFile, mrid);
+    }
+
+    /**
+     * @return false if there are no metadata for this module revision
+     */
+    public boolean removeArtifactMetadata(ModuleRevisionId mrid, ArtifactMetadata artMd) {
+        File wharfDataFile = getWharfDataFile(mrid);
+        LockedMetadata locked = getLockedMetadata(wharfDataFile);
+        if (locked == null) {
+            ModuleRevisionMetadata mrm = getModuleRevisionMetadata(mrid);
+            if (mrm == null) {
+                return false;
+            }
+            mrm.removeArtifactMetadata(artMd);
+            saveModuleRevisionMetadata(mrid, mrm);
+            return true;
+        }
+        getModuleRevisionMetadata(mrid);
+        if (locked.mrm == null) {
+            return false;
+        }
+        new MetadataJournal(wharfDataFile).appendRemoveArtifact(artMd);
+        locked.mrm.removeArtifactMetadata(artMd);
+        journaled(wharfDataFile, mrid);
+        return true;
+    }
+
+    /**
+     * Write the journaled changes of all the module revisions in their data files.
+     */
+    public void flushJournals() {
+        Map<String, ModuleRevisionId> toFlush;
+        synchronized (lockedMetadata) {
+            toFlush = new HashMap<String, ModuleRevisionId>(journaled);
+        }
+        for (ModuleRevisionId mrid : toFlush.values()) {
+            if (!lockMetadataArtifact(mrid)) {
+                Message.error("impossible to acquire lock for " + mrid + ", its metadata journal is not coalesced");
+                continue;
+            }
+            try {
+                coalesceJournal(getWharfDataFile(mrid));
+            } finally {
+                unlockMetadataArtifact(mrid);
+            }
+        }
+    }
+
+    private void coalesceJournal(File wharfDataFile) {
+        MetadataJournal journal = new MetadataJournal(wharfDataFile);
+        if (journal.exists()) {
+            ModuleRevisionMetadata mrm = journal.replay(readModuleRevisionMetadata(wharfDataFile));
+            if (mrm != null) {
+                writeModuleRevisionMetadata(wharfDataFile, mrm);
+            } else {
+                journal.delete();
+            }
+        }
+        synchronized (lockedMetadata) {
+            journaled.remove(wharfDataFile.getPath());
+        }
+    }
+
+    private void writeModuleRevisionMetadata(File wharfDataFile, ModuleRevisionMetadata mrm) {
+        mrmMarshaller.save(mrm, wharfDataFile);
+        cache(wharfDataFile, new ModuleRevisionMetadata(mrm));
+        new MetadataJournal(wharfDataFile).delete();
+        LockedMetadata locked = getLockedMetadata(wharfDataFile);
+        if (locked != null) {
+            locked.mrm = new ModuleRevisionMetadata(mrm);
+            locked.loaded = true;
+        }
+        synchronized (lockedMetadata) {
+            journaled.remove(wharfDataFile.getPath());
+        }
+    }
+
+    private ModuleRevisionMetadata newModuleRevisionMetadata(ModuleRevisionId mrid) {
+        ModuleRevisionMetadata mrm = new ModuleRevisionMetadata();
+        mrm.latestResolvedRevision = mrid.getRevision();
+        mrm.latestResolvedTime = String.valueOf(System.currentTimeMillis());
+        return mrm;
+    }
+
+    private void journaled(File wharfDataFile, ModuleRevisionId mrid) {
+        synchronized (lockedMetadata) {
+            journaled.put(wharfDataFile.getPath(), mrid);
+        }
+    }
+
+    /**
+     * @return The metadata seen by the current thread if it owns the lock of the data file, null otherwise
+     */
+    private LockedMetadata getLockedMetadata(File wharfDataFile) {
+        ReentrantLock threadLock = threadLocks.get(wharfDataFile.getPath());
+        if (threadLock == null || !threadLock.isHeldByCurrentThread()) {
+            return null;
+        }
+        synchronized (lockedMetadata) {
+            return lockedMetadata.get(wharfDataFile.getPath());
+        }
+    }
+
+    /**
+     * @return The metadata as stored in the data file, without the journal
+     */
+    private ModuleRevisionMetadata readModuleRevisionMetadata(File wharfDataFile) {
+        String key = wharfDataFile.getPath();
+        CachedMetadata cached;
+        synchronized (memoryCache) {
+            cached = memoryCache.get(key);
+        }
+        if (cached != null) {
+            if (cached.isValid(wharfDataFile)) {
+                return new ModuleRevisionMetadata(cached.mrm);
+            }
+            synchronized (memoryCache) {
+                memoryCache.remove(key);
+            }
+        }
+        if (mrmMarshaller instanceof StampedMrmMarshaller) {
+            // The stamp must be the one of the metadata read, not of a later save
+            StampedMrmMarshaller.StampedMetadata stamped =
+                    ((StampedMrmMarshaller) mrmMarshaller).getModuleRevisionMetadataWithStamp(wharfDataFile);
+            if (stamped == null || stamped.mrm == null) {
+                return null;
+            }
+            cache(wharfDataFile, new CachedMetadata(new ModuleRevisionMetadata(stamped.mrm), stamped.stamp));
+            return stamped.mrm;
+        }
+        ModuleRevisionMetadata mrm = mrmMarshaller.getModuleRevisionMetadata(wharfDataFile);
+        if (mrm != null) {
+            cache(wharfDataFile, new ModuleRevisionMetadata(mrm));
+        }
+        return mrm;
+    }
+
+    private void cache(File wharfDataFile, ModuleRevisionMetadata mrm) {
+        cache(wharfDataFile, new CachedMetadata(mrm, wharfDataFile));
+    }
+
+    private void cache(File wharfDataFile, CachedMetadata cached) {
+        if (cached.isCacheable()) {
+            synchronized (memoryCache) {
+                memoryCache.put(wharfDataFile.getPath(), cached);
+            }
+        }
     }
 
     public ArtifactMetadata getArtifactMetadata(Artifact artifact) {
-        ArtifactMetadata toFind = new ArtifactMetadata(artifact);
+        String resolverId = ArtifactMetadata.extractResolverId(artifact);
+        if (WharfUtils.isEmptyString(resolverId)) {
+            throw new IllegalStateException("Resolver id cannot be empty");
+        }
         ModuleRevisionMetadata mrm = getModuleRevisionMetadata(artifact.getModuleRevisionId());
         if (mrm == null) {
             return null;
         }
-        for (ArtifactMetadata artMd : mrm.artifactMetadata) {
-            if (artMd.equals(toFind)) {
-                return artMd;
-            }
-        }
-        return null;
+        return mrm.findArtifactMetadata(ArtifactMetadata.getArtId(artifact), resolverId);
     }
 
     private File getWharfDataFile(ModuleRevisionId mrid) {
@@ -73,15 +320,170 @@ public class CacheMetadataHandler {
         return new File(baseDir, wharfDataFileLocation);
     }
 
+    /**
+     * @return The data files of all the module revisions having metadata in the store of the marshaller, empty if the
+     *         marshaller keeps one file per module revision
+     */
+    List<File> getStoredWharfDataFiles() {
+        List<File> files = new ArrayList<File>();
+        if (mrmMarshaller instanceof MrmKryoStoreMarshallerImpl) {
+            for (String key : ((MrmKryoStoreMarshallerImpl) mrmMarshaller).getStore().keys()) {
+                files.add(new File(baseDir, key));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return true if the file name matches the data file pattern of the marshaller
+     */
+    boolean isWharfDataFile(String fileName) {
+        String pattern = mrmMarshaller.getDataFilePattern();
+        pattern = pattern.substring(pattern.lastIndexOf('/') + 1);
+        int revision = pattern.indexOf("[revision]");
+        if (revision < 0) {
+            return fileName.equals(pattern);
+        }
+        String prefix = pattern.substring(0, revision);
+        String suffix = pattern.substring(revision + "[revision]".length());
+        return fileName.length() > prefix.length() + suffix.length() && fileName.startsWith(prefix)
+                && fileName.endsWith(suffix);
+    }
+
     // lock used to lock all metadata related information access
     public boolean lockMetadataArtifact(ModuleRevisionId mrid) {
-        return lockFactory.getOrCreateLockHolder(getWharfDataFile(mrid)).acquireLock();
+        return lockMetadataFile(getWharfDataFile(mrid));
+    }
+
+    boolean lockMetadataFile(File wharfDataFile) {
+        ReentrantLock threadLock = getThreadLock(wharfDataFile);
+        try {
+            if (!threadLock.tryLock(lockFactory.getTimeoutInMs(), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!lockFactory.getOrCreateLockHolder(wharfDataFile).acquireLock()) {
+            threadLock.unlock();
+            return false;
+        }
+        synchronized (lockedMetadata) {
+            LockedMetadata locked = lockedMetadata.get(wharfDataFile.getPath());
+            if (locked == null) {
+                locked = new LockedMetadata();
+                lockedMetadata.put(wharfDataFile.getPath(), locked);
+            }
+            locked.depth++;
+        }
+        return true;
+    }
+
+    private ReentrantLock getThreadLock(File wharfDataFile) {
+        String path = wharfDataFile.getPath();
+        ReentrantLock threadLock = threadLocks.get(path);
+        if (threadLock == null) {
+            threadLock = new ReentrantLock();
+            ReentrantLock oldThreadLock = threadLocks.putIfAbsent(path, threadLock);
+            if (oldThreadLock != null) {
+                threadLock = oldThreadLock;
+            }
+        }
+        return threadLock;
     }
 
     public void unlockMetadataArtifact(ModuleRevisionId mrid) {
-        LockHolder lockHolder = lockFactory.getLockHolder(getWharfDataFile(mrid));
-        if (lockHolder != null) {
-            lockHolder.releaseLock();
+        unlockMetadataFile(getWharfDataFile(mrid));
+    }
+
+    void unlockMetadataFile(File wharfDataFile) {
+        ReentrantLock threadLock = threadLocks.get(wharfDataFile.getPath());
+        if (threadLock == null || !threadLock.isHeldByCurrentThread()) {
+            return;
+        }
+        LockHolder lockHolder = lockFactory.getLockHolder(wharfDataFile);
+        try {
+            if (lockHolder != null) {
+                try {
+                    boolean lastRelease = false;
+                    synchronized (lockedMetadata) {
+                        LockedMetadata locked = lockedMetadata.get(wharfDataFile.getPath());
+                        if (locked != null && locked.depth == 1) {
+                            lastRelease = true;
+                        }
+                    }
+                    if (lastRelease && new MetadataJournal(wharfDataFile).length() > MAX_JOURNAL_LENGTH) {
+                        coalesceJournal(wharfDataFile);
+                    }
+                    synchronized (lockedMetadata) {
+                        LockedMetadata locked = lockedMetadata.get(wharfDataFile.getPath());
+                        if (locked != null && --locked.depth <= 0) {
+                            lockedMetadata.remove(wharfDataFile.getPath());
+                        }
+                    }
+                } finally {
+                    lockHolder.releaseLock();
+                }
+            }
+        } finally {
+            threadLock.unlock();
+        }
+    }
+
+    /**
+     * The metadata of a module revision as seen by the owner of its lock.
+     */
+    private static class LockedMetadata {
+        private int depth;
+        private boolean loaded;
+        private ModuleRevisionMetadata mrm;
+    }
+
+    /**
+     * A decoded metadata with what is needed to know if the stored one changed since.
+     */
+    private class CachedMetadata {
+        private final ModuleRevisionMetadata mrm;
+        private final long stamp;
+        private final long length;
+        private final long lastModified;
+        private final boolean trusted;
+
+        private CachedMetadata(ModuleRevisionMetadata mrm, long stamp) {
+            this.mrm = mrm;
+            this.stamp = stamp;
+            this.length = 0L;
+            this.lastModified = 0L;
+            this.trusted = true;
+        }
+
+        private CachedMetadata(ModuleRevisionMetadata mrm, File wharfDataFile) {
+            this.mrm = mrm;
+            if (mrmMarshaller instanceof StampedMrmMarshaller) {
+                this.stamp = ((StampedMrmMarshaller) mrmMarshaller).getStamp(wharfDataFile);
+                this.length = 0L;
+                this.lastModified = 0L;
+                this.trusted = true;
+            } else {
+                this.stamp = 0L;
+                this.length = wharfDataFile.length();
+                this.lastModified = wharfDataFile.lastModified();
+                // A recently modified file can be changed again by another process without its stamp changing, even
+                // when this one wrote it
+                this.trusted = lastModified + MODIFICATION_TIME_GRANULARITY < System.currentTimeMillis();
+            }
+        }
+
+        private boolean isCacheable() {
+            return mrmMarshaller instanceof StampedMrmMarshaller ? stamp != 0L : trusted && lastModified != 0L;
+        }
+
+        private boolean isValid(File wharfDataFile) {
+            if (mrmMarshaller instanceof StampedMrmMarshaller) {
+                return stamp == ((StampedMrmMarshaller) mrmMarshaller).getStamp(wharfDataFile);
+            }
+            return trusted && length == wharfDataFile.length() && lastModified == wharfDataFile.lastModified();
         }
     }
 }
@@ -0,0 +1,131 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes in the background the cache entries which were served stale. A few daemon threads run the refreshes, only
+ * one refresh is queued or running for a given key, and the refreshes which do not fit in the queue are rejected so
+ * that the caller refreshes the entry itself.
+ */
+class CacheRevalidator {
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadLocal<Boolean> revalidating = new ThreadLocal<Boolean>();
+
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ThreadPoolExecutor executor;
+
+    CacheRevalidator(final String name, int threads, int queueSize) {
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-revalidate-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return true if the refresh is scheduled or if one is already pending for this key, false if it was rejected
+     */
+    public boolean schedule(final String key, final Runnable refresh) {
+        if (!pending.add(key)) {
+            return true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    revalidating.set(Boolean.TRUE);
+                    try {
+                        refresh.run();
+                    } catch (RuntimeException e) {
+                        Message.warn("problem while revalidating " + key + ": " + e.getMessage());
+                    } finally {
+                        revalidating.remove();
+                        pending.remove(key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            Message.verbose("too many pending revalidations: " + key + " will not be revalidated in background");
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the current thread is refreshing an entry, in which case the stale entries must not be served
+     */
+    public static boolean isRevalidating() {
+        return revalidating.get() != null;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return true if all the pending refreshes are done, false if the timeout elapsed first
+     */
+    public boolean awaitPending(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty()) {
+            if (System.currentTimeMillis() >= end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting refreshes and wait for the running ones.
+     *
+     * @return true if all the refreshes are done, false if the timeout elapsed first
+     */
+    public boolean shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
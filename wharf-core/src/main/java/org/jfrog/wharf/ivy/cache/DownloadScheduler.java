@@ -0,0 +1,252 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.core.cache.CacheDownloadOptions;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
+import org.jfrog.wharf.ivy.repository.WharfArtifactResourceResolver;
+import org.jfrog.wharf.ivy.resolver.WharfResolver;
+import org.jfrog.wharf.ivy.resolver.WharfResourceDownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads batches of artifacts on a pool of daemon threads. The artifacts of a module revision are downloaded one
+ * after the other by the same thread, so that the threads of a batch do not wait on each other for the metadata lock
+ * of the module revision. The module revisions with metadata files to download go first, the queue being shared by
+ * all the batches.
+ */
+class DownloadScheduler {
+    static final int DEFAULT_MAX_DOWNLOADS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Comparator<Artifact> METADATA_FIRST = new Comparator<Artifact>() {
+        public int compare(Artifact a1, Artifact a2) {
+            return getPriority(a1) - getPriority(a2);
+        }
+    };
+
+    private final WharfCacheManager cacheManager;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    DownloadScheduler(WharfCacheManager cacheManager, int maxDownloads) {
+        this.cacheManager = cacheManager;
+        final String name = cacheManager.getName();
+        executor = new ThreadPoolExecutor(maxDownloads, maxDownloads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-download-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Download the artifacts and wait for all of them.
+     *
+     * @return The reports of all the artifacts
+     */
+    public DownloadReport download(Map<Artifact, ? extends DependencyResolver> artifacts,
+                                   CacheDownloadOptions options) {
+        Map<String, ModuleDownload> downloadsByModule = new LinkedHashMap<String, ModuleDownload>();
+        for (Map.Entry<Artifact, ? extends DependencyResolver> entry : artifacts.entrySet()) {
+            DependencyResolver resolver = entry.getValue();
+            if (!(resolver instanceof WharfResolver)) {
+                throw new IllegalArgumentException("The Wharf cache downloads only for Wharf resolvers: " + resolver);
+            }
+            String mrid = entry.getKey().getModuleRevisionId().encodeToString();
+            ModuleDownload download = downloadsByModule.get(mrid);
+            if (download == null) {
+                download = new ModuleDownload(options);
+                downloadsByModule.put(mrid, download);
+            }
+            download.add(entry.getKey(), (WharfResolver) resolver);
+        }
+        List<DownloadTask> tasks = new ArrayList<DownloadTask>();
+        for (ModuleDownload download : downloadsByModule.values()) {
+            tasks.add(new DownloadTask(download, sequence.incrementAndGet()));
+        }
+        // The first tasks go straight to the threads, they must be the most urgent ones as well
+        Collections.sort(tasks);
+        for (DownloadTask task : tasks) {
+            executor.execute(task);
+        }
+
+        DownloadReport downloadReport = new DownloadReport();
+        for (DownloadTask task : tasks) {
+            for (ArtifactDownloadReport adr : task.awaitReports().values()) {
+                downloadReport.addArtifactReport(adr);
+            }
+        }
+        return downloadReport;
+    }
+
+    /**
+     * Stop accepting downloads and wait for the running ones.
+     *
+     * @return true if all the downloads are done, false if the timeout elapsed first
+     */
+    public boolean shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The metadata files are small and needed first, the documentation is rarely needed right away.
+     */
+    static int getPriority(Artifact artifact) {
+        String type = artifact.getType();
+        String ext = artifact.getExt();
+        if (artifact.isMetadata() || "ivy".equals(type) || "pom".equals(type) || "pom".equals(ext)
+                || "xml".equals(ext)) {
+            return 0;
+        }
+        if ("source".equals(type) || "javadoc".equals(type)) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private class ModuleDownload implements Callable<Map<Artifact, ArtifactDownloadReport>> {
+        private final List<Artifact> artifacts = new ArrayList<Artifact>();
+        private final Map<Artifact, WharfResolver> resolvers = new LinkedHashMap<Artifact, WharfResolver>();
+        private final CacheDownloadOptions options;
+        private final Ivy ivy;
+
+        private ModuleDownload(CacheDownloadOptions options) {
+            this.options = options;
+            this.ivy = IvyContext.getContext().peekIvy();
+        }
+
+        private void add(Artifact artifact, WharfResolver resolver) {
+            artifacts.add(artifact);
+            resolvers.put(artifact, resolver);
+            Collections.sort(artifacts, METADATA_FIRST);
+        }
+
+        private int getPriority() {
+            return DownloadScheduler.getPriority(artifacts.get(0));
+        }
+
+        public Map<Artifact, ArtifactDownloadReport> call() {
+            IvyContext context = IvyContext.pushNewContext();
+            if (ivy != null) {
+                context.setIvy(ivy);
+            }
+            try {
+                Map<Artifact, ArtifactDownloadReport> reports = new LinkedHashMap<Artifact, ArtifactDownloadReport>();
+                for (Artifact artifact : artifacts) {
+                    WharfResolver resolver = resolvers.get(artifact);
+                    ArtifactDownloadReport adr;
+                    try {
+                        adr = cacheManager.download(artifact, new WharfArtifactResourceResolver(resolver),
+                                new WharfResourceDownloader(resolver), options);
+                    } catch (RuntimeException e) {
+                        adr = DownloadScheduler.failed(artifact, e.getMessage());
+                    }
+                    reports.put(artifact, adr);
+                }
+                return reports;
+            } finally {
+                IvyContext.popContext();
+            }
+        }
+
+        private Map<Artifact, ArtifactDownloadReport> failed(String details) {
+            Map<Artifact, ArtifactDownloadReport> reports = new LinkedHashMap<Artifact, ArtifactDownloadReport>();
+            for (Artifact artifact : artifacts) {
+                reports.put(artifact, DownloadScheduler.failed(artifact, details));
+            }
+            return reports;
+        }
+    }
+
+    private static class DownloadTask extends FutureTask<Map<Artifact, ArtifactDownloadReport>>
+            implements Comparable<DownloadTask> {
+        private final ModuleDownload download;
+        private final int priority;
+        private final long order;
+
+        private DownloadTask(ModuleDownload download, long order) {
+            super(download);
+            this.download = download;
+            this.priority = download.getPriority();
+            this.order = order;
+        }
+
+        public int compareTo(DownloadTask other) {
+            if (priority != other.priority) {
+                return priority - other.priority;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+
+        private Map<Artifact, ArtifactDownloadReport> awaitReports() {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(false);
+                return download.failed("download interrupted");
+            } catch (CancellationException e) {
+                return download.failed("download interrupted");
+            } catch (ExecutionException e) {
+                return download.failed(e.getCause().getMessage());
+            }
+        }
+    }
+
+    private static ArtifactDownloadReport failed(Artifact artifact, String details) {
+        ArtifactDownloadReport adr = new ArtifactDownloadReport(artifact);
+        adr.setDownloadStatus(DownloadStatus.FAILED);
+        adr.setDownloadDetails(details);
+        return adr;
+    }
+}
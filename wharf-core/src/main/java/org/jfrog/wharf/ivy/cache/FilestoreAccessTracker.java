@@ -0,0 +1,175 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.store.IndexedMetadataStore;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers when and how often each file of the filestore is used, keyed by its sha1, along with the artifact which
+ * last used it. The file times are not used as the filestore files carry the last modification time of the remote
+ * resource, and access times are often not maintained.
+ * <p/>
+ * The accesses are counted per {@link #ACCESS_GRANULARITY} so that the entries are not rewritten on every use.
+ */
+class FilestoreAccessTracker implements Closeable {
+    static final String STORE_FILE_NAME = ".wharf/access.store";
+    static final long ACCESS_GRANULARITY = 60 * 1000L;
+
+    private static final byte RECORD_VERSION = 1;
+
+    private final File storeFile;
+    private IndexedMetadataStore store;
+
+    FilestoreAccessTracker(File baseDir) {
+        this.storeFile = new File(baseDir, STORE_FILE_NAME);
+    }
+
+    public void recordAccess(String sha1, long size, String resolverId, String mrid, String artId) {
+        recordAccess(sha1, size, resolverId, mrid, artId, System.currentTimeMillis());
+    }
+
+    void recordAccess(String sha1, long size, String resolverId, String mrid, String artId, long time) {
+        IndexedMetadataStore store = getStore();
+        FilestoreAccess access = decode(sha1, store.get(sha1));
+        boolean newHit = true;
+        if (access == null) {
+            access = new FilestoreAccess();
+        } else if (time - access.lastAccess < ACCESS_GRANULARITY) {
+            if (access.size == size && resolverId.equals(access.resolverId) && artId.equals(access.artId)) {
+                return;
+            }
+            // another artifact sharing the same file within the same use
+            newHit = false;
+        }
+        if (newHit) {
+            access.lastAccess = time;
+            access.hits++;
+        }
+        access.size = size;
+        access.resolverId = resolverId;
+        access.mrid = mrid;
+        access.artId = artId;
+        store.put(sha1, encode(access));
+    }
+
+    /**
+     * @return The last access to this filestore file, null if it is not tracked
+     */
+    public FilestoreAccess getAccess(String sha1) {
+        return decode(sha1, getStore().get(sha1));
+    }
+
+    public List<FilestoreAccess> getAccesses() {
+        IndexedMetadataStore store = getStore();
+        List<FilestoreAccess> result = new ArrayList<FilestoreAccess>();
+        for (String sha1 : store.keys()) {
+            FilestoreAccess access = decode(sha1, store.get(sha1));
+            if (access != null) {
+                result.add(access);
+            }
+        }
+        return result;
+    }
+
+    public void removeAccess(String sha1) {
+        getStore().remove(sha1);
+    }
+
+    private static byte[] encode(FilestoreAccess access) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_VERSION);
+            out.writeLong(access.lastAccess);
+            out.writeInt(access.hits);
+            out.writeLong(access.size);
+            out.writeUTF(access.resolverId);
+            out.writeUTF(access.mrid);
+            out.writeUTF(access.artId);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static FilestoreAccess decode(String sha1, byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            if (in.readByte() != RECORD_VERSION) {
+                return null;
+            }
+            FilestoreAccess access = new FilestoreAccess();
+            access.sha1 = sha1;
+            access.lastAccess = in.readLong();
+            access.hits = in.readInt();
+            access.size = in.readLong();
+            access.resolverId = in.readUTF();
+            access.mrid = in.readUTF();
+            access.artId = in.readUTF();
+            return access;
+        } catch (IOException e) {
+            Message.debug("invalid filestore access record: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized IndexedMetadataStore getStore() {
+        if (store == null) {
+            store = IndexedMetadataStore.open(storeFile);
+        }
+        return store;
+    }
+
+    public synchronized void close() throws IOException {
+        if (store != null) {
+            WharfUtils.closeQuietly(store);
+            store = null;
+        }
+    }
+
+    /**
+     * The last access to a filestore file.
+     */
+    static class FilestoreAccess {
+        public String sha1;
+        public long lastAccess;
+        public int hits;
+        public long size;
+        public String resolverId;
+        public String mrid;
+        public String artId;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes sure a filestore file is downloaded once, even when several threads or processes need it at the same time.
+ * The threads of this JVM wait for the thread downloading the file, and a lock file makes the other processes sharing
+ * the filestore wait as well. If the download fails, the next waiting thread tries again with its own resource.
+ */
+public class FilestoreDownloads {
+    /**
+     * A process waits this long for the download of another process, then downloads the file itself.
+     */
+    static final long LOCK_TIMEOUT = 5 * 60 * 1000L;
+    private static final long LOCK_SLEEP_TIME = 100;
+    private static final String LOCK_FILE_SUFFIX = ".lck";
+
+    /**
+     * This needs to be static since the nio file lock is JVM based
+     */
+    private static final ConcurrentMap<String, FutureTask<Void>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Void>>();
+
+    public interface Download {
+        /**
+         * Download the file and move it to its filestore location.
+         */
+        void download() throws IOException;
+    }
+
+    private final File lockDir;
+
+    public FilestoreDownloads(File lockDir) {
+        this.lockDir = lockDir;
+    }
+
+    /**
+     * Run the download unless the filestore file exists, or wait for the thread already downloading it.
+     */
+    public void store(final File storageFile, final Download download) throws IOException {
+        String key = storageFile.getAbsolutePath();
+        while (!storageFile.exists()) {
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws IOException {
+                    downloadOnce(storageFile, download);
+                    return null;
+                }
+            });
+            FutureTask<Void> running = inFlight.putIfAbsent(key, task);
+            if (running == null) {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(key, task);
+                }
+                await(task);
+                return;
+            }
+            Message.verbose("waiting for another thread downloading " + storageFile.getName());
+            try {
+                await(running);
+            } catch (IOException e) {
+                Message.verbose("the other download of " + storageFile.getName() + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void downloadOnce(File storageFile, Download download) throws IOException {
+        ProcessLock lock = ProcessLock.acquire(new File(lockDir, storageFile.getName() + LOCK_FILE_SUFFIX));
+        try {
+            // Another process may have stored it while we were waiting
+            if (!storageFile.exists()) {
+                download.download();
+            }
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+        }
+    }
+
+    private static void await(FutureTask<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a download");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A lock file held while downloading. It is opened for the download only, so that a cache filled with thousands
+     * of files does not keep thousands of files open, and deleted afterwards. A process which opened the file before
+     * its deletion may then lock it along with a newcomer, and at worst both download the file.
+     */
+    private static class ProcessLock {
+        private final File lockFile;
+        private final RandomAccessFile raf;
+        private final FileLock lock;
+
+        private ProcessLock(File lockFile, RandomAccessFile raf, FileLock lock) {
+            this.lockFile = lockFile;
+            this.raf = raf;
+            this.lock = lock;
+        }
+
+        /**
+         * @return null if the lock could not be acquired in time, the caller then downloads without it
+         */
+        private static ProcessLock acquire(File lockFile) throws IOException {
+            File dir = lockFile.getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(lockFile, "rw");
+                long end = System.currentTimeMillis() + LOCK_TIMEOUT;
+                while (true) {
+                    FileLock lock = raf.getChannel().tryLock();
+                    if (lock != null) {
+                        return new ProcessLock(lockFile, raf, lock);
+                    }
+                    if (System.currentTimeMillis() >= end) {
+                        Message.warn("another process is still downloading " + lockFile.getName() +
+                                ": downloading it again");
+                        break;
+                    }
+                    Thread.sleep(LOCK_SLEEP_TIME);
+                }
+            } catch (InterruptedException e) {
+                WharfUtils.closeQuietly(raf);
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for another process downloading " +
+                        lockFile.getName());
+            } catch (IOException e) {
+                Message.verbose("could not lock " + lockFile + ": " + e.getMessage());
+            }
+            WharfUtils.closeQuietly(raf);
+            return null;
+        }
+
+        private void release() {
+            lockFile.delete();
+            try {
+                lock.release();
+            } catch (IOException e) {
+                Message.verbose("could not release " + lock + ": " + e.getMessage());
+            }
+            WharfUtils.closeQuietly(raf);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.cache.FilestoreAccessTracker.FilestoreAccess;
+import org.jfrog.wharf.ivy.checksum.Checksum;
+import org.jfrog.wharf.ivy.checksum.ChecksumType;
+import org.jfrog.wharf.ivy.lock.LockHolder;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Deletes the least valuable files of the filestore until the quotas of the cache manager are met. Only the files
+ * tracked by the {@link FilestoreAccessTracker} are considered, the pinned ones and the ones used within the last
+ * {@link #MIN_AGE} are kept.
+ * <p/>
+ * A file is evicted with the metadata locks of all the module revisions referencing it, after checking it was not used
+ * again meanwhile: their artifact metadata pointing to it are removed and their cache files linked to it, whatever the
+ * {@link org.jfrog.wharf.ivy.util.LinkMode}, are deleted, so that the artifacts are downloaded again when next used. A
+ * file is kept when one of these module revisions cannot be locked. Only one process evicts files at a time.
+ */
+class FilestoreEvictor {
+    static final String LOCK_FILE_NAME = ".wharf/filestore.evict";
+    static final long MIN_AGE = 60 * 1000L;
+
+    private static final String FILESTORE_DIR_NAME = "filestore";
+
+    public enum Policy {
+        /**
+         * Least recently used first
+         */
+        LRU(new Comparator<FilestoreAccess>() {
+            public int compare(FilestoreAccess a1, FilestoreAccess a2) {
+                return compareLongs(a1.lastAccess, a2.lastAccess);
+            }
+        }),
+        /**
+         * Least frequently used first, then least recently used
+         */
+        LFU(new Comparator<FilestoreAccess>() {
+            public int compare(FilestoreAccess a1, FilestoreAccess a2) {
+                int result = compareLongs(a1.hits, a2.hits);
+                return result != 0 ? result : compareLongs(a1.lastAccess, a2.lastAccess);
+            }
+        });
+
+        private final Comparator<FilestoreAccess> order;
+
+        Policy(Comparator<FilestoreAccess> order) {
+            this.order = order;
+        }
+
+        private static int compareLongs(long l1, long l2) {
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+    }
+
+    private final WharfCacheManager cacheManager;
+    private final FilestoreAccessTracker tracker;
+
+    FilestoreEvictor(WharfCacheManager cacheManager, FilestoreAccessTracker tracker) {
+        this.cacheManager = cacheManager;
+        this.tracker = tracker;
+    }
+
+    /**
+     * @return The number of bytes freed
+     */
+    public long evict() {
+        LockHolder lock = cacheManager.getLockFactory().getOrCreateLockHolder(
+                new File(cacheManager.getBasedir(), LOCK_FILE_NAME));
+        if (!lock.acquireLock()) {
+            Message.verbose("filestore eviction already running in another process");
+            return 0L;
+        }
+        try {
+            return doEvict();
+        } finally {
+            lock.releaseLock();
+        }
+    }
+
+    private long doEvict() {
+        long quota = cacheManager.getFilestoreQuota();
+        long total = 0L;
+        Map<String, Long> resolverTotals = new HashMap<String, Long>();
+        List<FilestoreAccess> candidates = new ArrayList<FilestoreAccess>();
+        for (FilestoreAccess access : tracker.getAccesses()) {
+            total += access.size;
+            Long resolverTotal = resolverTotals.get(access.resolverId);
+            resolverTotals.put(access.resolverId, (resolverTotal == null ? 0L : resolverTotal) + access.size);
+            if (!cacheManager.isPinned(access.resolverId, ModuleRevisionId.decode(access.mrid))) {
+                candidates.add(access);
+            }
+        }
+        Collections.sort(candidates, cacheManager.getEvictionPolicy().order);
+
+        long freed = 0L;
+        long now = System.currentTimeMillis();
+        Map<String, Set<File>> references = null;
+        for (FilestoreAccess access : candidates) {
+            long resolverQuota = cacheManager.getResolverQuota(access.resolverId);
+            boolean overResolverQuota = resolverQuota > 0 && resolverTotals.get(access.resolverId) > resolverQuota;
+            boolean overQuota = quota > 0 && total > quota;
+            if (!overQuota && !overResolverQuota) {
+                continue;
+            }
+            if (now - access.lastAccess < MIN_AGE) {
+                continue;
+            }
+            if (references == null) {
+                references = findReferences(candidates);
+            }
+            Set<File> wharfDataFiles = references.get(access.sha1);
+            if (evict(access, wharfDataFiles == null ? Collections.<File>emptySet() : wharfDataFiles)) {
+                total -= access.size;
+                resolverTotals.put(access.resolverId, resolverTotals.get(access.resolverId) - access.size);
+                freed += access.size;
+            }
+        }
+        if (freed > 0) {
+            Message.verbose("\t" + cacheManager.getName() + ": evicted " + freed + " bytes from the filestore");
+        }
+        return freed;
+    }
+
+    /**
+     * @return The data files of the module revisions referencing each candidate, sorted to always lock them in the
+     *         same order
+     */
+    private Map<String, Set<File>> findReferences(List<FilestoreAccess> candidates) {
+        Map<String, Set<File>> references = new HashMap<String, Set<File>>();
+        for (FilestoreAccess access : candidates) {
+            references.put(access.sha1, new TreeSet<File>());
+        }
+        CacheMetadataHandler metadataHandler = cacheManager.getMetadataHandler();
+        Set<File> wharfDataFiles = new HashSet<File>(metadataHandler.getStoredWharfDataFiles());
+        findWharfDataFiles(cacheManager.getBasedir(), wharfDataFiles);
+        for (File wharfDataFile : wharfDataFiles) {
+            ModuleRevisionMetadata mrm = metadataHandler.getModuleRevisionMetadata(wharfDataFile);
+            if (mrm == null) {
+                continue;
+            }
+            for (ArtifactMetadata artMd : mrm.getArtifactMetadata()) {
+                if (!WharfUtils.isEmptyString(artMd.sha1)) {
+                    Set<File> referencing = references.get(WharfUtils.getCleanChecksum(artMd.sha1));
+                    if (referencing != null) {
+                        referencing.add(wharfDataFile);
+                    }
+                }
+            }
+        }
+        return references;
+    }
+
+    private void findWharfDataFiles(File dir, Set<File> wharfDataFiles) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        CacheMetadataHandler metadataHandler = cacheManager.getMetadataHandler();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(".") || name.equals(FILESTORE_DIR_NAME)) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                findWharfDataFiles(file, wharfDataFiles);
+            } else if (metadataHandler.isWharfDataFile(name)) {
+                wharfDataFiles.add(file);
+            } else if (name.endsWith(MetadataJournal.JOURNAL_SUFFIX)) {
+                wharfDataFiles.add(new File(dir,
+                        name.substring(0, name.length() - MetadataJournal.JOURNAL_SUFFIX.length())));
+            }
+        }
+    }
+
+    private boolean evict(FilestoreAccess access, Set<File> wharfDataFiles) {
+        String sha1 = access.sha1;
+        CacheMetadataHandler metadataHandler = cacheManager.getMetadataHandler();
+        List<File> locked = new ArrayList<File>();
+        try {
+            for (File wharfDataFile : wharfDataFiles) {
+                if (!metadataHandler.lockMetadataFile(wharfDataFile)) {
+                    Message.verbose("impossible to acquire lock for " + wharfDataFile + ": not evicting " + sha1);
+                    return false;
+                }
+                locked.add(wharfDataFile);
+            }
+            FilestoreAccess current = tracker.getAccess(sha1);
+            if (current == null || current.lastAccess != access.lastAccess) {
+                // used or evicted by another process meanwhile
+                return false;
+            }
+            File storageFile = cacheManager.getStorageFile(sha1);
+            for (File wharfDataFile : wharfDataFiles) {
+                ModuleRevisionMetadata mrm = metadataHandler.getModuleRevisionMetadata(wharfDataFile);
+                if (mrm != null && removeArtifactMetadata(mrm, sha1)) {
+                    metadataHandler.saveModuleRevisionMetadata(wharfDataFile, mrm);
+                }
+                if (!deleteLinkedFiles(wharfDataFile.getParentFile(), storageFile, access)) {
+                    return false;
+                }
+            }
+            if (storageFile.exists() && !storageFile.delete()) {
+                Message.warn("could not evict " + storageFile + " from the filestore");
+                return false;
+            }
+            tracker.removeAccess(sha1);
+            Message.debug("\tevicted " + storageFile + " last used by " + ModuleRevisionId.decode(access.mrid));
+            return true;
+        } finally {
+            for (File wharfDataFile : locked) {
+                metadataHandler.unlockMetadataFile(wharfDataFile);
+            }
+        }
+    }
+
+    private static boolean removeArtifactMetadata(ModuleRevisionMetadata mrm, String sha1) {
+        boolean removed = false;
+        for (ArtifactMetadata artMd : new ArrayList<ArtifactMetadata>(mrm.getArtifactMetadata())) {
+            if (sha1.equals(WharfUtils.getCleanChecksum(artMd.sha1))) {
+                removed |= mrm.removeArtifactMetadata(artMd);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Deletes the cache files of a module linked to the storage file: the symbolic links to it, and the hard links and
+     * copies, which have its content.
+     *
+     * @return false if one of them could not be deleted
+     */
+    private boolean deleteLinkedFiles(File dir, File storageFile, FilestoreAccess access) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return true;
+        }
+        boolean deleted = true;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleted &= deleteLinkedFiles(file, storageFile, access);
+            } else if (isLinkedTo(file, storageFile, access)) {
+                if (file.delete()) {
+                    Message.debug("\tdeleted " + file + " linked to " + storageFile);
+                } else {
+                    Message.warn("could not delete " + file + " linked to " + storageFile);
+                    deleted = false;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static boolean isLinkedTo(File file, File storageFile, FilestoreAccess access) {
+        try {
+            if (file.getCanonicalFile().equals(storageFile.getCanonicalFile())) {
+                return true;
+            }
+            return file.length() == access.size && access.sha1.equals(
+                    Checksum.compute(file, EnumSet.of(ChecksumType.sha1)).get(ChecksumType.sha1));
+        } catch (IOException e) {
+            Message.debug("could not compare " + file + " to " + storageFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.lock.LockHolder;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the filestore files no longer referenced by any module revision metadata or cache file, and the temporary
+ * files left by interrupted downloads.
+ * <p/>
+ * The mark phase walks the cache directories in parallel, one task per top level directory, reading every wharfdata
+ * and following the cache files linked to the filestore. The artifact metadata of resolvers unknown to the
+ * {@link ResolverHandler} are pruned on the way. The sweep phase then deletes, one task per filestore directory, the
+ * unmarked files listed before the mark started, so that files added by concurrent resolves are never collected.
+ * <p/>
+ * Resolves can run meanwhile: only the metadata of the module revision being pruned is locked, and only one process
+ * collects garbage at a time.
+ */
+class FilestoreGarbageCollector {
+    static final String LOCK_FILE_NAME = ".wharf/filestore.gc";
+    /**
+     * Temporary files not written for this long belong to dead downloads.
+     */
+    static final long TEMP_FILE_MAX_AGE = 60 * 60 * 1000L;
+
+    private static final String TEMP_DIR_NAME = "temp";
+    private static final String FILESTORE_DIR_NAME = "filestore";
+    private static final String ATOMIC_TEMP_MARKER = ".tmp-";
+
+    private final WharfCacheManager cacheManager;
+    private final CacheMetadataHandler metadataHandler;
+    private final ResolverHandler resolverHandler;
+    private final File filestoreDir;
+    private final int parallelism;
+
+    private final Set<String> marked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> visitedDataFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong pruned = new AtomicLong();
+    private final AtomicLong freed = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private String filestorePath;
+    private long startTime;
+
+    FilestoreGarbageCollector(WharfCacheManager cacheManager, int parallelism) {
+        this.cacheManager = cacheManager;
+        this.metadataHandler = cacheManager.getMetadataHandler();
+        this.resolverHandler = cacheManager.getResolverHandler();
+        this.filestoreDir = new File(cacheManager.getBasedir(), FILESTORE_DIR_NAME);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return The number of bytes freed
+     */
+    public long collect() {
+        LockHolder lock = cacheManager.getLockFactory().getOrCreateLockHolder(
+                new File(cacheManager.getBasedir(), LOCK_FILE_NAME));
+        if (!lock.acquireLock()) {
+            Message.verbose("filestore garbage collection already running in another process");
+            return 0L;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            startTime = System.currentTimeMillis();
+            filestorePath = filestoreDir.getCanonicalPath() + File.separator;
+            List<File> filestoreDirs = listFiles(filestoreDir);
+            List<List<File>> candidates = invokeAll(executor, listTasks(filestoreDirs));
+            invokeAll(executor, markTasks());
+            invokeAll(executor, sweepTasks(filestoreDirs, candidates));
+            Message.verbose("\t" + cacheManager.getName() + ": garbage collection deleted " + deleted + " files (" +
+                    freed + " bytes) and pruned " + pruned + " artifact metadata");
+            return freed.get();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+            lock.releaseLock();
+        }
+    }
+
+    private List<Callable<List<File>>> listTasks(List<File> filestoreDirs) {
+        List<Callable<List<File>>> tasks = new ArrayList<Callable<List<File>>>();
+        for (final File dir : filestoreDirs) {
+            tasks.add(new Callable<List<File>>() {
+                public List<File> call() {
+                    return listFiles(dir);
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private List<Callable<Void>> markTasks() {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        tasks.add(new Callable<Void>() {
+            public Void call() {
+                for (File wharfDataFile : metadataHandler.getStoredWharfDataFiles()) {
+                    markDataFile(wharfDataFile);
+                }
+                return null;
+            }
+        });
+        for (final File file : listFiles(cacheManager.getBasedir())) {
+            if (file.getName().startsWith(".") || file.equals(filestoreDir)) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    mark(file);
+                    return null;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private List<Callable<Void>> sweepTasks(List<File> filestoreDirs, List<List<File>> candidates) {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < filestoreDirs.size(); i++) {
+            final File dir = filestoreDirs.get(i);
+            final List<File> files = candidates.get(i);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    if (TEMP_DIR_NAME.equals(dir.getName())) {
+                        sweepTempFiles(files);
+                    } else {
+                        sweep(files);
+                    }
+                    return null;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private void mark(File file) {
+        if (file.isDirectory()) {
+            for (File child : listFiles(file)) {
+                mark(child);
+            }
+            return;
+        }
+        String name = file.getName();
+        if (name.contains(ATOMIC_TEMP_MARKER)) {
+            deleteIfOlderThan(file, TEMP_FILE_MAX_AGE);
+        } else if (metadataHandler.isWharfDataFile(name)) {
+            markDataFile(file);
+        } else if (name.endsWith(MetadataJournal.JOURNAL_SUFFIX)) {
+            markDataFile(new File(file.getParentFile(),
+                    name.substring(0, name.length() - MetadataJournal.JOURNAL_SUFFIX.length())));
+        } else {
+            markLinkTarget(file);
+        }
+    }
+
+    private void markLinkTarget(File file) {
+        try {
+            String target = file.getCanonicalPath();
+            if (target.startsWith(filestorePath)) {
+                marked.add(new File(target).getName());
+            }
+        } catch (IOException e) {
+            Message.debug("could not follow " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void markDataFile(File wharfDataFile) {
+        if (!visitedDataFiles.add(wharfDataFile.getAbsolutePath())) {
+            return;
+        }
+        ModuleRevisionMetadata mrm = metadataHandler.getModuleRevisionMetadata(wharfDataFile);
+        if (mrm == null) {
+            return;
+        }
+        if (hasUnknownResolver(mrm)) {
+            mrm = prune(wharfDataFile);
+            if (mrm == null) {
+                return;
+            }
+        }
+        for (ArtifactMetadata artMd : mrm.getArtifactMetadata()) {
+            if (!WharfUtils.isEmptyString(artMd.sha1)) {
+                marked.add(WharfUtils.getCleanChecksum(artMd.sha1));
+            }
+        }
+    }
+
+    private boolean hasUnknownResolver(ModuleRevisionMetadata mrm) {
+        for (ArtifactMetadata artMd : mrm.getArtifactMetadata()) {
+            if (isUnknownResolver(artMd)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isUnknownResolver(ArtifactMetadata artMd) {
+        return !WharfUtils.isEmptyString(artMd.resolverId) && resolverHandler.getResolver(artMd.resolverId) == null;
+    }
+
+    /**
+     * @return The metadata without the artifacts of unknown resolvers
+     */
+    private ModuleRevisionMetadata prune(File wharfDataFile) {
+        if (!metadataHandler.lockMetadataFile(wharfDataFile)) {
+            // Keep everything it references, it will be pruned next time
+            Message.verbose("impossible to acquire lock for " + wharfDataFile + ": not pruning it");
+            return metadataHandler.getModuleRevisionMetadata(wharfDataFile);
+        }
+        try {
+            ModuleRevisionMetadata mrm = metadataHandler.getModuleRevisionMetadata(wharfDataFile);
+            if (mrm == null) {
+                return null;
+            }
+            int removed = 0;
+            for (ArtifactMetadata artMd : new ArrayList<ArtifactMetadata>(mrm.getArtifactMetadata())) {
+                if (isUnknownResolver(artMd)) {
+                    mrm.removeArtifactMetadata(artMd);
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                metadataHandler.saveModuleRevisionMetadata(wharfDataFile, mrm);
+                pruned.addAndGet(removed);
+            }
+            return mrm;
+        } finally {
+            metadataHandler.unlockMetadataFile(wharfDataFile);
+        }
+    }
+
+    private void sweep(List<File> files) {
+        FilestoreAccessTracker tracker = cacheManager.getFilestoreAccessTracker();
+        for (File file : files) {
+            String sha1 = file.getName();
+            if (marked.contains(sha1)) {
+                continue;
+            }
+            FilestoreAccessTracker.FilestoreAccess access = tracker.getAccess(sha1);
+            if (access != null && access.lastAccess >= startTime - FilestoreAccessTracker.ACCESS_GRANULARITY) {
+                // Maybe used by a resolve running since we started, uses within the granularity are not recorded
+                continue;
+            }
+            if (delete(file)) {
+                tracker.removeAccess(sha1);
+            }
+        }
+    }
+
+    private void sweepTempFiles(List<File> files) {
+        for (File file : files) {
+            deleteIfOlderThan(file, TEMP_FILE_MAX_AGE);
+        }
+    }
+
+    private void deleteIfOlderThan(File file, long age) {
+        long lastModified = file.lastModified();
+        if (lastModified != 0L && lastModified < startTime - age) {
+            delete(file);
+        }
+    }
+
+    private boolean delete(File file) {
+        long length = file.length();
+        if (!file.delete()) {
+            if (file.exists()) {
+                Message.warn("could not delete " + file);
+            }
+            return false;
+        }
+        Message.debug("\tgarbage collected " + file);
+        deleted.incrementAndGet();
+        freed.addAndGet(length);
+        return true;
+    }
+
+    private static List<File> listFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> result = new ArrayList<File>(files.length);
+        Collections.addAll(result, files);
+        return result;
+    }
+
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+        try {
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
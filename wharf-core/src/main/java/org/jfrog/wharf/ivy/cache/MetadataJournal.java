@@ -0,0 +1,339 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the changes done to the metadata of a module revision since its data file was last written.
+ * <p/>
+ * Each record is framed by its length and CRC, so a record torn by a crash is detected and ignored together with
+ * whatever follows it. Readers apply the journal on top of the data file content, the owner of the metadata lock
+ * truncates a torn journal before appending to it, then coalesces it into the data file and deletes it.
+ */
+public class MetadataJournal {
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final byte OP_ADD_ARTIFACT = 1;
+    private static final byte OP_REMOVE_ARTIFACT = 2;
+    private static final byte OP_RESOLVED = 3;
+    private static final byte OP_SNAPSHOT = 4;
+
+    private final File journalFile;
+    private long validLength = -1L;
+
+    public MetadataJournal(File wharfDataFile) {
+        this.journalFile = new File(wharfDataFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    public boolean exists() {
+        return journalFile.exists();
+    }
+
+    public long length() {
+        return journalFile.length();
+    }
+
+    public void delete() {
+        if (journalFile.exists() && !journalFile.delete()) {
+            Message.warn("Could not delete metadata journal " + journalFile.getAbsolutePath());
+        }
+    }
+
+    public void appendAddArtifact(ArtifactMetadata artMd) {
+        Record record = new Record(OP_ADD_ARTIFACT);
+        writeArtifact(record, artMd);
+        append(record);
+    }
+
+    private static void writeArtifact(Record record, ArtifactMetadata artMd) {
+        record.writeString(artMd.resolverId);
+        record.writeString(artMd.artResolverId);
+        record.writeString(artMd.id);
+        record.writeString(artMd.location);
+        record.writeBoolean(artMd.local);
+        record.writeString(artMd.md5);
+        record.writeString(artMd.sha1);
+    }
+
+    private static ArtifactMetadata readArtifact(DataInputStream in) throws IOException {
+        ArtifactMetadata artMd = new ArtifactMetadata();
+        artMd.resolverId = readString(in);
+        artMd.artResolverId = readString(in);
+        artMd.id = readString(in);
+        artMd.location = readString(in);
+        artMd.local = in.readBoolean();
+        artMd.md5 = readString(in);
+        artMd.sha1 = readString(in);
+        return artMd;
+    }
+
+    public void appendRemoveArtifact(ArtifactMetadata artMd) {
+        Record record = new Record(OP_REMOVE_ARTIFACT);
+        record.writeString(artMd.resolverId);
+        record.writeString(artMd.id);
+        append(record);
+    }
+
+    public void appendResolved(String latestResolvedRevision, String latestResolvedTime) {
+        Record record = new Record(OP_RESOLVED);
+        record.writeString(latestResolvedRevision);
+        record.writeString(latestResolvedTime);
+        append(record);
+    }
+
+    /**
+     * Record the whole metadata, replaying the journal will give this metadata whatever was recorded before.
+     */
+    public void appendSnapshot(ModuleRevisionMetadata mrm) {
+        Record record = new Record(OP_SNAPSHOT);
+        record.writeString(mrm.latestResolvedRevision);
+        record.writeString(mrm.latestResolvedTime);
+        record.writeInt(mrm.artifactMetadata.size());
+        for (ArtifactMetadata artMd : mrm.artifactMetadata) {
+            writeArtifact(record, artMd);
+        }
+        append(record);
+    }
+
+    /**
+     * Apply all the valid records of the journal to the given metadata.
+     *
+     * @param mrm The metadata read from the data file, may be null
+     * @return The metadata with the journal applied, null if there was no metadata and no journal record
+     */
+    public ModuleRevisionMetadata replay(ModuleRevisionMetadata mrm) {
+        byte[] content = readJournal();
+        if (content == null) {
+            return mrm;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        int position = 0;
+        try {
+            while (position < content.length) {
+                if (content.length - position < 8) {
+                    break;
+                }
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length <= 0 || length > content.length - position - 8 ||
+                        crc(content, position + 8, length) != crc) {
+                    break;
+                }
+                if (mrm == null) {
+                    mrm = new ModuleRevisionMetadata();
+                }
+                apply(in, mrm);
+                position += 8 + length;
+            }
+        } catch (IOException e) {
+            // Cannot happen as long as the CRC matched
+            Message.error("Error reading metadata journal " + journalFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+        if (position < content.length) {
+            Message.verbose("Ignoring the end of the torn metadata journal " + journalFile.getAbsolutePath());
+            validLength = position;
+        }
+        return mrm;
+    }
+
+    /**
+     * Remove the torn end found by the last {@link #replay(ModuleRevisionMetadata)}, otherwise the records appended
+     * after it would never be replayed. Must be called holding the metadata lock.
+     */
+    public void truncateTornTail() {
+        if (validLength < 0L) {
+            return;
+        }
+        if (validLength == 0L) {
+            delete();
+        } else {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(journalFile, "rw");
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not truncate metadata journal " + journalFile.getAbsolutePath(), e);
+            } finally {
+                WharfUtils.closeQuietly(raf);
+            }
+        }
+        validLength = -1L;
+    }
+
+    private void apply(DataInputStream in, ModuleRevisionMetadata mrm) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case OP_ADD_ARTIFACT:
+                mrm.addArtifactMetadata(readArtifact(in));
+                break;
+            case OP_REMOVE_ARTIFACT:
+                ArtifactMetadata toRemove = new ArtifactMetadata();
+                toRemove.resolverId = readString(in);
+                toRemove.id = readString(in);
+                mrm.removeArtifactMetadata(toRemove);
+                break;
+            case OP_RESOLVED:
+                mrm.latestResolvedRevision = readString(in);
+                mrm.latestResolvedTime = readString(in);
+                break;
+            case OP_SNAPSHOT:
+                mrm.latestResolvedRevision = readString(in);
+                mrm.latestResolvedTime = readString(in);
+                mrm.artifactMetadata.clear();
+                mrm.invalidateIndex();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    mrm.addArtifactMetadata(readArtifact(in));
+                }
+                break;
+            default:
+                throw new IOException("Unknown metadata journal operation " + op);
+        }
+    }
+
+    private byte[] readJournal() {
+        if (!journalFile.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(journalFile);
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) journalFile.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        } catch (IOException e) {
+            // The journal may have been coalesced and deleted meanwhile
+            Message.debug("Could not read metadata journal " + journalFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        } finally {
+            WharfUtils.closeQuietly(in);
+        }
+    }
+
+    private void append(Record record) {
+        byte[] payload = record.toByteArray();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 8);
+        DataOutputStream out = new DataOutputStream(frame);
+        FileOutputStream stream = null;
+        try {
+            out.writeInt(payload.length);
+            out.writeInt(crc(payload, 0, payload.length));
+            out.write(payload);
+            File dir = journalFile.getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            stream = new FileOutputStream(journalFile, true);
+            // Single write so that the record is either fully there or detected as torn
+            stream.write(frame.toByteArray());
+            if (AtomicFileHelper.getSyncPolicy() == AtomicFileHelper.SyncPolicy.ALWAYS) {
+                stream.getFD().sync();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write metadata journal " + journalFile.getAbsolutePath(), e);
+        } finally {
+            WharfUtils.closeQuietly(stream);
+        }
+        if (AtomicFileHelper.getSyncPolicy() == AtomicFileHelper.SyncPolicy.GROUP) {
+            AtomicFileHelper.written(journalFile);
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static class Record {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Record(byte op) {
+            try {
+                out.writeByte(op);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void writeString(String value) {
+            try {
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    out.writeUTF(value);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void writeBoolean(boolean value) {
+            try {
+                out.writeBoolean(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.jfrog.wharf.ivy.store.IndexedMetadataStore;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remembers the resources a resolver looked for and did not find, with the time they were found missing, so that they
+ * are not looked for again until this information expires. The entries are shared by all the processes using the
+ * cache.
+ */
+class MissingResourceCache implements Closeable {
+    static final String STORE_FILE_NAME = ".wharf/missing.store";
+
+    private final File storeFile;
+    private IndexedMetadataStore store;
+
+    MissingResourceCache(File baseDir) {
+        this.storeFile = new File(baseDir, STORE_FILE_NAME);
+    }
+
+    /**
+     * @return The time the resource was found missing, -1 if it is not known as missing
+     */
+    public long getMissingTime(String resolverId, String resourceKey) {
+        byte[] value = getStore().get(getKey(resolverId, resourceKey));
+        if (value == null || value.length != 8) {
+            return -1L;
+        }
+        long time = 0;
+        for (byte b : value) {
+            time = (time << 8) | (b & 0xFF);
+        }
+        return time;
+    }
+
+    public void saveMissing(String resolverId, String resourceKey, long time) {
+        byte[] value = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            value[i] = (byte) time;
+            time >>>= 8;
+        }
+        getStore().put(getKey(resolverId, resourceKey), value);
+    }
+
+    public void removeMissing(String resolverId, String resourceKey) {
+        String key = getKey(resolverId, resourceKey);
+        IndexedMetadataStore store = getStore();
+        if (store.get(key) != null) {
+            store.remove(key);
+        }
+    }
+
+    private static String getKey(String resolverId, String resourceKey) {
+        return resolverId + "/" + resourceKey;
+    }
+
+    private synchronized IndexedMetadataStore getStore() {
+        if (store == null) {
+            store = IndexedMetadataStore.open(storeFile);
+        }
+        return store;
+    }
+
+    public synchronized void close() throws IOException {
+        if (store != null) {
+            WharfUtils.closeQuietly(store);
+            store = null;
+        }
+    }
+}
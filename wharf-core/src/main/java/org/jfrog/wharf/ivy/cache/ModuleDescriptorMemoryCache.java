@@ -26,16 +26,42 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache ModuleDescriptors so that when the same module is used twice (in multi-module build for instance), it is parsed
- * only once. This cache is has a limited size, and keep the most recently used entries. The entry in the cache are
- * invalidated if there is a change to one variable used in the module descriptor.
+ * only once. This cache is bounded by the total size of the parsed ivy files (an approximation of the memory retained
+ * by their descriptors) and by a number of entries. The entry in the cache are invalidated if there is a change to one
+ * variable used in the module descriptor.
+ * <p/>
+ * Eviction follows a segmented LRU: new entries go to a probation segment and are promoted to a protected segment on
+ * their first hit, so a single pass over many descriptors used once does not flush the ones used repeatedly.
+ * <p/>
+ * This cache is thread safe.
  */
 class ModuleDescriptorMemoryCache {
+    static final long DEFAULT_MAX_WEIGHT = 32L * 1024 * 1024;
+    private static final int PROTECTED_PERCENT = 80;
 
     private final int maxSize;
-    private final LinkedHashMap/*<File,CacheEntry>*/ valueMap;
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+
+    private final LinkedHashMap<File, CacheEntry> probationEntries = new LinkedHashMap<File, CacheEntry>();
+    private final LinkedHashMap<File, CacheEntry> protectedEntries =
+            new LinkedHashMap<File, CacheEntry>(16, 0.75f, true);
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+    private final AtomicLong binaryLoadCount = new AtomicLong();
+
+    private volatile BinaryModuleDescriptorCache binaryCache;
 
 
     /**
@@ -44,8 +70,17 @@ class ModuleDescriptorMemoryCache {
      * @param size
      */
     public ModuleDescriptorMemoryCache(int size) {
+        this(size, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param size      The maximum number of entries
+     * @param maxWeight The maximum total size in bytes of the ivy files of the cached descriptors
+     */
+    public ModuleDescriptorMemoryCache(int size, long maxWeight) {
         this.maxSize = size;
-        this.valueMap = new LinkedHashMap(size);
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = maxWeight / 100 * PROTECTED_PERCENT;
     }
 
     public ModuleDescriptor get(File ivyFile, ParserSettings ivySettings, boolean validated,
@@ -53,19 +88,49 @@ class ModuleDescriptorMemoryCache {
 
         ModuleDescriptor descriptor = getFromCache(ivyFile, ivySettings, validated);
         if (descriptor == null) {
-            descriptor = getStale(ivyFile, ivySettings, validated, mdProvider);
+            BinaryModuleDescriptorCache binaryCache = this.binaryCache;
+            if (binaryCache == null) {
+                descriptor = getStale(ivyFile, ivySettings, validated, mdProvider);
+            } else {
+                ParserSettingsMonitor settingsMonitor = new ParserSettingsMonitor(ivySettings);
+                descriptor = binaryCache.read(ivyFile, settingsMonitor.getMonitoredSettings(), validated);
+                if (descriptor != null) {
+                    Message.debug("Entry is found in the binary ModuleDescriptorCache : " + ivyFile);
+                    binaryLoadCount.incrementAndGet();
+                    putInCache(ivyFile, settingsMonitor, validated, descriptor);
+                } else {
+                    settingsMonitor = new ParserSettingsMonitor(ivySettings);
+                    descriptor = provide(ivyFile, settingsMonitor, validated, mdProvider);
+                    binaryCache.write(ivyFile, descriptor, validated, settingsMonitor.getSubstitutes());
+                }
+            }
         }
         return descriptor;
     }
 
+    /**
+     * Keep a binary copy of the parsed module descriptors next to the ivy files, used when a descriptor is not in
+     * memory. Only the descriptors obtained through {@link #get} are written, as they are parsed from ivy files.
+     */
+    public void setBinaryCache(boolean useBinaryCache) {
+        binaryCache = useBinaryCache ? new BinaryModuleDescriptorCache() : null;
+    }
+
     /**
      * Get the module descriptor from the mdProvider and store it into the cache.
      */
     public ModuleDescriptor getStale(File ivyFile, ParserSettings ivySettings, boolean validated,
                                      ModuleDescriptorProvider mdProvider) throws ParseException, IOException {
-        ParserSettingsMonitor settingsMonitor = new ParserSettingsMonitor(ivySettings);
+        return provide(ivyFile, new ParserSettingsMonitor(ivySettings), validated, mdProvider);
+    }
+
+    private ModuleDescriptor provide(File ivyFile, ParserSettingsMonitor settingsMonitor, boolean validated,
+                                     ModuleDescriptorProvider mdProvider) throws ParseException, IOException {
+        long start = System.nanoTime();
         ModuleDescriptor descriptor = mdProvider.provideModule(
                 settingsMonitor.getMonitoredSettings(), ivyFile, validated);
+        totalLoadTime.addAndGet(System.nanoTime() - start);
+        loadCount.incrementAndGet();
         putInCache(ivyFile, settingsMonitor, validated, descriptor);
         return descriptor;
     }
@@ -75,22 +140,32 @@ class ModuleDescriptorMemoryCache {
             //cache is disbaled
             return null;
         }
-        CacheEntry entry = (CacheEntry) valueMap.get(ivyFile);
+        CacheEntry entry;
+        synchronized (this) {
+            entry = protectedEntries.get(ivyFile);
+            if (entry == null) {
+                entry = probationEntries.remove(ivyFile);
+                if (entry != null) {
+                    probationWeight -= entry.weight;
+                    promote(ivyFile, entry);
+                }
+            }
+        }
         if (entry != null) {
             if (entry.isStale(validated, ivySettings)) {
                 Message.debug("Entry is found in the ModuleDescriptorCache but entry should be "
                         + "reevaluated : " + ivyFile);
-                valueMap.remove(ivyFile);
+                remove(ivyFile, entry);
+                missCount.incrementAndGet();
                 return null;
             } else {
-                //Move the entry at the end of the list
-                valueMap.remove(ivyFile);
-                valueMap.put(ivyFile, entry);
                 Message.debug("Entry is found in the ModuleDescriptorCache : " + ivyFile);
+                hitCount.incrementAndGet();
                 return entry.md;
             }
         } else {
             Message.debug("No entry is found in the ModuleDescriptorCache : " + ivyFile);
+            missCount.incrementAndGet();
             return null;
         }
     }
@@ -102,13 +177,122 @@ class ModuleDescriptorMemoryCache {
             //cache is disabled
             return;
         }
-        if (valueMap.size() >= maxSize) {
-            Message.debug("ModuleDescriptorCache is full, remove one entry");
-            Iterator it = valueMap.values().iterator();
-            it.next();
+        CacheEntry entry = new CacheEntry(descriptor, validated, ivySettingsMonitor, Math.max(1L, url.length()));
+        if (entry.weight > maxWeight) {
+            Message.debug("Module descriptor too big for the ModuleDescriptorCache : " + url);
+            return;
+        }
+        synchronized (this) {
+            CacheEntry previous = probationEntries.remove(url);
+            if (previous != null) {
+                probationWeight -= previous.weight;
+            }
+            previous = protectedEntries.remove(url);
+            if (previous != null) {
+                protectedWeight -= previous.weight;
+            }
+            probationEntries.put(url, entry);
+            probationWeight += entry.weight;
+            while (probationWeight + protectedWeight > maxWeight
+                    || probationEntries.size() + protectedEntries.size() > maxSize) {
+                Message.debug("ModuleDescriptorCache is full, remove one entry");
+                if (!evictEldest(probationEntries, true) && !evictEldest(protectedEntries, false)) {
+                    break;
+                }
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private synchronized void remove(File ivyFile, CacheEntry entry) {
+        if (protectedEntries.get(ivyFile) == entry) {
+            protectedEntries.remove(ivyFile);
+            protectedWeight -= entry.weight;
+        } else if (probationEntries.get(ivyFile) == entry) {
+            probationEntries.remove(ivyFile);
+            probationWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * Move an entry to the protected segment, demoting the least recently used protected entries to the probation
+     * segment if needed. Must be called holding the cache lock.
+     */
+    private void promote(File ivyFile, CacheEntry entry) {
+        protectedEntries.put(ivyFile, entry);
+        protectedWeight += entry.weight;
+        Iterator<Map.Entry<File, CacheEntry>> it = protectedEntries.entrySet().iterator();
+        while (protectedWeight > maxProtectedWeight && protectedEntries.size() > 1) {
+            Map.Entry<File, CacheEntry> eldest = it.next();
             it.remove();
+            protectedWeight -= eldest.getValue().weight;
+            probationEntries.put(eldest.getKey(), eldest.getValue());
+            probationWeight += eldest.getValue().weight;
+        }
+    }
+
+    private boolean evictEldest(LinkedHashMap<File, CacheEntry> segment, boolean probation) {
+        if (segment.isEmpty()) {
+            return false;
         }
-        valueMap.put(url, new CacheEntry(descriptor, validated, ivySettingsMonitor));
+        Iterator<CacheEntry> it = segment.values().iterator();
+        CacheEntry eldest = it.next();
+        it.remove();
+        if (probation) {
+            probationWeight -= eldest.weight;
+        } else {
+            protectedWeight -= eldest.weight;
+        }
+        return true;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return The number of descriptors read from their binary copy instead of being parsed
+     */
+    public long getBinaryLoadCount() {
+        return binaryLoadCount.get();
+    }
+
+    /**
+     * @return The total time spent providing (parsing) module descriptors, in milliseconds
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime.get() / 1000000L;
+    }
+
+    public synchronized int size() {
+        return probationEntries.size() + protectedEntries.size();
+    }
+
+    /**
+     * @return The total size of the ivy files of the cached descriptors
+     */
+    public synchronized long getWeight() {
+        return probationWeight + protectedWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleDescriptorCache[entries=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + ", loads=" + getLoadCount() +
+                ", binaryLoads=" + getBinaryLoadCount() +
+                ", loadTime=" + getTotalLoadTime() + "ms]";
     }
 
 
@@ -116,12 +300,14 @@ class ModuleDescriptorMemoryCache {
         private final ModuleDescriptor md;
         private final boolean validated;
         private final ParserSettingsMonitor parserSettingsMonitor;
+        private final long weight;
 
         CacheEntry(ModuleDescriptor md, boolean validated,
-                   ParserSettingsMonitor parserSettingsMonitor) {
+                   ParserSettingsMonitor parserSettingsMonitor, long weight) {
             this.md = md;
             this.validated = validated;
             this.parserSettingsMonitor = parserSettingsMonitor;
+            this.weight = weight;
         }
 
         boolean isStale(boolean validated, ParserSettings newParserSettings) {
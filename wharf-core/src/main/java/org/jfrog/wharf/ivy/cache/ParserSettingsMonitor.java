@@ -45,11 +45,19 @@ class ParserSettingsMonitor {
 
     private ParserSettings delegatedSettings;
     private final Map/*<String,String>*/ substitutes;
+    /**
+     * The variables of the settings known to give the same substitutions, null if unknown
+     */
+    private volatile Fingerprint fingerprint;
 
 
     public ParserSettingsMonitor(ParserSettings settings) {
         this.delegatedSettings = settings;
         this.substitutes = new HashMap();
+        VersionedVariableContainer container = VersionedVariableContainer.of(settings);
+        if (container != null) {
+            fingerprint = new Fingerprint(container, container.getVersion());
+        }
     }
 
     /**
@@ -60,6 +68,18 @@ class ParserSettingsMonitor {
         return monitoredSettings;
     }
 
+    /**
+     * @return The variables substituted through the monitored settings, and their values
+     */
+    Map<String, String> getSubstitutes() {
+        Map<String, String> result = new HashMap<String, String>(substitutes.size());
+        for (Object o : substitutes.entrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            result.put((String) entry.getKey(), (String) entry.getValue());
+        }
+        return result;
+    }
+
     /**
      * Free the ressource used during the monitoring, keeping only the info required to evaluate hasChanged.
      */
@@ -70,9 +90,15 @@ class ParserSettingsMonitor {
 
     /**
      * Check if the newSettings is compatible with the original settings that has been monitored.  Only the info that
-     * was actually used is compared.
+     * was actually used is compared, and only if the variables of the settings changed since they were last compared.
      */
     public boolean hasChanged(ParserSettings newSettings) {
+        VersionedVariableContainer container = VersionedVariableContainer.of(newSettings);
+        long version = container == null ? 0 : container.getVersion();
+        Fingerprint known = fingerprint;
+        if (known != null && known.container == container && known.version == version) {
+            return false;
+        }
         for (Iterator it = substitutes.entrySet().iterator(); it.hasNext();) {
             Map.Entry entry = (Entry) it.next();
             String key = (String) entry.getKey();
@@ -83,9 +109,22 @@ class ParserSettingsMonitor {
                 return true;
             }
         }
+        if (container != null) {
+            fingerprint = new Fingerprint(container, version);
+        }
         return false;
     }
 
+    private static class Fingerprint {
+        private final VersionedVariableContainer container;
+        private final long version;
+
+        Fingerprint(VersionedVariableContainer container, long version) {
+            this.container = container;
+            this.version = version;
+        }
+    }
+
 
     private ParserSettings monitoredSettings = new ParserSettings() {
 
@@ -0,0 +1,144 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.model.UrlMetadata;
+import org.jfrog.wharf.ivy.resource.WharfUrlResource;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Keeps the data of the interrupted downloads, along with the validator of the resource version it belongs to, so
+ * that the next download of the same resource only requests the missing part. The partial files stay in the filestore
+ * temp area, and are cleaned up by the garbage collector with the other old temporary files.
+ */
+public class PartialDownloads {
+    /**
+     * Smaller interrupted downloads are started again from the beginning
+     */
+    static final long MIN_SIZE = 256 * 1024L;
+    private static final String PREFIX = "partial-";
+    private static final String INFO_SUFFIX = ".info";
+
+    private final File dir;
+
+    public PartialDownloads(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Move the data kept for this resource to dest, if it belongs to the current version of the resource. A partial
+     * file is taken by one download only.
+     *
+     * @return true if dest now holds the start of the resource
+     */
+    public boolean resume(WharfUrlResource resource, File dest) {
+        String id = getId(resource);
+        File partFile = new File(dir, PREFIX + id);
+        File infoFile = new File(dir, PREFIX + id + INFO_SUFFIX);
+        if (!partFile.exists()) {
+            return false;
+        }
+        Properties info = readInfo(infoFile);
+        UrlMetadata metadata = resource.getUrlMetadata();
+        if (info == null || metadata == null || !resource.getName().equals(info.getProperty("url")) ||
+                !String.valueOf(metadata.etag).equals(info.getProperty("etag")) ||
+                !String.valueOf(metadata.lastModified).equals(info.getProperty("lastModified"))) {
+            Message.verbose("discarding the partial download of " + resource + ": the resource changed");
+            partFile.delete();
+            infoFile.delete();
+            return false;
+        }
+        if (dest.exists() || !partFile.renameTo(dest)) {
+            // Taken by another download
+            return false;
+        }
+        infoFile.delete();
+        Message.verbose("resuming the download of " + resource + " after " + dest.length() + " bytes");
+        return true;
+    }
+
+    /**
+     * Keep what was downloaded of the resource to dest, if it is worth resuming.
+     */
+    public void keep(WharfUrlResource resource, File dest) {
+        UrlMetadata metadata = resource.getUrlMetadata();
+        if (metadata == null || (WharfUtils.isEmptyString(metadata.etag) && metadata.lastModified <= 0) ||
+                dest.length() < MIN_SIZE) {
+            return;
+        }
+        String id = getId(resource);
+        File partFile = new File(dir, PREFIX + id);
+        File infoFile = new File(dir, PREFIX + id + INFO_SUFFIX);
+        Properties info = new Properties();
+        info.setProperty("url", resource.getName());
+        info.setProperty("etag", String.valueOf(metadata.etag));
+        info.setProperty("lastModified", String.valueOf(metadata.lastModified));
+        try {
+            OutputStream out = new FileOutputStream(infoFile);
+            try {
+                info.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Message.verbose("could not keep the partial download of " + resource + ": " + e.getMessage());
+            infoFile.delete();
+            return;
+        }
+        partFile.delete();
+        if (dest.renameTo(partFile)) {
+            Message.verbose("kept " + partFile.length() + " bytes of " + resource + " to resume its download");
+        } else {
+            infoFile.delete();
+        }
+    }
+
+    private static String getId(WharfUrlResource resource) {
+        return WharfUtils.computeUUID(resource.getName());
+    }
+
+    private static Properties readInfo(File infoFile) {
+        if (!infoFile.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        try {
+            InputStream in = new FileInputStream(infoFile);
+            try {
+                info.load(in);
+            } finally {
+                in.close();
+            }
+            return info;
+        } catch (IOException e) {
+            Message.verbose("could not read " + infoFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -25,12 +25,26 @@ import org.jfrog.wharf.ivy.marshall.api.WharfResolverMarshaller;
 import org.jfrog.wharf.ivy.model.WharfResolverMetadata;
 
 import java.io.File;
-import java.util.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Keeps the metadata of all the resolvers ever used in this cache. This class is thread safe.
+ * <p/>
+ * New resolvers are buffered and written at once by {@link #saveCacheResolverFile()}, merged with the ones other
+ * processes wrote in the meantime. Resolvers added by other processes are read again when an unknown id is asked.
+ *
  * @author Tomer Cohen
  */
 public class ResolverHandler {
+    /**
+     * New resolvers are written at the latest when another one is registered after this delay in milliseconds
+     */
+    private static final long SAVE_DELAY = 5000L;
 
     /**
      * This is the directory where you have the right to put all of the needed files for the handler. Default is
@@ -38,21 +52,37 @@ public class ResolverHandler {
      */
     private final File baseDir;
     private final IvySettings settings;
-    private final Map<String, WharfResolverMetadata> resolvers;
-    private final Map<Integer, WharfResolverMetadata> resolverFromDependencyResolverHash;
+    private final ConcurrentMap<String, WharfResolverMetadata> resolvers;
+    /**
+     * The metadata (and so the id) of each dependency resolver instance, keyed by identity
+     */
+    private final ConcurrentMap<ResolverKey, WharfResolverMetadata> resolverFromDependencyResolver;
+    /**
+     * For each resolver id, whether it is the id of the resolver with the same name in the settings. Computed for
+     * the resolver instance currently registered with this name in the settings.
+     */
+    private final ConcurrentMap<String, ActiveResolver> activeResolvers;
     private final WharfResolverMarshaller wharfResolverMarshaller;
+    /**
+     * The resolvers not written to the resolvers file yet, guarded by this
+     */
+    private final Set<WharfResolverMetadata> pendingResolvers = new LinkedHashSet<WharfResolverMetadata>();
+    private long firstPendingTime;
+    /**
+     * The last modification time and length of the resolvers file when it was last read, guarded by this
+     */
+    private long loadedLastModified;
+    private long loadedLength;
 
     public ResolverHandler(File baseDir, IvySettings settings, WharfResolverMarshaller wharfResolverMarshaller) {
         this.baseDir = baseDir;
         this.settings = settings;
         this.wharfResolverMarshaller = wharfResolverMarshaller;
-        this.resolvers = new HashMap<String, WharfResolverMetadata>();
-        this.resolverFromDependencyResolverHash = new HashMap<Integer, WharfResolverMetadata>();
+        this.resolvers = new ConcurrentHashMap<String, WharfResolverMetadata>();
+        this.resolverFromDependencyResolver = new ConcurrentHashMap<ResolverKey, WharfResolverMetadata>();
+        this.activeResolvers = new ConcurrentHashMap<String, ActiveResolver>();
         // populate the set of resolvers from the baseDir/resolvers.json file
-        Set<WharfResolverMetadata> resolverMetadataIds = wharfResolverMarshaller.getWharfMetadatas(baseDir);
-        for (WharfResolverMetadata wharfResolverMetadata : resolverMetadataIds) {
-            resolvers.put(wharfResolverMetadata.getId(), wharfResolverMetadata);
-        }
+        reloadIfChanged();
     }
 
     /**
@@ -64,16 +94,14 @@ public class ResolverHandler {
         if (resolver == null) {
             throw new IllegalArgumentException("Cannot find null resolver");
         }
-        int hash = resolver.hashCode();
-        if (resolverFromDependencyResolverHash.containsKey(hash)) {
-            return resolverFromDependencyResolverHash.get(hash);
+        WharfResolverMetadata wharfResolverMetadata = getMetadata(resolver);
+        // Need to find if in my cache then buffer it for the json file
+        WharfResolverMetadata known = resolvers.putIfAbsent(wharfResolverMetadata.getId(), wharfResolverMetadata);
+        if (known == null) {
+            addPendingResolver(wharfResolverMetadata);
+            return wharfResolverMetadata;
         }
-        // Need to find if in my cache then save to json file and shortcut
-        WharfResolverMetadata wharfResolverMetadata = new WharfResolverMetadata(resolver);
-        resolverFromDependencyResolverHash.put(hash, wharfResolverMetadata);
-        resolvers.put(wharfResolverMetadata.getId(), wharfResolverMetadata);
-        saveCacheResolverFile();
-        return wharfResolverMetadata;
+        return known;
     }
 
     /**
@@ -84,11 +112,61 @@ public class ResolverHandler {
     }
 
     public WharfResolverMetadata getResolver(String resolverId) {
-        return resolvers.get(resolverId);
+        WharfResolverMetadata resolverMetadata = resolvers.get(resolverId);
+        if (resolverMetadata == null && reloadIfChanged()) {
+            resolverMetadata = resolvers.get(resolverId);
+        }
+        return resolverMetadata;
+    }
+
+    /**
+     * Write the new resolvers, if any, to the resolvers file.
+     */
+    public synchronized void saveCacheResolverFile() {
+        if (pendingResolvers.isEmpty()) {
+            return;
+        }
+        Set<WharfResolverMetadata> additions = new HashSet<WharfResolverMetadata>(pendingResolvers);
+        Set<WharfResolverMetadata> merged = wharfResolverMarshaller.merge(baseDir, additions);
+        pendingResolvers.clear();
+        addAll(merged);
+        rememberLoadedFile();
+    }
+
+    private synchronized void addPendingResolver(WharfResolverMetadata wharfResolverMetadata) {
+        long now = System.currentTimeMillis();
+        if (pendingResolvers.isEmpty()) {
+            firstPendingTime = now;
+        }
+        pendingResolvers.add(wharfResolverMetadata);
+        if (now - firstPendingTime >= SAVE_DELAY) {
+            saveCacheResolverFile();
+        }
+    }
+
+    /**
+     * @return true if the resolvers file changed since it was last read, and so has been read again
+     */
+    private synchronized boolean reloadIfChanged() {
+        File resolversFile = wharfResolverMarshaller.getResolversFile(baseDir);
+        if (resolversFile.lastModified() == loadedLastModified && resolversFile.length() == loadedLength) {
+            return false;
+        }
+        rememberLoadedFile();
+        addAll(wharfResolverMarshaller.getWharfMetadatas(baseDir));
+        return true;
     }
 
-    public void saveCacheResolverFile() {
-        wharfResolverMarshaller.save(baseDir, new HashSet<WharfResolverMetadata>(getAllResolvers()));
+    private void rememberLoadedFile() {
+        File resolversFile = wharfResolverMarshaller.getResolversFile(baseDir);
+        loadedLastModified = resolversFile.lastModified();
+        loadedLength = resolversFile.length();
+    }
+
+    private void addAll(Set<WharfResolverMetadata> metadatas) {
+        for (WharfResolverMetadata wharfResolverMetadata : metadatas) {
+            resolvers.putIfAbsent(wharfResolverMetadata.getId(), wharfResolverMetadata);
+        }
     }
 
     public boolean isActiveResolver(String resolverId) {
@@ -97,10 +175,61 @@ public class ResolverHandler {
             Message.error("No resolver for " + resolverId + " This cannot happen, please check cache corruption");
             return false;
         }
-        if (settings.getResolverNames().contains(resolverMetadata.name)) {
-            String currentResolverId = new WharfResolverMetadata(settings.getResolver(resolverMetadata.name)).getId();
-            return resolverId.equals(currentResolverId);
+        if (!settings.getResolverNames().contains(resolverMetadata.name)) {
+            return false;
+        }
+        DependencyResolver current = settings.getResolver(resolverMetadata.name);
+        ActiveResolver activeResolver = activeResolvers.get(resolverId);
+        if (activeResolver == null || activeResolver.resolver != current) {
+            activeResolver = new ActiveResolver(current, resolverId.equals(getMetadata(current).getId()));
+            activeResolvers.put(resolverId, activeResolver);
+        }
+        return activeResolver.active;
+    }
+
+    private WharfResolverMetadata getMetadata(DependencyResolver resolver) {
+        ResolverKey key = new ResolverKey(resolver);
+        WharfResolverMetadata wharfResolverMetadata = resolverFromDependencyResolver.get(key);
+        if (wharfResolverMetadata == null) {
+            wharfResolverMetadata = new WharfResolverMetadata(resolver);
+            // Compute the id once, outside of any lock
+            wharfResolverMetadata.getId();
+            WharfResolverMetadata previous = resolverFromDependencyResolver.putIfAbsent(key, wharfResolverMetadata);
+            if (previous != null) {
+                wharfResolverMetadata = previous;
+            }
+        }
+        return wharfResolverMetadata;
+    }
+
+    /**
+     * Identity key of a dependency resolver, whose own hashCode and equals may be anything.
+     */
+    private static class ResolverKey {
+        private final DependencyResolver resolver;
+
+        ResolverKey(DependencyResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ResolverKey && ((ResolverKey) o).resolver == resolver;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(resolver);
+        }
+    }
+
+    private static class ActiveResolver {
+        private final DependencyResolver resolver;
+        private final boolean active;
+
+        ActiveResolver(DependencyResolver resolver, boolean active) {
+            this.resolver = resolver;
+            this.active = active;
         }
-        return false;
     }
 }
@@ -0,0 +1,144 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.model.UrlMetadata;
+import org.jfrog.wharf.ivy.store.IndexedMetadataStore;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Keeps the {@link UrlMetadata} of the urls checked by the resolvers, so that the next checks, from this process or
+ * from another one using the cache, are conditional requests or no request at all.
+ */
+public class UrlMetadataCache implements Closeable {
+    static final String STORE_FILE_NAME = ".wharf/urls.store";
+    private static final int FORMAT = 1;
+
+    private final File storeFile;
+    private IndexedMetadataStore store;
+
+    public UrlMetadataCache(File baseDir) {
+        this.storeFile = new File(baseDir, STORE_FILE_NAME);
+    }
+
+    /**
+     * @return The metadata of the last response for this url, null if unknown
+     */
+    public UrlMetadata get(URL url) {
+        byte[] value = getStore().get(getKey(url));
+        if (value == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            if (in.readInt() != FORMAT) {
+                return null;
+            }
+            UrlMetadata metadata = new UrlMetadata();
+            metadata.etag = readString(in);
+            metadata.lastModified = in.readLong();
+            metadata.contentLength = in.readLong();
+            metadata.expires = in.readLong();
+            metadata.sha1 = readString(in);
+            metadata.md5 = readString(in);
+            return metadata;
+        } catch (IOException e) {
+            Message.verbose("Ignoring unreadable metadata of " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void save(URL url, UrlMetadata metadata) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT);
+            writeString(out, metadata.etag);
+            out.writeLong(metadata.lastModified);
+            out.writeLong(metadata.contentLength);
+            out.writeLong(metadata.expires);
+            writeString(out, metadata.sha1);
+            writeString(out, metadata.md5);
+            out.flush();
+        } catch (IOException e) {
+            // Impossible in memory
+            throw new IllegalStateException(e);
+        }
+        getStore().put(getKey(url), bytes.toByteArray());
+    }
+
+    public void remove(URL url) {
+        String key = getKey(url);
+        IndexedMetadataStore store = getStore();
+        if (store.get(key) != null) {
+            store.remove(key);
+        }
+    }
+
+    /**
+     * @return The url without its credentials, which are not written to the cache
+     */
+    private static String getKey(URL url) {
+        String key = url.toExternalForm();
+        String userInfo = url.getUserInfo();
+        if (userInfo != null) {
+            int start = key.indexOf(userInfo + "@");
+            if (start >= 0) {
+                key = key.substring(0, start) + key.substring(start + userInfo.length() + 1);
+            }
+        }
+        return key;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private synchronized IndexedMetadataStore getStore() {
+        if (store == null) {
+            store = IndexedMetadataStore.open(storeFile);
+        }
+        return store;
+    }
+
+    public synchronized void close() throws IOException {
+        if (store != null) {
+            WharfUtils.closeQuietly(store);
+            store = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.core.settings.IvyVariableContainer;
+import org.apache.ivy.plugins.parser.ParserSettings;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An IvyVariableContainer counting the changes made to its variables, so that settings which did not change since a
+ * module descriptor was parsed can be recognized without substituting all the variables it used again.
+ */
+class VersionedVariableContainer implements IvyVariableContainer {
+
+    private final IvyVariableContainer delegate;
+    private final AtomicLong version = new AtomicLong();
+
+    VersionedVariableContainer(IvyVariableContainer delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Make the given settings count the changes to their variables, if they don't already.
+     */
+    static void install(IvySettings settings) {
+        if (!(settings.getVariableContainer() instanceof VersionedVariableContainer)) {
+            settings.setVariableContainer(new VersionedVariableContainer(settings.getVariableContainer()));
+        }
+    }
+
+    /**
+     * @return The versioned container of the given settings, null if they don't have one
+     */
+    static VersionedVariableContainer of(ParserSettings settings) {
+        if (settings instanceof IvySettings) {
+            IvyVariableContainer container = ((IvySettings) settings).getVariableContainer();
+            if (container instanceof VersionedVariableContainer) {
+                return (VersionedVariableContainer) container;
+            }
+        }
+        return null;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public void setVariable(String varName, String value, boolean overwrite) {
+        delegate.setVariable(varName, value, overwrite);
+        version.incrementAndGet();
+    }
+
+    @Override
+    public String getVariable(String name) {
+        return delegate.getVariable(name);
+    }
+
+    @Override
+    public void setEnvironmentPrefix(String prefix) {
+        delegate.setEnvironmentPrefix(prefix);
+        version.incrementAndGet();
+    }
+
+    @Override
+    public Object clone() {
+        return new VersionedVariableContainer((IvyVariableContainer) delegate.clone());
+    }
+}
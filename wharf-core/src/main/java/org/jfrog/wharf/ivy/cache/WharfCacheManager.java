@@ -19,8 +19,13 @@
 package org.jfrog.wharf.ivy.cache;
 
 
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.IvyContext;
 import org.apache.ivy.core.IvyPatternHelper;
 import org.apache.ivy.core.cache.*;
+import org.apache.ivy.core.event.IvyEvent;
+import org.apache.ivy.core.event.IvyListener;
+import org.apache.ivy.core.event.resolve.EndResolveEvent;
 import org.apache.ivy.core.module.descriptor.Artifact;
 import org.apache.ivy.core.module.descriptor.DefaultArtifact;
 import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
@@ -28,8 +33,11 @@ import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
 import org.apache.ivy.core.module.id.ModuleRules;
 import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadReport;
 import org.apache.ivy.core.report.DownloadStatus;
 import org.apache.ivy.core.report.MetadataArtifactDownloadReport;
+import org.apache.ivy.core.resolve.ResolveData;
+import org.apache.ivy.core.resolve.ResolveOptions;
 import org.apache.ivy.core.resolve.ResolvedModuleRevision;
 import org.apache.ivy.core.settings.IvySettings;
 import org.apache.ivy.plugins.IvySettingsAware;
@@ -47,9 +55,10 @@ import org.apache.ivy.plugins.resolver.AbstractResolver;
 import org.apache.ivy.plugins.resolver.ChainResolver;
 import org.apache.ivy.plugins.resolver.DependencyResolver;
 import org.apache.ivy.plugins.resolver.util.ResolvedResource;
-import org.apache.ivy.util.ChecksumHelper;
 import org.apache.ivy.util.FileUtil;
 import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.checksum.Checksum;
+import org.jfrog.wharf.ivy.checksum.ChecksumType;
 import org.jfrog.wharf.ivy.lock.LockHolderFactory;
 import org.jfrog.wharf.ivy.lock.NioFileLockFactory;
 import org.jfrog.wharf.ivy.lock.SimpleFileLockFactory;
@@ -60,7 +69,10 @@ import org.jfrog.wharf.ivy.model.ArtifactMetadata;
 import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
 import org.jfrog.wharf.ivy.model.WharfResolverMetadata;
 import org.jfrog.wharf.ivy.repository.WharfArtifactResourceResolver;
+import org.jfrog.wharf.ivy.repository.WharfURLRepository;
 import org.jfrog.wharf.ivy.resource.WharfUrlResource;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
+import org.jfrog.wharf.ivy.util.LinkMode;
 import org.jfrog.wharf.ivy.util.WharfUtils;
 
 import java.io.Closeable;
@@ -70,8 +82,14 @@ import java.lang.reflect.Field;
 import java.net.URL;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 /**
@@ -84,7 +102,19 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
     private static final String DEFAULT_IVY_PATTERN =
             "[organisation]/[module](/[branch])/[resolverId]/ivy-[revision].xml";
 
-    private static final int DEFAULT_MEMORY_CACHE_SIZE = 150;
+    private static final int DEFAULT_MEMORY_CACHE_SIZE = 1000;
+
+    private static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 4;
+
+    /**
+     * How long closing the cache waits for the background refreshes and downloads
+     */
+    private static final long SHUTDOWN_TIMEOUT = 10 * 1000L;
+
+    /**
+     * The attribute holding the resolver name when matching the ttl rules for missing resources
+     */
+    public static final String RESOLVER_ATTRIBUTE = "resolver";
 
     private IvySettings settings;
 
@@ -106,20 +136,79 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
 
     private Long defaultTTL = null;
 
+    private ModuleRules/*<Long>*/ missingTtlRules = new ModuleRules();
+
+    private long missingTTL = 0;
+
+    private long staleTTL = 0;
+
+    private boolean staleChanging = false;
+
+    private CacheRevalidator revalidator;
+
+    private DownloadScheduler downloadScheduler;
+
+    private int maxDownloads = DownloadScheduler.DEFAULT_MAX_DOWNLOADS;
+
+    private int maxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<File, Semaphore> downloadPermits = new ConcurrentHashMap<File, Semaphore>();
+
+    /**
+     * The resolved revision last served from the cache by the current thread, which Ivy saves again on cache hits
+     */
+    private final ThreadLocal<String> servedResolvedRevision = new ThreadLocal<String>();
+
+    private MissingResourceCache missingResourceCache;
+
+    private UrlMetadataCache urlMetadataCache;
+
+    private long filestoreQuota = 0;
+
+    private final Map<String, Long> resolverQuotas = new ConcurrentHashMap<String, Long>();
+
+    private ModuleRules/*<Boolean>*/ pinRules = new ModuleRules();
+
+    private FilestoreEvictor.Policy evictionPolicy = FilestoreEvictor.Policy.LRU;
+
+    private FilestoreAccessTracker filestoreAccessTracker;
+
+    private volatile long lastEviction = 0;
+
     private ModuleDescriptorMemoryCache memoryModuleDescrCache;
 
+    private int memorySize = DEFAULT_MEMORY_CACHE_SIZE;
+
+    private long memoryWeight = ModuleDescriptorMemoryCache.DEFAULT_MAX_WEIGHT;
+
+    private boolean binaryDescriptors = false;
+
     private ResolverHandler resolverHandler;
 
     private CacheMetadataHandler metadataHandler;
 
-    private Random generator = new Random(System.currentTimeMillis());
+    private Random generator = new Random();
 
     private LockHolderFactory lockFactory;
 
+    private LinkMode linkMode;
+
+    private FilestoreDownloads filestoreDownloads;
+
+    private PartialDownloads partialDownloads;
+
     private WharfResolverMarshaller wharfResolverMarshaller;
 
     private MrmMarshaller mrmMarshaller;
 
+    private final IvyListener endResolveListener = new IvyListener() {
+        public void progress(IvyEvent event) {
+            flushMetadata();
+            evictFilestoreIfNeeded();
+        }
+    };
+
     public static WharfCacheManager newInstance(IvySettings ivySettings) {
         return newInstance(ivySettings, null, null);
     }
@@ -148,6 +237,9 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
 
     public void setSettings(IvySettings settings) {
         this.settings = settings;
+        if (settings != null) {
+            VersionedVariableContainer.install(settings);
+        }
         settingsChanged();
     }
 
@@ -174,17 +266,24 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
     }
 
     private void settingsChanged() {
+        flushMetadata();
         if (lockFactory != null) {
             WharfUtils.closeQuietly(lockFactory);
         }
+        closeMrmMarshaller();
+        closeMissingResourceCache();
+        closeUrlMetadataCache();
+        closeFilestoreAccessTracker();
         lockFactory = null;
         mrmMarshaller = null;
         wharfResolverMarshaller = null;
         metadataHandler = null;
         resolverHandler = null;
+        filestoreDownloads = null;
+        partialDownloads = null;
     }
 
-    public LockHolderFactory getLockFactory() {
+    public synchronized LockHolderFactory getLockFactory() {
         if (lockFactory == null) {
             String lockHolderFactoryName = getSettings().getVariable(LockHolderFactory.class.getName());
             if (lockHolderFactoryName != null && lockHolderFactoryName.length() > 0) {
@@ -208,6 +307,22 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         return lockFactory;
     }
 
+    public synchronized LinkMode getLinkMode() {
+        if (linkMode == null) {
+            String linkModeName = getSettings().getVariable(LinkMode.class.getName());
+            linkMode = linkModeName == null || linkModeName.length() == 0 ? LinkMode.SYMLINK :
+                    LinkMode.valueOf(linkModeName.toUpperCase(Locale.US));
+        }
+        return linkMode;
+    }
+
+    /**
+     * @param linkMode How the cache files are linked to the filestore: hardlink, symlink or copy
+     */
+    public void setLinkMode(String linkMode) {
+        this.linkMode = LinkMode.valueOf(linkMode.toUpperCase(Locale.US));
+    }
+
     public void setLockFactory(LockHolderFactory lockFactory) {
         if (this.lockFactory != null) {
             WharfUtils.closeQuietly(this.lockFactory);
@@ -215,18 +330,227 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         this.lockFactory = lockFactory;
     }
 
-    public MrmMarshaller getMrmMarshaller() {
+    public synchronized MrmMarshaller getMrmMarshaller() {
         if (mrmMarshaller == null) {
-            mrmMarshaller = MarshallerFactory.createMetadataMarshaller(getLockFactory());
+            mrmMarshaller = MarshallerFactory.createMetadataMarshaller(getBasedir(), getLockFactory());
         }
         return mrmMarshaller;
     }
 
+    private void closeMrmMarshaller() {
+        if (mrmMarshaller instanceof Closeable) {
+            WharfUtils.closeQuietly((Closeable) mrmMarshaller);
+        }
+    }
+
+    private synchronized MissingResourceCache getMissingResourceCache() {
+        if (missingResourceCache == null) {
+            missingResourceCache = new MissingResourceCache(getBasedir());
+        }
+        return missingResourceCache;
+    }
+
+    private synchronized void closeMissingResourceCache() {
+        WharfUtils.closeQuietly(missingResourceCache);
+        missingResourceCache = null;
+    }
+
+    /**
+     * @return The validators and freshness of the urls checked by the resolvers using this cache
+     */
+    public synchronized UrlMetadataCache getUrlMetadataCache() {
+        if (urlMetadataCache == null) {
+            urlMetadataCache = new UrlMetadataCache(getBasedir());
+        }
+        return urlMetadataCache;
+    }
+
+    private synchronized void closeUrlMetadataCache() {
+        WharfUtils.closeQuietly(urlMetadataCache);
+        urlMetadataCache = null;
+    }
+
+    synchronized FilestoreAccessTracker getFilestoreAccessTracker() {
+        if (filestoreAccessTracker == null) {
+            filestoreAccessTracker = new FilestoreAccessTracker(getBasedir());
+        }
+        return filestoreAccessTracker;
+    }
+
+    private synchronized void closeFilestoreAccessTracker() {
+        WharfUtils.closeQuietly(filestoreAccessTracker);
+        filestoreAccessTracker = null;
+    }
+
+    /**
+     * Evict files from the filestore until the filestore and resolver quotas are met.
+     *
+     * @return The number of bytes freed
+     */
+    public long evictFilestore() {
+        return new FilestoreEvictor(this, getFilestoreAccessTracker()).evict();
+    }
+
+    /**
+     * Delete the filestore files no longer used by any module revision, the leftovers of interrupted downloads and
+     * the artifact metadata of resolvers unknown to this cache. It can run while other resolves use the cache.
+     *
+     * @return The number of bytes freed
+     */
+    public long collectGarbage() {
+        return new FilestoreGarbageCollector(this, Runtime.getRuntime().availableProcessors()).collect();
+    }
+
+    private void evictFilestoreIfNeeded() {
+        if (filestoreQuota <= 0 && resolverQuotas.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastEviction < FilestoreEvictor.MIN_AGE) {
+            return;
+        }
+        lastEviction = now;
+        try {
+            evictFilestore();
+        } catch (RuntimeException e) {
+            Message.warn("problem while evicting files from the filestore: " + e.getMessage());
+        }
+    }
+
+    private void recordFilestoreAccess(ModuleRevisionId mrid, ArtifactMetadata artMd, File archiveFile) {
+        if (artMd == null || WharfUtils.isEmptyString(artMd.sha1)) {
+            return;
+        }
+        getFilestoreAccessTracker().recordAccess(WharfUtils.getCleanChecksum(artMd.sha1), archiveFile.length(),
+                artMd.resolverId, mrid.encodeToString(), artMd.id);
+    }
+
+    synchronized CacheRevalidator getRevalidator() {
+        if (revalidator == null) {
+            revalidator = new CacheRevalidator(getName(), CacheRevalidator.DEFAULT_THREADS,
+                    CacheRevalidator.DEFAULT_QUEUE_SIZE);
+        }
+        return revalidator;
+    }
+
+    /**
+     * @return true if the current thread revalidates a cached module in background
+     */
+    public static boolean isRevalidating() {
+        return CacheRevalidator.isRevalidating();
+    }
+
+    /**
+     * @return true if all the revalidations running in background are done, false if the timeout elapsed first
+     */
+    public boolean awaitRevalidations(long timeoutMillis) throws InterruptedException {
+        return getRevalidator().awaitPending(timeoutMillis);
+    }
+
+    private void shutdownRevalidator() {
+        CacheRevalidator toShutdown;
+        synchronized (this) {
+            toShutdown = revalidator;
+            revalidator = null;
+        }
+        // The refreshes use the synchronized getters, they are waited for outside of the lock
+        if (toShutdown != null && !toShutdown.shutdown(SHUTDOWN_TIMEOUT)) {
+            Message.warn(getName() + ": revalidations still running after " + SHUTDOWN_TIMEOUT + "ms");
+        }
+    }
+
+    private synchronized DownloadScheduler getDownloadScheduler() {
+        if (downloadScheduler == null) {
+            downloadScheduler = new DownloadScheduler(this, maxDownloads);
+        }
+        return downloadScheduler;
+    }
+
+    private void shutdownDownloadScheduler() {
+        DownloadScheduler toShutdown;
+        synchronized (this) {
+            toShutdown = downloadScheduler;
+            downloadScheduler = null;
+        }
+        if (toShutdown != null && !toShutdown.shutdown(SHUTDOWN_TIMEOUT)) {
+            Message.warn(getName() + ": downloads still running after " + SHUTDOWN_TIMEOUT + "ms");
+        }
+    }
+
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    /**
+     * @param maxDownloads The number of artifacts downloaded at the same time by {@link #download(Map,
+     *                     CacheDownloadOptions)}
+     */
+    public void setMaxDownloads(int maxDownloads) {
+        this.maxDownloads = maxDownloads;
+        shutdownDownloadScheduler();
+    }
+
+    public int getMaxDownloadsPerHost() {
+        return maxDownloadsPerHost;
+    }
+
+    /**
+     * @param maxDownloadsPerHost The number of files downloaded at the same time from a host by all the threads, 0
+     *                            for no limit
+     */
+    public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        this.maxDownloadsPerHost = maxDownloadsPerHost;
+        // The running downloads give their permits back to the permits they were taken from
+        hostPermits.clear();
+    }
+
+    /**
+     * Wait until a file can be downloaded from the host of this url.
+     *
+     * @param dest The file being downloaded, to give the permit back with {@link #releaseHostPermit(File)}
+     */
+    public void acquireHostPermit(URL url, File dest) throws IOException {
+        Semaphore permits = getHostPermits(url);
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting to download from " + url.getHost());
+            }
+            downloadPermits.put(dest, permits);
+        }
+    }
+
+    public void releaseHostPermit(File dest) {
+        Semaphore permits = downloadPermits.remove(dest);
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    private Semaphore getHostPermits(URL url) {
+        String host = url.getHost();
+        if (maxDownloadsPerHost <= 0 || host == null || host.length() == 0) {
+            return null;
+        }
+        String key = host + ":" + url.getPort();
+        Semaphore permits = hostPermits.get(key);
+        if (permits == null) {
+            Semaphore created = new Semaphore(maxDownloadsPerHost);
+            permits = hostPermits.putIfAbsent(key, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
     public void setMrmMarshaller(MrmMarshaller mrmMarshaller) {
         this.mrmMarshaller = mrmMarshaller;
     }
 
-    public WharfResolverMarshaller getWharfResolverMarshaller() {
+    public synchronized WharfResolverMarshaller getWharfResolverMarshaller() {
         if (wharfResolverMarshaller == null) {
             wharfResolverMarshaller = MarshallerFactory.createWharfResolverMarshaller(getLockFactory());
         }
@@ -237,16 +561,40 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         this.wharfResolverMarshaller = wharfResolverMarshaller;
     }
 
-    public CacheMetadataHandler getMetadataHandler() {
+    public synchronized CacheMetadataHandler getMetadataHandler() {
         if (metadataHandler == null) {
             metadataHandler = new CacheMetadataHandler(getBasedir(), getLockFactory(), getMrmMarshaller());
         }
         return metadataHandler;
     }
 
-    public ResolverHandler getResolverHandler() {
+    /**
+     * Write all the journaled metadata changes in the metadata data files, and the new resolvers in the resolvers file.
+     */
+    public void flushMetadata() {
+        if (metadataHandler != null) {
+            metadataHandler.flushJournals();
+        }
+        if (resolverHandler != null) {
+            resolverHandler.saveCacheResolverFile();
+        }
+        AtomicFileHelper.syncPending();
+    }
+
+    /**
+     * The metadata journals are coalesced at the end of each resolve done by the current Ivy instance.
+     */
+    private void flushMetadataAtEndOfResolve() {
+        Ivy ivy = IvyContext.getContext().peekIvy();
+        if (ivy != null && !ivy.getEventManager().hasIvyListener(endResolveListener)) {
+            ivy.getEventManager().addIvyListener(endResolveListener, EndResolveEvent.NAME);
+        }
+    }
+
+    public synchronized ResolverHandler getResolverHandler() {
         if (resolverHandler == null) {
             resolverHandler = new ResolverHandler(getBasedir(), settings, getWharfResolverMarshaller());
+            flushMetadataAtEndOfResolve();
         }
         return resolverHandler;
     }
@@ -285,6 +633,121 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         this.defaultTTL = parseDuration(defaultTTL);
     }
 
+    public long getMissingTTL() {
+        return missingTTL;
+    }
+
+    /**
+     * @param missingTTL How long a resource not found by a resolver is known as missing, 0 to always look for it again
+     */
+    public void setMissingTTL(long missingTTL) {
+        this.missingTTL = missingTTL;
+    }
+
+    public void setMissingTTL(String missingTTL) {
+        this.missingTTL = parseDuration(missingTTL);
+    }
+
+    public long getStaleTTL() {
+        return staleTTL;
+    }
+
+    /**
+     * @param staleTTL How long after its ttl expired a resolved dynamic revision is still used while it is refreshed in
+     *                 background, 0 to always resolve it again once expired
+     */
+    public void setStaleTTL(long staleTTL) {
+        this.staleTTL = staleTTL;
+    }
+
+    public void setStaleTTL(String staleTTL) {
+        this.staleTTL = parseDuration(staleTTL);
+    }
+
+    public boolean isStaleChanging() {
+        return staleChanging;
+    }
+
+    /**
+     * @param staleChanging true to use the cached changing modules right away, while they are revalidated in
+     *                      background for the next resolves
+     */
+    public void setStaleChanging(boolean staleChanging) {
+        this.staleChanging = staleChanging;
+    }
+
+    public long getFilestoreQuota() {
+        return filestoreQuota;
+    }
+
+    /**
+     * @param filestoreQuota How many bytes the files of the filestore may use before the least valuable ones are
+     *                       evicted, 0 for no limit
+     */
+    public void setFilestoreQuota(long filestoreQuota) {
+        this.filestoreQuota = filestoreQuota;
+    }
+
+    public void setFilestoreQuota(String filestoreQuota) {
+        this.filestoreQuota = parseSize(filestoreQuota);
+    }
+
+    public void setResolverQuota(String resolverName, long quota) {
+        resolverQuotas.put(resolverName, quota);
+    }
+
+    public void addConfiguredQuota(Map<String, String> attributes) {
+        String resolverName = attributes.get(RESOLVER_ATTRIBUTE);
+        String size = attributes.get("size");
+        if (resolverName == null || size == null) {
+            throw new IllegalArgumentException("'resolver' and 'size' attributes are mandatory for quota");
+        }
+        setResolverQuota(resolverName, parseSize(size));
+    }
+
+    long getResolverQuota(String resolverId) {
+        if (resolverQuotas.isEmpty()) {
+            return 0;
+        }
+        WharfResolverMetadata resolverMetadata = getResolverHandler().getResolver(resolverId);
+        Long quota = resolverMetadata == null ? null : resolverQuotas.get(resolverMetadata.name);
+        return quota == null ? 0 : quota;
+    }
+
+    /**
+     * The filestore files of the matching modules are never evicted. As for the ttl rules, the <code>resolver</code>
+     * attribute holds the name of the resolver.
+     */
+    public void addPin(Map<String, String> attributes, PatternMatcher matcher) {
+        pinRules.defineRule(new MapMatcher(attributes, matcher), Boolean.TRUE);
+    }
+
+    public void addConfiguredPin(Map<String, String> attributes) {
+        String matcher = attributes.remove("matcher");
+        addPin(attributes, matcher == null ? ExactPatternMatcher.INSTANCE : settings.getMatcher(matcher));
+    }
+
+    boolean isPinned(String resolverId, ModuleRevisionId mrid) {
+        Map<String, String> attributes = copyExtraAttributes(mrid);
+        WharfResolverMetadata resolverMetadata = getResolverHandler().getResolver(resolverId);
+        if (resolverMetadata != null) {
+            attributes.put(RESOLVER_ATTRIBUTE, resolverMetadata.name);
+        }
+        return pinRules.getRule(ModuleRevisionId.newInstance(mrid.getOrganisation(), mrid.getName(),
+                mrid.getBranch(), mrid.getRevision(), attributes)) != null;
+    }
+
+    public FilestoreEvictor.Policy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @param evictionPolicy lru to evict the least recently used files first, lfu for the least frequently used
+     */
+    public void setEvictionPolicy(String evictionPolicy) {
+        this.evictionPolicy = FilestoreEvictor.Policy.valueOf(evictionPolicy.toUpperCase(Locale.US));
+    }
+
     public String getName() {
         return name;
     }
@@ -325,17 +788,65 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
                 parseDuration(duration));
     }
 
+    /**
+     * Define how long the resources of the matching modules not found by a resolver are known as missing. The rules
+     * are separate from the ttl rules, a ttl rule never makes a missing resource known as missing.
+     */
+    public void addMissingTTL(Map<String, String> attributes, PatternMatcher matcher, long duration) {
+        missingTtlRules.defineRule(new MapMatcher(attributes, matcher), duration);
+    }
+
+    public void addConfiguredMissingTtl(Map<String, String> attributes) {
+        String duration = attributes.remove("duration");
+        if (duration == null) {
+            throw new IllegalArgumentException("'duration' attribute is mandatory for missingTtl");
+        }
+        String matcher = attributes.remove("matcher");
+        addMissingTTL(
+                attributes,
+                matcher == null ? ExactPatternMatcher.INSTANCE : settings.getMatcher(matcher),
+                parseDuration(duration));
+    }
+
     public void setMemorySize(int size) {
-        memoryModuleDescrCache = new ModuleDescriptorMemoryCache(size);
+        memorySize = size;
+        memoryModuleDescrCache = createMemoryCache();
+    }
+
+    /**
+     * @param weight The maximum total size in bytes of the ivy files whose parsed descriptors are kept in memory
+     */
+    public void setMemoryWeight(long weight) {
+        memoryWeight = weight;
+        memoryModuleDescrCache = createMemoryCache();
     }
 
-    public ModuleDescriptorMemoryCache getMemoryCache() {
+    /**
+     * @param binaryDescriptors true to keep a binary copy of the parsed module descriptors next to the cached ivy
+     *                          files, so that they are not parsed again by a new process
+     */
+    public void setBinaryDescriptors(boolean binaryDescriptors) {
+        this.binaryDescriptors = binaryDescriptors;
+        getMemoryCache().setBinaryCache(binaryDescriptors);
+    }
+
+    public boolean isBinaryDescriptors() {
+        return binaryDescriptors;
+    }
+
+    public synchronized ModuleDescriptorMemoryCache getMemoryCache() {
         if (memoryModuleDescrCache == null) {
-            memoryModuleDescrCache = new ModuleDescriptorMemoryCache(DEFAULT_MEMORY_CACHE_SIZE);
+            memoryModuleDescrCache = createMemoryCache();
         }
         return memoryModuleDescrCache;
     }
 
+    private ModuleDescriptorMemoryCache createMemoryCache() {
+        ModuleDescriptorMemoryCache cache = new ModuleDescriptorMemoryCache(memorySize, memoryWeight);
+        cache.setBinaryCache(binaryDescriptors);
+        return cache;
+    }
+
 
     private static final Pattern DURATION_PATTERN
             = Pattern.compile("(?:(\\d+)d)? ?(?:(\\d+)h)? ?(?:(\\d+)m)? ?(?:(\\d+)s)? ?(?:(\\d+)ms)?");
@@ -374,6 +885,19 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         }
     }
 
+    private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+) ?([kmgt]?)b?", Pattern.CASE_INSENSITIVE);
+
+    private long parseSize(String size) {
+        java.util.regex.Matcher m = SIZE_PATTERN.matcher(size.trim());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("invalid size '" + size + "': it must match " + SIZE_PATTERN.pattern());
+        }
+        long result = Long.parseLong(m.group(1));
+        String unit = m.group(2).toLowerCase(Locale.US);
+        int shift = "kmgt".indexOf(unit.length() == 0 ? ' ' : unit.charAt(0)) + 1;
+        return result << (10 * shift);
+    }
+
     private int getGroupIntValue(java.util.regex.Matcher m, int groupNumber) {
         String g = m.group(groupNumber);
         return g == null || g.length() == 0 ? 0 : Integer.parseInt(g);
@@ -429,6 +953,20 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         return new File(getBasedir() + "/filestore/temp", "" + tempLong);
     }
 
+    public synchronized FilestoreDownloads getFilestoreDownloads() {
+        if (filestoreDownloads == null) {
+            filestoreDownloads = new FilestoreDownloads(new File(getBasedir(), ".wharf/downloads"));
+        }
+        return filestoreDownloads;
+    }
+
+    public synchronized PartialDownloads getPartialDownloads() {
+        if (partialDownloads == null) {
+            partialDownloads = new PartialDownloads(new File(getBasedir(), "filestore/temp"));
+        }
+        return partialDownloads;
+    }
+
     public File getStorageFile(String checksum) {
         checksum = WharfUtils.getCleanChecksum(checksum);
         return new File(getBasedir() + "/filestore", checksum.substring(0, 3) + "/" + checksum);
@@ -483,18 +1021,35 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
     }
 
     public void saveArtifactMetadata(Artifact artifact, ArtifactOrigin origin, File archiveFile) {
+        saveArtifactMetadata(artifact, origin, archiveFile, null);
+    }
+
+    /**
+     * @param resource The resource the archive file was just downloaded from, its checksums are used instead of
+     *                 reading the file again
+     */
+    private void saveArtifactMetadata(Artifact artifact, ArtifactOrigin origin, File archiveFile,
+            Resource resource) {
         // should always be called with a lock on module metadata artifact
         ModuleRevisionId mrid = artifact.getModuleRevisionId();
-        ModuleRevisionMetadata mrm = getMetadataHandler().getModuleRevisionMetadata(mrid);
-        if (mrm == null) {
-            mrm = new ModuleRevisionMetadata();
-            mrm.latestResolvedRevision = artifact.getModuleRevisionId().getRevision();
-            mrm.latestResolvedTime = String.valueOf(System.currentTimeMillis());
-        }
         ArtifactMetadata artMd = new ArtifactMetadata(artifact, origin);
+        if (resource instanceof WharfUrlResource) {
+            WharfUrlResource wharfResource = (WharfUrlResource) resource;
+            artMd.sha1 = wharfResource.getActual().get(ChecksumType.sha1);
+            artMd.md5 = wharfResource.getActual().get(ChecksumType.md5);
+            if (WharfUtils.isEmptyString(artMd.sha1)) {
+                // Not downloaded as already in the filestore, which is keyed by this verified sha1
+                artMd.sha1 = wharfResource.getSha1();
+            }
+        }
         fillChecksums(artMd, archiveFile);
-        mrm.artifactMetadata.add(artMd);
-        getMetadataHandler().saveModuleRevisionMetadata(mrid, mrm);
+        // the resolver ids referenced by the metadata must be known by the other processes first
+        if (resolverHandler != null) {
+            resolverHandler.saveCacheResolverFile();
+        }
+        getMetadataHandler().addArtifactMetadata(mrid, artMd);
+        recordFilestoreAccess(mrid, artMd, archiveFile);
+        flushMetadataAtEndOfResolve();
     }
 
     private void removeSavedArtifactOrigin(Artifact artifact) {
@@ -506,11 +1061,9 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         } else {
             // should always be called with a lock on module metadata artifact
             ModuleRevisionId mrid = artifact.getModuleRevisionId();
-            ModuleRevisionMetadata metadata = getMetadataHandler().getModuleRevisionMetadata(mrid);
-            if (metadata != null) {
-                ArtifactMetadata artMd = new ArtifactMetadata(artifact);
-                metadata.artifactMetadata.remove(artMd);
-                getMetadataHandler().saveModuleRevisionMetadata(mrid, metadata);
+            ArtifactMetadata artMd = new ArtifactMetadata(artifact);
+            if (getMetadataHandler().removeArtifactMetadata(mrid, artMd)) {
+                flushMetadataAtEndOfResolve();
             } else {
                 Message.error("Trying to remove " + artifact + " from saved cache metadata. But no metadata found!");
             }
@@ -539,14 +1092,15 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             String resolverId = ArtifactMetadata.extractResolverId(artifact);
             if (resolverId == null || resolverId.length() == 0) {
                 String artId = ArtifactMetadata.getArtId(artifact);
-                for (ArtifactMetadata artMd : mrm.artifactMetadata) {
-                    if (artId.equals(artMd.id) && getResolverHandler().isActiveResolver(artMd.resolverId)) {
+                ResolverHandler resolverHandler = getResolverHandler();
+                for (ArtifactMetadata artMd : mrm.findArtifactMetadata(artId)) {
+                    if (resolverHandler.isActiveResolver(artMd.resolverId)) {
                         artifact = ArtifactMetadata.fillResolverId(artifact, artMd.resolverId);
                         return new ArtifactOrigin(artifact, artMd.local, artMd.location);
                     }
                 }
             } else {
-                ArtifactMetadata artMd = getMetadataHandler().getArtifactMetadata(artifact);
+                ArtifactMetadata artMd = mrm.findArtifactMetadata(ArtifactMetadata.getArtId(artifact), resolverId);
                 if (artMd != null) {
                     return new ArtifactOrigin(artifact, artMd.local, artMd.location);
                 }
@@ -565,7 +1119,8 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             Message.verbose("don't use cache for " + mrid + ": checkModified=true");
             return null;
         }
-        if (isChanging(dd, requestedRevisionId, options)) {
+        boolean changing = isChanging(dd, requestedRevisionId, options);
+        if (changing && (!staleChanging || CacheRevalidator.isRevalidating())) {
             Message.verbose("don't use cache for " + mrid + ": changing=true");
             return null;
         }
@@ -578,10 +1133,33 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             String resolverName = settings.getResolverName(mrid);
             resolver = settings.getResolver(resolverName);
         }
-        return doFindModuleInCache(mrid, options, resolver);
+        ResolvedModuleRevision rmr = doFindModuleInCache(dd, mrid, options, resolver);
+        if (changing && rmr != null) {
+            if (!revalidate(dd, mrid, resolver)) {
+                Message.verbose("don't use cache for " + mrid + ": changing=true");
+                WharfURLRepository.setAlwaysCheck(true);
+                return null;
+            }
+            Message.verbose("using cache for " + mrid + " while it is revalidated in background: changing=true");
+        }
+        return rmr;
     }
 
-    private ResolvedModuleRevision doFindModuleInCache(
+    private ResolvedModuleRevision doFindModuleInCache(DependencyDescriptor dd,
+            ModuleRevisionId mrid, CacheMetadataOptions options, DependencyResolver expectedResolver) {
+        ResolvedModuleRevision rmr = null;
+        try {
+            rmr = lookupModuleInCache(dd, mrid, options, expectedResolver);
+            return rmr;
+        } finally {
+            if (rmr == null) {
+                // the cached resolved revision was not served, the one found by the resolver must be saved
+                servedResolvedRevision.remove();
+            }
+        }
+    }
+
+    private ResolvedModuleRevision lookupModuleInCache(DependencyDescriptor dd,
             ModuleRevisionId mrid, CacheMetadataOptions options, DependencyResolver expectedResolver) {
         if (!getMetadataHandler().lockMetadataArtifact(mrid)) {
             Message.error("impossible to acquire lock for " + mrid);
@@ -590,7 +1168,7 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         boolean unlock = true;
         try {
             if (settings.getVersionMatcher().isDynamic(mrid)) {
-                String resolvedRevision = getResolvedRevision(mrid, options);
+                String resolvedRevision = getResolvedRevision(dd, mrid, options, expectedResolver);
                 if (resolvedRevision != null) {
                     Message.verbose("found resolved revision in cache: "
                             + mrid + " => " + resolvedRevision);
@@ -681,7 +1259,7 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
                                               File descriptorURL, boolean validate) throws ParseException, IOException {
             URL url = descriptorURL.toURI().toURL();
             WharfUrlResource wharfUrlResource = new WharfUrlResource(url);
-            return mdParser.parseDescriptor(settings, url, wharfUrlResource, validate);
+            return mdParser.parseDescriptor(ivySettings, url, wharfUrlResource, validate);
         }
     }
 
@@ -698,35 +1276,105 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             throws ParseException, IOException {
         ModuleDescriptorMemoryCache cache = getMemoryCache();
         ModuleDescriptorProvider mdProvider = new MyModuleDescriptorProvider(mdParser, parserSettings);
-        return cache.getStale(ivyFile, settings, options.isValidate(), mdProvider);
+        return cache.getStale(ivyFile, parserSettings, options.isValidate(), mdProvider);
     }
 
 
-    private String getResolvedRevision(ModuleRevisionId mrid, CacheMetadataOptions options) {
+    private String getResolvedRevision(DependencyDescriptor dd, ModuleRevisionId mrid, CacheMetadataOptions options,
+                                       DependencyResolver resolver) {
         if (!getMetadataHandler().lockMetadataArtifact(mrid)) {
             Message.error("impossible to acquire lock for " + mrid);
             return null;
         }
         try {
+            servedResolvedRevision.remove();
             String resolvedRevision = null;
             if (options.isForce()) {
                 Message.verbose("refresh mode: no check for cached resolved revision for " + mrid);
                 return null;
             }
+            if (CacheRevalidator.isRevalidating()) {
+                Message.verbose("revalidation: no check for cached resolved revision for " + mrid);
+                return null;
+            }
             ModuleRevisionMetadata mrm = getMetadataHandler().getModuleRevisionMetadata(mrid);
             if (mrm != null) {
                 resolvedRevision = mrm.latestResolvedRevision;
             }
             if (resolvedRevision == null) {
                 Message.verbose(getName() + ": no cached resolved revision for " + mrid);
+                return null;
             }
+            long resolvedTime = mrm.latestResolvedTime != null ? Long.parseLong(mrm.latestResolvedTime) : 0L;
+            long expiredSince = System.currentTimeMillis() - resolvedTime - getTTL(mrid);
+            // a ttl of 0 expires the revision right away, even when it was resolved in the same millisecond
+            if (expiredSince >= 0) {
+                if (expiredSince > staleTTL || !revalidate(dd, mrid, resolver)) {
+                    Message.verbose(getName() + ": cached resolved revision expired for " + mrid);
+                    return null;
+                }
+                Message.verbose(getName() + ": cached resolved revision expired for " + mrid
+                        + ": using it while it is refreshed in background");
+            }
+            servedResolvedRevision.set(mrid + "=>" + resolvedRevision);
             return resolvedRevision;
         } finally {
             getMetadataHandler().unlockMetadataArtifact(mrid);
         }
     }
 
+    /**
+     * Resolves again the module in background, with a fresh copy of the current resolve data. The cached resolved
+     * revision of a dynamic module is updated, and a changing module goes through the usual checks of
+     * {@link #cacheModuleDescriptor}.
+     *
+     * @return false if the refresh could not be scheduled
+     */
+    private boolean revalidate(final DependencyDescriptor dd, final ModuleRevisionId mrid,
+                               final DependencyResolver resolver) {
+        IvyContext context = IvyContext.getContext();
+        final ResolveData data = context.getResolveData();
+        if (dd == null || resolver == null || data == null || data.getOptions().isUseCacheOnly()) {
+            return false;
+        }
+        final Ivy ivy = context.peekIvy();
+        return getRevalidator().schedule(resolver.getName() + "!" + mrid, new Runnable() {
+            public void run() {
+                IvyContext refreshContext = IvyContext.pushNewContext();
+                if (ivy != null) {
+                    refreshContext.setIvy(ivy);
+                }
+                try {
+                    // the resources already seen by the repository must be checked again
+                    WharfURLRepository.setAlwaysCheck(true);
+                    ResolveData refreshData = new ResolveData(data.getEngine(), new ResolveOptions(data.getOptions()));
+                    ResolvedModuleRevision rmr = resolver.getDependency(dd, refreshData);
+                    if (rmr == null) {
+                        Message.verbose(getName() + ": " + mrid + " not found while revalidating it");
+                    } else if (settings.getVersionMatcher().isDynamic(mrid)) {
+                        saveResolvedRevision(mrid, rmr.getId().getRevision());
+                        Message.verbose(getName() + ": refreshed resolved revision: " + mrid + " => "
+                                + rmr.getId().getRevision());
+                    } else {
+                        Message.verbose(getName() + ": revalidated " + mrid);
+                    }
+                } catch (ParseException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    IvyContext.popContext();
+                }
+            }
+        });
+    }
+
     public void saveResolvedRevision(ModuleRevisionId mrid, String revision) {
+        String served = servedResolvedRevision.get();
+        servedResolvedRevision.remove();
+        if ((mrid + "=>" + revision).equals(served)) {
+            // saving it again would extend its ttl, and overwrite the revision a refresh may have found meanwhile
+            Message.debug("\t" + getName() + ": resolved revision served from cache: " + mrid + " => " + revision);
+            return;
+        }
         if (!getMetadataHandler().lockMetadataArtifact(mrid)) {
             Message.error("impossible to acquire lock for " + mrid);
             return;
@@ -736,13 +1384,8 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             if (mrm == null) {
                 mrm = new ModuleRevisionMetadata();
             }
-            if (!getSettings().getVersionMatcher().isDynamic(mrid)) {
-                mrm.latestResolvedRevision = revision;
-                mrm.latestResolvedTime = String.valueOf(System.currentTimeMillis());
-            } else {
-                mrm.latestResolvedRevision = mrid.getRevision();
-                mrm.latestResolvedTime = String.valueOf(System.currentTimeMillis());
-            }
+            mrm.latestResolvedRevision = revision;
+            mrm.latestResolvedTime = String.valueOf(System.currentTimeMillis());
             getMetadataHandler().saveModuleRevisionMetadata(mrid, mrm);
         } finally {
             getMetadataHandler().unlockMetadataArtifact(mrid);
@@ -754,6 +1397,63 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         return ttl == null ? getDefaultTTL() : ttl;
     }
 
+    /**
+     * The missing ttl rules are matched against the module with an additional <code>resolver</code> attribute holding
+     * the resolver name, so that a rule can target a repository.
+     *
+     * @return How long a resource of this module not found by the resolver is known as missing
+     */
+    public long getMissingTTL(DependencyResolver resolver, ModuleRevisionId mrid) {
+        Map<String, String> attributes = copyExtraAttributes(mrid);
+        attributes.put(RESOLVER_ATTRIBUTE, resolver.getName());
+        Long ttl = (Long) missingTtlRules.getRule(ModuleRevisionId.newInstance(mrid.getOrganisation(),
+                mrid.getName(), mrid.getBranch(), mrid.getRevision(), attributes));
+        return ttl == null ? missingTTL : ttl;
+    }
+
+    private static Map<String, String> copyExtraAttributes(ModuleRevisionId mrid) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        for (Object o : mrid.getQualifiedExtraAttributes().entrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            attributes.put((String) entry.getKey(), (String) entry.getValue());
+        }
+        return attributes;
+    }
+
+    /**
+     * @param resourceKey The key of the resource in the repository of the resolver
+     * @return true if the resolver did not find this resource and this information did not expire yet
+     */
+    public boolean isKnownMissing(DependencyResolver resolver, ModuleRevisionId mrid, String resourceKey) {
+        long ttl = getMissingTTL(resolver, mrid);
+        if (ttl <= 0) {
+            return false;
+        }
+        String resolverId = getResolverHandler().getResolver(resolver).getId();
+        long missingTime = getMissingResourceCache().getMissingTime(resolverId, resourceKey);
+        if (missingTime >= 0 && System.currentTimeMillis() - missingTime < ttl) {
+            Message.verbose("\t" + resourceKey + " is known as missing in " + resolver.getName());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember whether the resolver found a resource, when the missing resources of this module are remembered.
+     */
+    public void saveResourceFound(DependencyResolver resolver, ModuleRevisionId mrid, String resourceKey,
+                                  boolean found) {
+        if (getMissingTTL(resolver, mrid) <= 0) {
+            return;
+        }
+        String resolverId = getResolverHandler().getResolver(resolver).getId();
+        if (found) {
+            getMissingResourceCache().removeMissing(resolverId, resourceKey);
+        } else {
+            getMissingResourceCache().saveMissing(resolverId, resourceKey, System.currentTimeMillis());
+        }
+    }
+
     public String toString() {
         return name;
     }
@@ -824,6 +1524,7 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             File archiveFile = getArchiveFileInCache(artifact, origin);
 
             if (archiveFile.exists() && !options.isForce()) {
+                recordFilestoreAccess(mrid, getMetadataHandler().getArtifactMetadata(artifact), archiveFile);
                 adr.setDownloadStatus(DownloadStatus.NO);
                 adr.setSize(archiveFile.length());
                 adr.setArtifactOrigin(origin);
@@ -856,7 +1557,7 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
                             Resource resource = artifactRef.getResource();
                             resourceDownloader.download(artifact, resource, archiveFile);
                             adr.setSize(archiveFile.length());
-                            saveArtifactMetadata(artifact, origin, archiveFile);
+                            saveArtifactMetadata(artifact, origin, archiveFile, resource);
                             adr.setDownloadTimeMillis(System.currentTimeMillis() - start);
                             adr.setDownloadStatus(DownloadStatus.SUCCESSFUL);
                             adr.setArtifactOrigin(origin);
@@ -882,14 +1583,29 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         }
     }
 
+    /**
+     * Download the artifacts concurrently, each one with its resolver. The downloads are limited by the maximum number
+     * of downloads, in total and per host.
+     *
+     * @return The reports of all the artifacts
+     */
+    public DownloadReport download(Map<Artifact, ? extends DependencyResolver> artifacts,
+                                   CacheDownloadOptions options) {
+        return getDownloadScheduler().download(artifacts, options);
+    }
+
     private void fillChecksums(ArtifactMetadata artMd, File archiveFile) {
-        if (archiveFile != null) {
+        // The md5 is not needed to store the file, it is only computed when the file has to be read anyway
+        if (archiveFile != null && WharfUtils.isEmptyString(artMd.sha1)) {
             try {
+                EnumSet<ChecksumType> types = EnumSet.of(ChecksumType.sha1);
                 if (WharfUtils.isEmptyString(artMd.md5)) {
-                    artMd.md5 = ChecksumHelper.computeAsString(archiveFile, "md5");
+                    types.add(ChecksumType.md5);
                 }
-                if (WharfUtils.isEmptyString(artMd.sha1)) {
-                    artMd.sha1 = ChecksumHelper.computeAsString(archiveFile, "sha1");
+                Map<ChecksumType, String> checksums = Checksum.compute(archiveFile, types);
+                artMd.sha1 = checksums.get(ChecksumType.sha1);
+                if (types.contains(ChecksumType.md5)) {
+                    artMd.md5 = checksums.get(ChecksumType.md5);
                 }
             } catch (IOException e) {
                 Message.error("Could not calculate checksums of file " + archiveFile.getAbsolutePath() +
@@ -915,6 +1631,7 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
         try {
             File originalFileInCache = getArchiveFileInCache(originalMetadataArtifact);
             writer.write(orginalMetadataRef, md, originalFileInCache, mdFileInCache);
+            getMemoryCache().putInCache(mdFileInCache, new ParserSettingsMonitor(settings), true, md);
             saveResolvers(md, resolver.getName(), resolver.getName());
 
             if (!md.isDefault()) {
@@ -975,7 +1692,7 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
             }
 
             // now let's see if we can find it in cache and if it is up to date
-            ResolvedModuleRevision rmr = doFindModuleInCache(mrid, options, resolver);
+            ResolvedModuleRevision rmr = doFindModuleInCache(dd, mrid, options, resolver);
             if (rmr != null) {
                 if (rmr.getDescriptor().isDefault() && rmr.getResolver() != resolver) {
                     Message.verbose("\t" + getName() + ": found revision in cache: " + mrid
@@ -1157,11 +1874,31 @@ public class WharfCacheManager implements ModuleMetadataManager, RepositoryCache
     }
 
     public void clean() {
+        // Memory mapped files cannot be deleted on some platforms
+        closeMrmMarshaller();
+        closeMissingResourceCache();
+        closeUrlMetadataCache();
+        closeFilestoreAccessTracker();
+        mrmMarshaller = null;
+        metadataHandler = null;
         FileUtil.forceDelete(getBasedir());
     }
 
     @Override
     public void close() throws IOException {
+        if (memoryModuleDescrCache != null) {
+            Message.verbose("\t" + getName() + ": " + memoryModuleDescrCache);
+        }
+        // The background refreshes and downloads still use the stores, they are stopped before closing them
+        shutdownRevalidator();
+        shutdownDownloadScheduler();
+        flushMetadata();
+        closeMrmMarshaller();
+        closeMissingResourceCache();
+        closeUrlMetadataCache();
+        closeFilestoreAccessTracker();
+        mrmMarshaller = null;
+        metadataHandler = null;
         if (lockFactory != null) {
             lockFactory.close();
         }
@@ -0,0 +1,182 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.checksum;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Updates checksums on a helper thread, so that digesting does not slow down the thread reading the data. The data is
+ * passed in a ring of buffers: the reader fills the buffer returned by {@link #nextBuffer()} and hands it over with
+ * {@link #update(int)}, the helper gives it back once digested. A single thread must fill the buffers.
+ */
+public class BackgroundChecksums {
+    /**
+     * Below this size digesting on the reading thread is cheaper than handing the data over.
+     */
+    public static final long MIN_SIZE = 4 * 1024 * 1024L;
+
+    private static final int BUFFER_COUNT = 4;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "wharf-checksum-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final Chunk END = new Chunk(0);
+
+    private final Checksum[] checksums;
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT);
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT + 1);
+    private final Future<?> digester;
+    private Chunk current;
+
+    public BackgroundChecksums(int bufferSize, final Checksum... checksums) {
+        this.checksums = checksums;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(new Chunk(bufferSize));
+        }
+        digester = EXECUTOR.submit(new Runnable() {
+            public void run() {
+                digest();
+            }
+        });
+    }
+
+    /**
+     * @return The buffer to fill with the next data
+     */
+    public byte[] nextBuffer() throws IOException {
+        if (current == null) {
+            current = take(free);
+        }
+        return current.buffer;
+    }
+
+    /**
+     * Digest the first bytes of the buffer returned by {@link #nextBuffer()}.
+     */
+    public void update(int length) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No buffer to digest");
+        }
+        current.length = length;
+        put(current);
+        current = null;
+    }
+
+    /**
+     * Wait for all the data to be digested and calculate the checksums.
+     */
+    public void finish() throws IOException {
+        put(END);
+        try {
+            digester.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("checksum calculation interrupted");
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("checksum calculation failed: " + e.getCause().getMessage());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+        for (Checksum checksum : checksums) {
+            checksum.calc();
+        }
+    }
+
+    /**
+     * Stop digesting, the checksums are not calculated.
+     */
+    public void abort() {
+        digester.cancel(true);
+    }
+
+    public Checksum[] getChecksums() {
+        return checksums;
+    }
+
+    private void digest() {
+        RuntimeException failure = null;
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = full.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (chunk == END) {
+                break;
+            }
+            if (failure == null) {
+                try {
+                    for (Checksum checksum : checksums) {
+                        checksum.update(chunk.buffer, 0, chunk.length);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep giving the buffers back so that the reader is not blocked
+                    failure = e;
+                }
+            }
+            free.add(chunk);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Chunk take(BlockingQueue<Chunk> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("checksum calculation interrupted");
+        }
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        try {
+            full.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("checksum calculation interrupted");
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] buffer;
+        private int length;
+
+        private Chunk(int size) {
+            this.buffer = new byte[size];
+        }
+    }
+}
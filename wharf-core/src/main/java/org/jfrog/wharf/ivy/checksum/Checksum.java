@@ -1,7 +1,16 @@
 package org.jfrog.wharf.ivy.checksum;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author Fred Simnon
@@ -9,6 +18,19 @@ import java.security.NoSuchAlgorithmException;
  * Time: 1:51 PM
  */
 public class Checksum {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /**
+     * Digests are costly to create, the ones of calculated checksums are reused.
+     */
+    private static final Map<ChecksumType, Queue<MessageDigest>> DIGEST_POOL =
+            new EnumMap<ChecksumType, Queue<MessageDigest>>(ChecksumType.class);
+
+    static {
+        for (ChecksumType type : ChecksumType.values()) {
+            DIGEST_POOL.put(type, new ConcurrentLinkedQueue<MessageDigest>());
+        }
+    }
 
     private final ChecksumType type;
     private final MessageDigest digest;
@@ -19,6 +41,11 @@ public class Checksum {
      */
     public Checksum(ChecksumType type) {
         this.type = type;
+        MessageDigest pooled = DIGEST_POOL.get(type).poll();
+        if (pooled != null) {
+            digest = pooled;
+            return;
+        }
         String algorithm = type.alg();
         try {
             digest = MessageDigest.getInstance(algorithm);
@@ -28,6 +55,62 @@ public class Checksum {
         }
     }
 
+    /**
+     * @return One checksum per type
+     */
+    public static Checksum[] create(Collection<ChecksumType> types) {
+        Checksum[] checksums = new Checksum[types.size()];
+        int i = 0;
+        for (ChecksumType type : types) {
+            checksums[i++] = new Checksum(type);
+        }
+        return checksums;
+    }
+
+    /**
+     * Compute the checksums of a file in a single read.
+     */
+    public static Map<ChecksumType, String> compute(File file, Collection<ChecksumType> types) throws IOException {
+        Checksum[] checksums = create(types);
+        ChecksumInputStream in = new ChecksumInputStream(new FileInputStream(file), checksums);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // digested while read
+            }
+        } finally {
+            in.close();
+        }
+        Map<ChecksumType, String> result = new EnumMap<ChecksumType, String>(ChecksumType.class);
+        for (Checksum checksum : checksums) {
+            result.put(checksum.getType(), checksum.getChecksum());
+        }
+        return result;
+    }
+
+    /**
+     * Digest the first bytes of a file, the next ones are digested as they come.
+     */
+    public static void update(File file, long length, Checksum... checksums) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + file + " after " + (length - remaining) + " bytes");
+                }
+                for (Checksum checksum : checksums) {
+                    checksum.update(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     public ChecksumType getType() {
         return type;
     }
@@ -49,18 +132,17 @@ public class Checksum {
         }
         //Encodes a 128 bit or 160-bit byte array into a String
         byte[] bytes = digest.digest();
+        // digest() resets the digest, it can be used again
+        DIGEST_POOL.get(type).offer(digest);
         if (bytes.length != 16 && bytes.length != 20) {
             int bitLength = bytes.length * 8;
             throw new IllegalArgumentException("Unrecognised length for binary data: " + bitLength + " bits");
         }
-        StringBuilder sb = new StringBuilder();
-        for (byte aBinaryData : bytes) {
-            String t = Integer.toHexString(aBinaryData & 0xff);
-            if (t.length() == 1) {
-                sb.append("0");
-            }
-            sb.append(t);
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
         }
-        checksum = sb.toString().trim();
+        checksum = new String(chars);
     }
 }
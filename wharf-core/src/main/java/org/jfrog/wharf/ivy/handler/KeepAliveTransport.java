@@ -0,0 +1,248 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.handler;
+
+import org.apache.ivy.util.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the http requests to a host through persistent connections. The connections are pooled per host by the JVM
+ * http client as long as their responses are read to the end and they are not disconnected, so a connection given
+ * back is drained instead of disconnected. The JVM keeps the idle connections for the keep-alive time given by the
+ * server, 5 seconds by default, and at most http.maxConnections of them per host.
+ * <p/>
+ * The number of connections opened at the same time to a host is limited, so that they all fit in the pool once idle.
+ * When a host was idle for longer than the idle timeout, its pooled connections are gone, and the first request warms
+ * up new ones in background for the requests that follow.
+ */
+public class KeepAliveTransport implements WharfTransport {
+    public static final String MAX_CONNECTIONS_PER_HOST = "wharf.http.maxConnectionsPerHost";
+    public static final String IDLE_TIMEOUT = "wharf.http.idleTimeout";
+    public static final String WARM_UP_CONNECTIONS = "wharf.http.warmUpConnections";
+
+    /**
+     * A response body longer than this is not worth reading to reuse its connection.
+     */
+    static final int MAX_DRAIN_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final ExecutorService WARM_UP_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "wharf-warm-up-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<String, Long> lastUse = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<URLConnection, Semaphore> openConnections =
+            new ConcurrentHashMap<URLConnection, Semaphore>();
+
+    private int maxConnectionsPerHost = Integer.getInteger(MAX_CONNECTIONS_PER_HOST, 5);
+    private long idleTimeout = Long.getLong(IDLE_TIMEOUT, 5000L);
+    private int warmUpConnections = Integer.getInteger(WARM_UP_CONNECTIONS, 0);
+
+    public URLConnection open(URL url, String method) throws IOException {
+        if (!isHttp(url)) {
+            return url.openConnection();
+        }
+        String host = getHostKey(url);
+        Long lastUsed = lastUse.put(host, System.currentTimeMillis());
+        if (warmUpConnections > 0 && (lastUsed == null || System.currentTimeMillis() - lastUsed > idleTimeout)) {
+            warmUp(url);
+        }
+        Semaphore permits = getHostPermits(host);
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for a connection to " + host);
+            }
+        }
+        try {
+            HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            con.setRequestMethod(method);
+            if (permits != null) {
+                openConnections.put(con, permits);
+            }
+            return con;
+        } catch (IOException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    public void release(URLConnection con) {
+        if (con instanceof HttpURLConnection) {
+            HttpURLConnection httpCon = (HttpURLConnection) con;
+            try {
+                if (!drain(httpCon)) {
+                    httpCon.disconnect();
+                }
+            } finally {
+                lastUse.put(getHostKey(con.getURL()), System.currentTimeMillis());
+                Semaphore permits = openConnections.remove(con);
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        } else if (con != null) {
+            try {
+                InputStream is = con.getInputStream();
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    public void warmUp(final URL url) {
+        if (!isHttp(url)) {
+            return;
+        }
+        for (int i = 0; i < Math.max(1, warmUpConnections); i++) {
+            WARM_UP_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    URLConnection con = null;
+                    try {
+                        con = open(url, "HEAD");
+                        ((HttpURLConnection) con).getResponseCode();
+                    } catch (IOException e) {
+                        Message.debug("could not warm up a connection to " + url.getHost() + ": " + e.getMessage());
+                    } finally {
+                        release(con);
+                    }
+                }
+            });
+        }
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @param maxConnectionsPerHost The number of connections opened at the same time to a host, 0 for no limit
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        hostPermits.clear();
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getWarmUpConnections() {
+        return warmUpConnections;
+    }
+
+    /**
+     * @param warmUpConnections The number of connections opened in background to a host used after being idle
+     */
+    public void setWarmUpConnections(int warmUpConnections) {
+        this.warmUpConnections = warmUpConnections;
+    }
+
+    private Semaphore getHostPermits(String host) {
+        if (maxConnectionsPerHost <= 0) {
+            return null;
+        }
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(maxConnectionsPerHost);
+            permits = hostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Read what is left of the response, so that the connection goes back to the pool.
+     *
+     * @return false if the connection cannot be reused
+     */
+    private boolean drain(HttpURLConnection con) {
+        InputStream in;
+        try {
+            in = con.getInputStream();
+        } catch (IOException e) {
+            // No response, or an error response whose body is in the error stream
+            in = con.getErrorStream();
+        }
+        if (in == null) {
+            return true;
+        }
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int drained = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                drained += read;
+                if (drained > MAX_DRAIN_SIZE) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            // Already read and closed, or broken
+            return true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private static boolean isHttp(URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    private static String getHostKey(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.handler;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Opens the connections used by the {@link WharfUrlHandler}. An implementation may keep the connections open to send
+ * the next requests to the same host through them.
+ */
+public interface WharfTransport {
+    /**
+     * @param method The http request method, ignored for the other protocols
+     * @return A connection to the url, not connected yet
+     */
+    URLConnection open(URL url, String method) throws IOException;
+
+    /**
+     * Give back a connection once its response is read, or when the response will not be read.
+     */
+    void release(URLConnection con);
+
+    /**
+     * Open connections to the host of the url in background, ready for the next requests.
+     */
+    void warmUp(URL url);
+}
@@ -19,23 +19,34 @@
 package org.jfrog.wharf.ivy.handler;
 
 import org.apache.ivy.Ivy;
+import org.apache.ivy.util.CopyProgressEvent;
 import org.apache.ivy.util.CopyProgressListener;
 import org.apache.ivy.util.FileUtil;
 import org.apache.ivy.util.Message;
 import org.apache.ivy.util.url.BasicURLHandler;
 import org.apache.ivy.util.url.IvyAuthenticator;
 import org.apache.ivy.util.url.URLHandler;
+import org.jfrog.wharf.ivy.checksum.BackgroundChecksums;
 import org.jfrog.wharf.ivy.checksum.Checksum;
 import org.jfrog.wharf.ivy.checksum.ChecksumInputStream;
 import org.jfrog.wharf.ivy.checksum.ChecksumType;
+import org.jfrog.wharf.ivy.model.UrlMetadata;
 import org.jfrog.wharf.ivy.resource.WharfUrlResource;
-import org.jfrog.wharf.ivy.util.WharfCopyListener;
 import org.jfrog.wharf.ivy.util.WharfUtils;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
 
 /**
  * @author Tomer Cohen
@@ -48,19 +59,62 @@ public class WharfUrlHandler extends BasicURLHandler {
 
     public static TraceCounter tracer = null;
 
+    /**
+     * Set when a resource could not be checked, as opposed to being missing, by the current thread
+     */
+    private static final ThreadLocal<Boolean> accessError = new ThreadLocal<Boolean>();
+
     private static final int BUFFER_SIZE = 64 * 1024;
-    public static final WharfUrlInfo UNAVAILABLE = new WharfUrlInfo(false, 0, 0, "", "");
+    public static final WharfUrlInfo UNAVAILABLE = new WharfUrlInfo(false, 0, 0, "", "", false, null);
+
+    private WharfTransport transport = new KeepAliveTransport();
 
 
     private static final class HttpStatus {
         static final int SC_OK = 200;
 
+        static final int SC_PARTIAL_CONTENT = 206;
+
+        static final int SC_NOT_MODIFIED = 304;
+
+        static final int SC_NOT_FOUND = 404;
+
+        static final int SC_GONE = 410;
+
         static final int SC_PROXY_AUTHENTICATION_REQUIRED = 407;
 
+        static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
         private HttpStatus() {
         }
     }
 
+    /**
+     * Forget the access errors of the current thread, see {@link #hasAccessError()}.
+     */
+    public static void clearAccessError() {
+        accessError.remove();
+    }
+
+    /**
+     * @return true if a resource was unavailable for another reason than not existing (network or server error...)
+     *         since the last call to {@link #clearAccessError()} by the current thread.
+     */
+    public static boolean hasAccessError() {
+        return accessError.get() != null;
+    }
+
+    public WharfTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param transport The connections used for the requests, a {@link KeepAliveTransport} by default
+     */
+    public void setTransport(WharfTransport transport) {
+        this.transport = transport;
+    }
+
     @Override
     public WharfUrlInfo getURLInfo(URL url) {
         return getURLInfo(url, 0);
@@ -68,6 +122,20 @@ public class WharfUrlHandler extends BasicURLHandler {
 
     @Override
     public WharfUrlInfo getURLInfo(URL url, int timeout) {
+        return getURLInfo(url, timeout, null, false);
+    }
+
+    /**
+     * @param previous      What is known of the last response for this url, or null. No request is sent while it is
+     *                      fresh, and it is revalidated by a conditional request otherwise.
+     * @param checkModified true to revalidate the previous response even while it is fresh
+     * @return The url information, with the metadata to keep for the next check of an http url
+     */
+    public WharfUrlInfo getURLInfo(URL url, int timeout, UrlMetadata previous, boolean checkModified) {
+        if (previous != null && !checkModified && previous.isFresh(System.currentTimeMillis())) {
+            Message.debug("Not checking " + url + ": still fresh");
+            return new WharfUrlInfo(previous);
+        }
         // Install the IvyAuthenticator
         if ("http".equals(url.getProtocol()) || "https".equals(url.getProtocol())) {
             IvyAuthenticator.install();
@@ -75,68 +143,119 @@ public class WharfUrlHandler extends BasicURLHandler {
         URLConnection con = null;
         try {
             url = normalizeToURL(url);
-            con = url.openConnection();
+            String method = getRequestMethod() == URLHandler.REQUEST_METHOD_HEAD ? "HEAD" : "GET";
+            con = transport.open(url, method);
             if (con instanceof HttpURLConnection) {
                 con.setRequestProperty("User-Agent", "Wharf Ivy/" + Ivy.getIvyVersion());
                 HttpURLConnection httpCon = (HttpURLConnection) con;
-                if (getRequestMethod() == URLHandler.REQUEST_METHOD_HEAD) {
-                    httpCon.setRequestMethod("HEAD");
-                }
-                if (checkStatusCode(url, httpCon)) {
-                    String serverName = httpCon.getHeaderField("Server");
-                    String sha1;
-                    String md5;
-                    if (serverName != null && serverName.startsWith("Artifactory/")) {
-                        sha1 = getSha1FromHeader(httpCon);
-                        if (sha1 == null) {
-                            // force download of the artifact to populate checksums
-                            Message.debug("No sha1 tag found");
-                            File tempFile = File.createTempFile("temp", "orig");
-                            try {
-                                FileUtil.copy(url, tempFile, new WharfCopyListener());
-                            } finally {
-                                FileUtil.forceDelete(tempFile);
-                            }
-                            // get the checksum using extension to find file
-                            sha1 = getSha1WithExtension(url);
-                            md5 = getMd5WithExtension(url);
-                        } else {
-                            Message.debug("Sha1 tag found: " + sha1);
-                            md5 = getMd5FromHeader(httpCon);
+                if (previous != null) {
+                    if (!WharfUtils.isEmptyString(previous.etag)) {
+                        con.setRequestProperty("If-None-Match", previous.etag);
+                    }
+                    if (previous.lastModified > 0) {
+                        con.setIfModifiedSince(previous.lastModified);
+                    }
+                    if (httpCon.getResponseCode() == HttpStatus.SC_NOT_MODIFIED) {
+                        if (tracer != null) {
+                            tracer.add(httpCon.getRequestMethod() + " " + url.toExternalForm(),
+                                    HttpStatus.SC_NOT_MODIFIED);
                         }
-                    } else {
-                        //For non-artifactory ask for the sha1/md5 files
-                        sha1 = getSha1WithExtension(url);
-                        md5 = getMd5WithExtension(url);
+                        Message.debug("Not modified: " + url);
+                        UrlMetadata metadata = new UrlMetadata(previous);
+                        metadata.expires = getExpiration(httpCon);
+                        String etag = httpCon.getHeaderField("ETag");
+                        if (etag != null) {
+                            metadata.etag = etag;
+                        }
+                        return new WharfUrlInfo(metadata);
                     }
-                    return new WharfUrlInfo(true, httpCon.getContentLength(), con.getLastModified(), sha1, md5);
                 }
+                if (!checkStatusCode(url, httpCon)) {
+                    return UNAVAILABLE;
+                }
+                String serverName = httpCon.getHeaderField("Server");
+                boolean artifactory = serverName != null && serverName.startsWith("Artifactory/");
+                String sha1 = artifactory ? getSha1FromHeader(httpCon) : null;
+                String md5 = artifactory ? getMd5FromHeader(httpCon) : null;
+                long contentLength = httpCon.getContentLength();
+                long lastModified = con.getLastModified();
+                String etag = httpCon.getHeaderField("ETag");
+                long expires = getExpiration(httpCon);
+                UrlMetadata metadata = null;
+                // Without validators nor freshness there is nothing worth remembering until the next check
+                if (!WharfUtils.isEmptyString(etag) || lastModified > 0 || expires != 0) {
+                    metadata = new UrlMetadata();
+                    metadata.etag = etag;
+                    metadata.lastModified = lastModified;
+                    metadata.contentLength = contentLength;
+                    metadata.expires = expires;
+                    metadata.sha1 = sha1;
+                    metadata.md5 = md5;
+                }
+                // Give the connection back before the next requests to the same host
+                transport.release(con);
+                con = null;
+                // Artifactory publishes the checksums of a remote artifact once it has downloaded it
+                boolean downloadFirst = artifactory && sha1 == null;
+                if (downloadFirst) {
+                    Message.debug("No sha1 tag found");
+                } else if (artifactory) {
+                    Message.debug("Sha1 tag found: " + sha1);
+                }
+                // The checksum files are requested on demand, see getRemoteChecksum
+                return new WharfUrlInfo(true, contentLength, lastModified, sha1, md5, downloadFirst, metadata);
             } else {
                 int contentLength = con.getContentLength();
                 if (contentLength <= 0) {
                     return UNAVAILABLE;
                 } else {
-                    URL fileUrl = con.getURL();
-                    String sha1 = getSha1WithExtension(fileUrl);
-                    String md5 = getMd5WithExtension(fileUrl);
-                    return new WharfUrlInfo(true, contentLength, con.getLastModified(), sha1, md5);
+                    return new WharfUrlInfo(true, contentLength, con.getLastModified(), null, null, false, null);
                 }
             }
         } catch (UnknownHostException e) {
+            accessError.set(Boolean.TRUE);
             Message.warn("Host " + e.getMessage() + " not found. url=" + url);
             Message.info("You probably access the destination server through "
                     + "a proxy server that is not well configured.");
         } catch (IOException e) {
+            accessError.set(Boolean.TRUE);
             Message.error("Server access Error: " + e.getMessage() + " url=" + url);
         } finally {
-            disconnect(con);
+            if (con != null) {
+                transport.release(con);
+            }
         }
         return UNAVAILABLE;
     }
 
     public void download(WharfUrlResource res, File dest, CopyProgressListener l) throws IOException {
-        FileWithChecksumStreamHandler handler = new FileWithChecksumStreamHandler(dest, l);
-        internalDownload(res.getUrl(), handler);
+        download(res, dest, l, EnumSet.allOf(ChecksumType.class));
+    }
+
+    /**
+     * @param checksumTypes The checksums to calculate while downloading, the actual checksums of the resource
+     */
+    public void download(WharfUrlResource res, File dest, CopyProgressListener l, Set<ChecksumType> checksumTypes)
+            throws IOException {
+        download(res, dest, l, checksumTypes, false);
+    }
+
+    /**
+     * @param resume true if dest holds the first bytes of the resource, only the rest is then requested if the server
+     *               still has the same version of it, and the checksums are computed over the whole file
+     */
+    public void download(WharfUrlResource res, File dest, CopyProgressListener l, Set<ChecksumType> checksumTypes,
+            boolean resume) throws IOException {
+        FileWithChecksumStreamHandler handler = new FileWithChecksumStreamHandler(dest, l, checksumTypes);
+        String validator = null;
+        if (resume && dest.length() > 0) {
+            validator = getRangeValidator(res.getUrlMetadata());
+        }
+        if (validator == null) {
+            internalDownload(res.getUrl(), handler);
+        } else {
+            internalDownload(res.getUrl(), handler, dest.length(), validator);
+        }
         for (Checksum checksum : handler.getChecksums()) {
             res.getActual().put(checksum.getType(), checksum.getChecksum());
         }
@@ -148,6 +267,15 @@ public class WharfUrlHandler extends BasicURLHandler {
     }
 
     private void internalDownload(URL src, StreamHandler handler) throws IOException {
+        internalDownload(src, handler, 0, null);
+    }
+
+    /**
+     * @param offset    The number of bytes already downloaded, only the next ones are requested if not 0
+     * @param validator The ETag or Last-Modified date of the version the downloaded bytes belong to
+     */
+    private void internalDownload(URL src, StreamHandler handler, long offset, String validator)
+            throws IOException {
         // Install the IvyAuthenticator
         if ("http".equals(src.getProtocol()) || "https".equals(src.getProtocol())) {
             IvyAuthenticator.install();
@@ -157,12 +285,38 @@ public class WharfUrlHandler extends BasicURLHandler {
         URLConnection srcConn = null;
         try {
             src = normalizeToURL(src);
-            srcConn = src.openConnection();
+            srcConn = transport.open(src, "GET");
             srcConn.setRequestProperty("User-Agent", "Apache Ivy/" + Ivy.getIvyVersion());
-            srcConn.setRequestProperty("Accept-Encoding", "gzip,deflate");
+            boolean ranged = offset > 0 && srcConn instanceof HttpURLConnection;
+            if (ranged) {
+                // The range applies to the encoded content, so ask for the plain one
+                srcConn.setRequestProperty("Range", "bytes=" + offset + "-");
+                srcConn.setRequestProperty("If-Range", validator);
+            } else {
+                srcConn.setRequestProperty("Accept-Encoding", "gzip,deflate");
+            }
             if (srcConn instanceof HttpURLConnection) {
                 HttpURLConnection httpCon = (HttpURLConnection) srcConn;
-                if (!checkStatusCode(src, httpCon)) {
+                if (ranged && httpCon.getResponseCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+                    if (tracer != null) {
+                        tracer.add(httpCon.getRequestMethod() + " " + src.toExternalForm(),
+                                HttpStatus.SC_PARTIAL_CONTENT);
+                    }
+                    if (!isRangeFrom(httpCon, offset) || !(handler instanceof FileStreamHandler)) {
+                        Message.verbose("Unexpected range received for " + src + ": downloading it all");
+                        transport.release(srcConn);
+                        srcConn = null;
+                        internalDownload(src, handler);
+                        return;
+                    }
+                    ((FileStreamHandler) handler).resumeFrom(offset);
+                } else if (ranged && httpCon.getResponseCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    Message.verbose("Range not satisfiable for " + src + ": downloading it all");
+                    transport.release(srcConn);
+                    srcConn = null;
+                    internalDownload(src, handler);
+                    return;
+                } else if (!checkStatusCode(src, httpCon)) {
                     throw new IOException(
                             "The HTTP response code for " + src + " did not indicate a success."
                                     + " See log for more detail.");
@@ -173,7 +327,9 @@ public class WharfUrlHandler extends BasicURLHandler {
             inStream = getDecodingInputStream(srcConn.getContentEncoding(), srcConn.getInputStream());
             handler.handleStream(srcConn, inStream);
         } finally {
-            disconnect(srcConn);
+            if (srcConn != null) {
+                transport.release(srcConn);
+            }
         }
     }
 
@@ -196,6 +352,10 @@ public class WharfUrlHandler extends BasicURLHandler {
     static class FileStreamHandler implements StreamHandler {
         final File destFile;
         final CopyProgressListener progressListener;
+        /**
+         * The number of bytes of destFile kept, the stream being the rest of the content
+         */
+        long offset;
 
         FileStreamHandler(File destFile, CopyProgressListener progressListener) {
             this.destFile = destFile;
@@ -204,11 +364,18 @@ public class WharfUrlHandler extends BasicURLHandler {
 
         public void handleStream(URLConnection srcConn, InputStream inStream) throws IOException {
             FileUtil.copy(inStream, destFile, progressListener);
+            checkDownloadedFile(srcConn);
+        }
+
+        void resumeFrom(long offset) {
+            this.offset = offset;
+        }
 
+        void checkDownloadedFile(URLConnection srcConn) throws IOException {
             // check content length only if content was not encoded
             if (srcConn.getContentEncoding() == null) {
                 int contentLength = srcConn.getContentLength();
-                if (contentLength != -1 && destFile.length() != contentLength) {
+                if (contentLength != -1 && destFile.length() != offset + contentLength) {
                     destFile.delete();
                     throw new IOException(
                             "Downloaded file size doesn't match expected Content Length for " + srcConn.getURL()
@@ -227,21 +394,83 @@ public class WharfUrlHandler extends BasicURLHandler {
     static class FileWithChecksumStreamHandler extends FileStreamHandler {
         private final Checksum[] checksums;
 
-        FileWithChecksumStreamHandler(File destFile, CopyProgressListener progressListener) {
+        FileWithChecksumStreamHandler(File destFile, CopyProgressListener progressListener,
+                Set<ChecksumType> checksumTypes) {
             super(destFile, progressListener);
-            // On download always calculate all checksums
-            ChecksumType[] checksumTypes = ChecksumType.values();
-            checksums = new Checksum[checksumTypes.length];
-            int i = 0;
-            for (ChecksumType checksumType : checksumTypes) {
-                checksums[i] = new Checksum(checksumType);
-                i++;
-            }
+            checksums = Checksum.create(checksumTypes);
         }
 
+        /**
+         * The checksums are computed from the buffers written to the file, so that the file is never read back. Large
+         * files are digested on a helper thread while the next buffers are downloaded.
+         */
         @Override
         public void handleStream(URLConnection srcConn, InputStream inStream) throws IOException {
-            super.handleStream(srcConn, new ChecksumInputStream(inStream, checksums));
+            if (offset > 0) {
+                Checksum.update(destFile, offset, checksums);
+            }
+            BackgroundChecksums background = null;
+            InputStream in = inStream;
+            if (checksums.length > 0 && srcConn.getContentLength() > BackgroundChecksums.MIN_SIZE) {
+                background = new BackgroundChecksums(BUFFER_SIZE, checksums);
+            } else {
+                in = new ChecksumInputStream(inStream, checksums);
+            }
+            boolean done = false;
+            FileOutputStream out = new FileOutputStream(destFile, offset > 0);
+            try {
+                FileChannel channel = out.getChannel();
+                byte[] buffer = background == null ? new byte[BUFFER_SIZE] : null;
+                long total = offset;
+                if (progressListener != null) {
+                    progressListener.start(new CopyProgressEvent());
+                }
+                while (true) {
+                    if (background != null) {
+                        buffer = background.nextBuffer();
+                    }
+                    int read = in.read(buffer, 0, buffer.length);
+                    if (read == -1) {
+                        break;
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new IOException("transfer interrupted");
+                    }
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                    while (byteBuffer.hasRemaining()) {
+                        channel.write(byteBuffer);
+                    }
+                    total += read;
+                    if (progressListener != null) {
+                        progressListener.progress(new CopyProgressEvent(buffer, read, total));
+                    }
+                    if (background != null) {
+                        background.update(read);
+                    }
+                }
+                if (progressListener != null) {
+                    progressListener.end(new CopyProgressEvent(buffer, total));
+                }
+                done = true;
+            } finally {
+                // The digester must always be ended, it would otherwise wait for the next buffer forever
+                try {
+                    if (background != null) {
+                        if (done) {
+                            background.finish();
+                        } else {
+                            background.abort();
+                        }
+                    }
+                } finally {
+                    try {
+                        out.close();
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+            checkDownloadedFile(srcConn);
         }
 
         public Checksum[] getChecksums() {
@@ -249,12 +478,18 @@ public class WharfUrlHandler extends BasicURLHandler {
         }
     }
 
-    private String getSha1WithExtension(URL url) throws IOException {
-        return getChecksumFromExtraFile(ChecksumType.sha1, url);
-    }
-
-    private String getMd5WithExtension(URL url) throws IOException {
-        return getChecksumFromExtraFile(ChecksumType.md5, url);
+    /**
+     * Read the checksum published next to the resource, in the file with the checksum extension.
+     *
+     * @return The checksum value, or null if not published
+     */
+    public String getRemoteChecksum(URL url, ChecksumType checksumType) {
+        try {
+            return getChecksumFromExtraFile(checksumType, normalizeToURL(url));
+        } catch (IOException e) {
+            Message.debug(checksumType.alg() + " not found for " + url + " due to: " + e.getMessage());
+            return null;
+        }
     }
 
     private String getChecksumFromExtraFile(ChecksumType checksumType, URL url) throws IOException {
@@ -283,11 +518,20 @@ public class WharfUrlHandler extends BasicURLHandler {
     public static class WharfUrlInfo extends URLInfo {
         private final String sha1;
         private final String md5;
+        private final boolean downloadNeededForChecksums;
+        private final UrlMetadata metadata;
 
-        private WharfUrlInfo(boolean available, long contentLength, long lastModified, String sha1, String md5) {
+        private WharfUrlInfo(boolean available, long contentLength, long lastModified, String sha1, String md5,
+                boolean downloadNeededForChecksums, UrlMetadata metadata) {
             super(available, contentLength, lastModified);
             this.sha1 = sha1;
             this.md5 = md5;
+            this.downloadNeededForChecksums = downloadNeededForChecksums;
+            this.metadata = metadata;
+        }
+
+        private WharfUrlInfo(UrlMetadata metadata) {
+            this(true, metadata.contentLength, metadata.lastModified, metadata.sha1, metadata.md5, false, metadata);
         }
 
         public String getSha1() {
@@ -297,6 +541,20 @@ public class WharfUrlHandler extends BasicURLHandler {
         public String getMd5() {
             return md5;
         }
+
+        /**
+         * @return true if the server publishes the checksums only once the resource was downloaded
+         */
+        public boolean isDownloadNeededForChecksums() {
+            return downloadNeededForChecksums;
+        }
+
+        /**
+         * @return What to remember of the response until the next check, null if the url has no validators
+         */
+        public UrlMetadata getMetadata() {
+            return metadata;
+        }
     }
 
     private String getSha1FromHeader(HttpURLConnection httpCon) {
@@ -311,72 +569,59 @@ public class WharfUrlHandler extends BasicURLHandler {
         return httpCon.getHeaderField("X-Checksum-Md5");
     }
 
-    private void disconnect(URLConnection con) {
-        if (con instanceof HttpURLConnection) {
-            if (!"HEAD".equals(((HttpURLConnection) con).getRequestMethod())) {
-                // We must read the response body before disconnecting!
-                // Cfr. http://java.sun.com/j2se/1.5.0/docs/guide/net/http-keepalive.html
-                // [quote]Do not abandon a connection by ignoring the response body. Doing
-                // so may results in idle TCP connections.[/quote]
-                readResponseBody((HttpURLConnection) con);
-            }
-
-            ((HttpURLConnection) con).disconnect();
-        } else if (con != null) {
-            try {
-                InputStream is = con.getInputStream();
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
-                // ignored
-            }
+    /**
+     * @return The validator to send as If-Range, the strong ETag or else the Last-Modified date, null if none
+     */
+    private static String getRangeValidator(UrlMetadata metadata) {
+        if (metadata == null) {
+            return null;
         }
+        if (!WharfUtils.isEmptyString(metadata.etag) && !metadata.etag.startsWith("W/")) {
+            return metadata.etag;
+        }
+        if (metadata.lastModified > 0) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(new Date(metadata.lastModified));
+        }
+        return null;
+    }
+
+    private static boolean isRangeFrom(HttpURLConnection con, long offset) {
+        String contentRange = con.getHeaderField("Content-Range");
+        return contentRange != null && contentRange.trim().startsWith("bytes " + offset + "-");
     }
 
     /**
-     * Read and ignore the response body.
+     * @return The time until which the response is fresh according to its Cache-Control or Expires header, 0 if it
+     *         should be revalidated
      */
-    private void readResponseBody(HttpURLConnection conn) {
-        byte[] buffer = new byte[BUFFER_SIZE];
-
-        InputStream inStream = null;
-        try {
-            inStream = conn.getInputStream();
-            while (inStream.read(buffer) > 0) {
-                //Skip content
-            }
-        } catch (IOException e) {
-            // ignore
-        } finally {
-            if (inStream != null) {
-                try {
-                    inStream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-        }
-
-        InputStream errStream = conn.getErrorStream();
-        if (errStream != null) {
-            try {
-                while (errStream.read(buffer) > 0) {
-                    //Skip content
+    private static long getExpiration(HttpURLConnection con) {
+        long now = System.currentTimeMillis();
+        String cacheControl = con.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if ("no-cache".equals(directive) || "no-store".equals(directive)) {
+                    return 0;
                 }
-            } catch (IOException e) {
-                // ignore
-            } finally {
-                try {
-                    errStream.close();
-                } catch (IOException e) {
-                    // ignore
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
                 }
             }
+            if (maxAge >= 0) {
+                return maxAge > 0 ? now + maxAge * 1000L : 0;
+            }
         }
+        long expires = con.getExpiration();
+        return expires > now ? expires : 0;
     }
 
-
     private boolean checkStatusCode(URL url, HttpURLConnection con) throws IOException {
         int status = con.getResponseCode();
         if (tracer != null) {
@@ -386,6 +631,9 @@ public class WharfUrlHandler extends BasicURLHandler {
             return true;
         }
         Message.debug("HTTP response status: " + status + " url=" + url);
+        if (status != HttpStatus.SC_NOT_FOUND && status != HttpStatus.SC_GONE) {
+            accessError.set(Boolean.TRUE);
+        }
         if (status == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
             Message.warn("Your proxy requires authentication.");
         } else if (String.valueOf(status).startsWith("4")) {
@@ -22,6 +22,9 @@ package org.jfrog.wharf.ivy.marshall.api;
 import org.jfrog.wharf.ivy.lock.LockHolderFactory;
 import org.jfrog.wharf.ivy.marshall.jackson.JacksonMarshallerProvider;
 import org.jfrog.wharf.ivy.marshall.kryo.KryoMarshallerProvider;
+import org.jfrog.wharf.ivy.marshall.kryo.KryoStoreMarshallerProvider;
+
+import java.io.File;
 
 /**
  * @author Tomer Cohen
@@ -35,16 +38,27 @@ public abstract class MarshallerFactory {
     }
 
     /**
-     * @return kryo or jackson depending on wharf.marshallType property, the default is kryo.
+     * @return kryo, store or jackson depending on wharf.marshallType property, the default is kryo.
      */
     public static String getMarshallerType() {
         return System.getProperty(WHARF_MARSHALL_TYPE, "kryo");
     }
 
     public static MarshallerProvider getMarshallerProvider(LockHolderFactory lockFactory) {
+        return getMarshallerProvider(null, lockFactory);
+    }
+
+    /**
+     * @param baseDir     The cache base dir, needed by the store marshaller type which keeps all the metadata in one file
+     *                    under it
+     * @param lockFactory The lock factory of the cache
+     */
+    public static MarshallerProvider getMarshallerProvider(File baseDir, LockHolderFactory lockFactory) {
         String marshallerType = getMarshallerType();
         if ("kryo".equals(marshallerType)) {
             return new KryoMarshallerProvider(lockFactory);
+        } else if ("store".equals(marshallerType)) {
+            return new KryoStoreMarshallerProvider(baseDir, lockFactory);
         } else if ("jackson".equals(marshallerType)) {
             return new JacksonMarshallerProvider();
         } else {
@@ -61,6 +75,10 @@ public abstract class MarshallerFactory {
         return getMarshallerProvider(lockFactory).getMetadataMarshaller();
     }
 
+    public static MrmMarshaller createMetadataMarshaller(File baseDir, LockHolderFactory lockFactory) {
+        return getMarshallerProvider(baseDir, lockFactory).getMetadataMarshaller();
+    }
+
     public static WharfResolverMarshaller createWharfResolverMarshaller(LockHolderFactory lockFactory) {
         return getMarshallerProvider(lockFactory).getWharfResolverMarshaller();
     }
@@ -0,0 +1,58 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.marshall.api;
+
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+
+import java.io.File;
+
+/**
+ * A metadata marshaller which can tell cheaply if the metadata stored for a data file changed, without reading it.
+ */
+public interface StampedMrmMarshaller extends MrmMarshaller {
+
+    /**
+     * @param file The data file of the module revision
+     * @return A value changing each time the metadata of this data file is saved, 0 if there are no metadata or if the
+     *         stamp cannot be known
+     */
+    long getStamp(File file);
+
+    /**
+     * Read the metadata and their stamp at once, a save by another process cannot come in between.
+     *
+     * @param file The data file of the module revision
+     * @return The metadata with their stamp, null if there are no metadata
+     */
+    StampedMetadata getModuleRevisionMetadataWithStamp(File file);
+
+    /**
+     * The metadata of a data file with the stamp they were read at.
+     */
+    class StampedMetadata {
+        public final ModuleRevisionMetadata mrm;
+        public final long stamp;
+
+        public StampedMetadata(ModuleRevisionMetadata mrm, long stamp) {
+            this.mrm = mrm;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -43,4 +43,20 @@ public interface WharfResolverMarshaller {
      * @return The de-serialised object.
      */
     public Set<WharfResolverMetadata> getWharfMetadatas(File baseDir);
+
+    /**
+     * Add the given wharf resolver metadatas to the ones already stored, which may have been written by another
+     * process, and store the result.
+     *
+     * @param baseDir   The basedir of where to store the serialized file.
+     * @param additions The metadatas to add.
+     * @return All the stored metadatas.
+     */
+    public Set<WharfResolverMetadata> merge(File baseDir, Set<WharfResolverMetadata> additions);
+
+    /**
+     * @param baseDir The basedir of where the serialized file is stored.
+     * @return The file containing the serialized metadatas.
+     */
+    public File getResolversFile(File baseDir);
 }
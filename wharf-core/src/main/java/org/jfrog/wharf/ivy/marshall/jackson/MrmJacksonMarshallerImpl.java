@@ -24,8 +24,12 @@ import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
 import org.jfrog.wharf.ivy.marshall.api.MrmMarshaller;
 import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * @author Tomer Cohen
@@ -36,51 +40,37 @@ public class MrmJacksonMarshallerImpl implements MrmMarshaller {
             "[organisation]/[module](/[branch])/wharfdata-[revision].json";
 
     public ModuleRevisionMetadata getModuleRevisionMetadata(File file) {
-        if (file.exists()) {
-            InputStream inputStream = null;
-            try {
-                inputStream = new FileInputStream(file);
-                JsonParser jsonParser = JacksonFactory.createJsonParser(inputStream);
-                return jsonParser.readValueAs(ModuleRevisionMetadata.class);
-            } catch (IOException e) {
-                Message.error("Error loading module revision metadata file: " + file.getAbsolutePath());
-                // Delete the file (send exception if delete impossible) and returns null
-                file.delete();
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
-        } else {
+        byte[] content;
+        try {
+            content = AtomicFileHelper.read(file);
+        } catch (IOException ioe) {
+            // Keep the file, it may just be replaced right now
+            Message.error("Error loading module revision metadata file: " + file.getAbsolutePath() + ": " +
+                    ioe.getMessage());
+            return null;
+        }
+        if (content == null) {
             Message.debug("File: " + file.getAbsolutePath() + " was not found");
+            return null;
+        }
+        try {
+            JsonParser jsonParser = JacksonFactory.createJsonParser(new ByteArrayInputStream(content));
+            return jsonParser.readValueAs(ModuleRevisionMetadata.class);
+        } catch (IOException e) {
+            AtomicFileHelper.moveAside(file, e.getMessage());
+            return null;
         }
-        return null;
     }
 
     public void save(ModuleRevisionMetadata mrm, File file) {
-        OutputStream stream = null;
         try {
-            File dir = file.getParentFile();
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            stream = new FileOutputStream(file);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
             JsonGenerator generator = JacksonFactory.createJsonGenerator(stream);
             generator.writeObject(mrm);
+            generator.close();
+            AtomicFileHelper.write(file, stream.toByteArray());
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
         }
     }
 
@@ -24,8 +24,12 @@ import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.type.TypeReference;
 import org.jfrog.wharf.ivy.marshall.api.WharfResolverMarshaller;
 import org.jfrog.wharf.ivy.model.WharfResolverMetadata;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -35,28 +39,29 @@ import java.util.Set;
 public class WharfJacksonResolverMarshallerImpl implements WharfResolverMarshaller {
     private static final String RESOLVERS_FILE_PATH = ".wharf/resolvers.json";
 
+    /**
+     * This marshaller has no file lock, merges are only serialized inside this process
+     */
+    private static final Object mergeLock = new Object();
+
     public Set<WharfResolverMetadata> getWharfMetadatas(File baseDir) {
-        File resolversFile = new File(baseDir, RESOLVERS_FILE_PATH);
-        if (resolversFile.exists()) {
-            InputStream stream = null;
-            try {
-                stream = new FileInputStream(resolversFile);
-                JsonParser jsonParser = JacksonFactory.createJsonParser(stream);
-                return jsonParser.readValueAs(new TypeReference<Set<WharfResolverMetadata>>() {
+        File resolversFile = getResolversFile(baseDir);
+        byte[] content;
+        try {
+            content = AtomicFileHelper.read(resolversFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (content == null) {
+            return new HashSet<WharfResolverMetadata>();
+        }
+        try {
+            JsonParser jsonParser = JacksonFactory.createJsonParser(new ByteArrayInputStream(content));
+            return jsonParser.readValueAs(new TypeReference<Set<WharfResolverMetadata>>() {
 
-                });
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } finally {
-                if ((stream != null)) {
-                    try {
-                        stream.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
-        } else {
+            });
+        } catch (IOException e) {
+            AtomicFileHelper.moveAside(resolversFile, e.getMessage());
             return new HashSet<WharfResolverMetadata>();
         }
     }
@@ -65,27 +70,29 @@ public class WharfJacksonResolverMarshallerImpl implements WharfResolverMarshall
         return RESOLVERS_FILE_PATH;
     }
 
+    public File getResolversFile(File baseDir) {
+        return new File(baseDir, RESOLVERS_FILE_PATH);
+    }
+
     public void save(File baseDir, Set<WharfResolverMetadata> wharfResolverMetadatas) {
-        File resolversFile = new File(baseDir, RESOLVERS_FILE_PATH);
-        OutputStream stream = null;
         try {
-            File dir = resolversFile.getParentFile();
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            stream = new FileOutputStream(resolversFile);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
             JsonGenerator generator = JacksonFactory.createJsonGenerator(stream);
             generator.writeObject(wharfResolverMetadatas);
+            generator.close();
+            AtomicFileHelper.write(getResolversFile(baseDir), stream.toByteArray());
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
+        }
+    }
+
+    public Set<WharfResolverMetadata> merge(File baseDir, Set<WharfResolverMetadata> additions) {
+        synchronized (mergeLock) {
+            Set<WharfResolverMetadata> metadatas = getWharfMetadatas(baseDir);
+            if (metadatas.addAll(additions)) {
+                save(baseDir, metadatas);
             }
+            return metadatas;
         }
     }
 }
@@ -42,7 +42,7 @@ abstract class KryoFactory {
         return new ObjectBuffer(getKryoResolver());
     }
 
-    private static Kryo getKryoResolver() {
+    private static synchronized Kryo getKryoResolver() {
         if (kryoResolver == null) {
             kryoResolver = new Kryo();
             kryoResolver.register(WharfResolverMetadata.class);
@@ -57,7 +57,7 @@ abstract class KryoFactory {
         return new ObjectBuffer(getKryoMridMetadata());
     }
 
-    private static Kryo getKryoMridMetadata() {
+    private static synchronized Kryo getKryoMridMetadata() {
         if (kryoMridMetadata == null) {
             kryoMridMetadata = new Kryo();
             kryoMridMetadata.register(ModuleRevisionMetadata.class);
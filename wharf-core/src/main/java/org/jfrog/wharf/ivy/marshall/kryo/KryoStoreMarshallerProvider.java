@@ -0,0 +1,52 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.marshall.kryo;
+
+
+import org.jfrog.wharf.ivy.lock.LockHolderFactory;
+import org.jfrog.wharf.ivy.marshall.api.MarshallerProvider;
+import org.jfrog.wharf.ivy.marshall.api.MrmMarshaller;
+import org.jfrog.wharf.ivy.marshall.api.WharfResolverMarshaller;
+
+import java.io.File;
+
+/**
+ * Kryo marshalling with all the module revision metadata in a single store file.
+ */
+public class KryoStoreMarshallerProvider implements MarshallerProvider {
+    private final File baseDir;
+    private final LockHolderFactory lockFactory;
+
+    public KryoStoreMarshallerProvider(File baseDir, LockHolderFactory lockFactory) {
+        this.baseDir = baseDir;
+        this.lockFactory = lockFactory;
+    }
+
+    public MrmMarshaller getMetadataMarshaller() {
+        if (baseDir == null) {
+            throw new IllegalStateException("The store metadata marshaller needs the cache base dir");
+        }
+        return new MrmKryoStoreMarshallerImpl(baseDir);
+    }
+
+    public WharfResolverMarshaller getWharfResolverMarshaller() {
+        return new WharfKryoResolverMarshaller(lockFactory);
+    }
+}
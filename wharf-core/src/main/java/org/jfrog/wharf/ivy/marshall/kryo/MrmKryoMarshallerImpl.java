@@ -20,11 +20,14 @@ package org.jfrog.wharf.ivy.marshall.kryo;
 
 
 import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
 import org.apache.ivy.util.Message;
 import org.jfrog.wharf.ivy.marshall.api.MrmMarshaller;
 import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * @author Tomer Cohen
@@ -35,52 +38,34 @@ public class MrmKryoMarshallerImpl implements MrmMarshaller {
             "[organisation]/[module](/[branch])/wharfdata-[revision].kryo";
 
     public ModuleRevisionMetadata getModuleRevisionMetadata(File file) {
-        if (file.exists()) {
-            InputStream inputStream = null;
-            try {
-                inputStream = new FileInputStream(file);
-                ObjectBuffer buffer =
-                        KryoFactory.createModuleRevisionMetadataObjectBuffer();
-                return buffer.readObject(inputStream, ModuleRevisionMetadata.class);
-            } catch (IOException ioe) {
-                Message.error("Error loading module revision metadata file: " + file.getAbsolutePath());
-                // Delete the file (send exception if delete impossible) and returns null
-                file.delete();
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
-        } else {
+        byte[] content;
+        try {
+            content = AtomicFileHelper.read(file);
+        } catch (IOException ioe) {
+            // Keep the file, it may just be replaced right now
+            Message.error("Error loading module revision metadata file: " + file.getAbsolutePath() + ": " +
+                    ioe.getMessage());
+            return null;
+        }
+        if (content == null) {
             Message.debug("File: " + file.getAbsolutePath() + " was not found");
+            return null;
+        }
+        try {
+            ObjectBuffer buffer = KryoFactory.createModuleRevisionMetadataObjectBuffer();
+            return buffer.readObject(content, ModuleRevisionMetadata.class);
+        } catch (SerializationException e) {
+            AtomicFileHelper.moveAside(file, e.getMessage());
+            return null;
         }
-        return null;
     }
 
     public void save(ModuleRevisionMetadata mrm, File file) {
-        OutputStream stream = null;
         try {
-            File dir = file.getParentFile();
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            stream = new FileOutputStream(file);
             ObjectBuffer buffer = KryoFactory.createModuleRevisionMetadataObjectBuffer();
-            buffer.writeObject(stream, mrm);
+            AtomicFileHelper.write(file, buffer.writeObject(mrm));
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
         }
     }
 
@@ -0,0 +1,165 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.marshall.kryo;
+
+
+import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.marshall.api.StampedMrmMarshaller;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.jfrog.wharf.ivy.store.IndexedMetadataStore;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps all the module revision metadata of a cache in a single {@link IndexedMetadataStore} under
+ * basedir/.wharf instead of one wharfdata file per revision. The data files computed from the data file pattern are
+ * only used as keys (relative to the cache base dir) and for locking.<p/>
+ * Existing wharfdata-[revision].kryo files are imported on first read and then deleted, {@link #migrateAll()} can be
+ * used to import the whole cache at once.
+ */
+public class MrmKryoStoreMarshallerImpl implements StampedMrmMarshaller, Closeable {
+
+    public static final String STORE_FILE_NAME = ".wharf/wharfdata.store";
+
+    private final File baseDir;
+    private final IndexedMetadataStore store;
+    private final MrmKryoMarshallerImpl legacyMarshaller = new MrmKryoMarshallerImpl();
+
+    public MrmKryoStoreMarshallerImpl(File baseDir) {
+        this.baseDir = baseDir.getAbsoluteFile();
+        this.store = IndexedMetadataStore.open(new File(this.baseDir, STORE_FILE_NAME));
+    }
+
+    public IndexedMetadataStore getStore() {
+        return store;
+    }
+
+    public ModuleRevisionMetadata getModuleRevisionMetadata(File file) {
+        StampedMetadata stamped = getModuleRevisionMetadataWithStamp(file);
+        return stamped == null ? null : stamped.mrm;
+    }
+
+    public StampedMetadata getModuleRevisionMetadataWithStamp(File file) {
+        String key = getKey(file);
+        IndexedMetadataStore.StampedValue stamped = store.getWithStamp(key);
+        if (stamped == null) {
+            if (file.exists()) {
+                ModuleRevisionMetadata mrm = migrate(key, file);
+                // The stamp of the migrated metadata is not known
+                return mrm == null ? null : new StampedMetadata(mrm, 0L);
+            }
+            Message.debug("No module revision metadata for: " + key);
+            return null;
+        }
+        try {
+            ObjectBuffer buffer = KryoFactory.createModuleRevisionMetadataObjectBuffer();
+            return new StampedMetadata(buffer.readObject(stamped.value, ModuleRevisionMetadata.class), stamped.stamp);
+        } catch (SerializationException e) {
+            // Kept in the store, it is replaced on next save
+            Message.error("Error loading module revision metadata: " + key + " from " +
+                    store.getStoreFile().getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void save(ModuleRevisionMetadata mrm, File file) {
+        ObjectBuffer buffer = KryoFactory.createModuleRevisionMetadataObjectBuffer();
+        store.put(getKey(file), buffer.writeObject(mrm));
+        if (AtomicFileHelper.getSyncPolicy() == AtomicFileHelper.SyncPolicy.ALWAYS) {
+            store.force();
+        }
+        if (file.exists()) {
+            // The legacy file is now out of date
+            file.delete();
+        }
+    }
+
+    public long getStamp(File file) {
+        return store.getStamp(getKey(file));
+    }
+
+    public String getDataFilePattern() {
+        return legacyMarshaller.getDataFilePattern();
+    }
+
+    /**
+     * Import all the legacy wharfdata files found under the base dir in the store.
+     *
+     * @return The number of imported files
+     */
+    public int migrateAll() {
+        return migrateDir(baseDir);
+    }
+
+    private int migrateDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int migrated = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!file.getName().startsWith(".")) {
+                    migrated += migrateDir(file);
+                }
+            } else if (file.getName().startsWith("wharfdata-") && file.getName().endsWith(".kryo")) {
+                if (migrate(getKey(file), file) != null) {
+                    migrated++;
+                }
+            }
+        }
+        return migrated;
+    }
+
+    private ModuleRevisionMetadata migrate(String key, File file) {
+        ModuleRevisionMetadata mrm = legacyMarshaller.getModuleRevisionMetadata(file);
+        if (mrm != null) {
+            if (store.get(key) == null) {
+                ObjectBuffer buffer = KryoFactory.createModuleRevisionMetadataObjectBuffer();
+                store.put(key, buffer.writeObject(mrm));
+            }
+            Message.verbose("Migrated module revision metadata " + file.getAbsolutePath() + " to " +
+                    store.getStoreFile().getAbsolutePath());
+            file.delete();
+        }
+        return mrm;
+    }
+
+    private String getKey(File file) {
+        String path = file.getAbsolutePath();
+        String base = baseDir.getPath();
+        if (path.startsWith(base) && path.length() > base.length()) {
+            path = path.substring(base.length() + 1);
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+
+    public void close() throws IOException {
+        if (AtomicFileHelper.getSyncPolicy() != AtomicFileHelper.SyncPolicy.NEVER) {
+            store.force();
+        }
+        store.close();
+    }
+}
@@ -20,17 +20,22 @@ package org.jfrog.wharf.ivy.marshall.kryo;
 
 
 import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
 import org.jfrog.wharf.ivy.lock.LockHolder;
 import org.jfrog.wharf.ivy.lock.LockHolderFactory;
 import org.jfrog.wharf.ivy.marshall.api.WharfResolverMarshaller;
 import org.jfrog.wharf.ivy.model.WharfResolverMetadata;
-import org.jfrog.wharf.ivy.util.WharfUtils;
+import org.jfrog.wharf.ivy.util.AtomicFileHelper;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
+ * The resolvers file is always replaced atomically, so it is read without taking its lock. The lock only serializes
+ * the writers.
+ *
  * @author Tomer Cohen
  */
 public class WharfKryoResolverMarshaller implements WharfResolverMarshaller {
@@ -43,58 +48,66 @@ public class WharfKryoResolverMarshaller implements WharfResolverMarshaller {
     }
 
     public void save(File baseDir, Set<WharfResolverMetadata> wharfResolverMetadatas) {
-        LockHolder lockHolder = getLockHolder(baseDir);
-        OutputStream stream = null;
-        boolean locked = false;
+        LockHolder lockHolder = acquireLock(baseDir);
         try {
-            locked = lockHolder.acquireLock();
-            if (!locked) {
-                throw new RuntimeException("Could not acquire lock due to: " + lockHolder.stateMessage());
-            }
-            stream = new FileOutputStream(lockHolder.getProtectedFile());
-            ObjectBuffer buffer = KryoFactory.createWharfResolverObjectBuffer();
-            buffer.writeObject(stream, wharfResolverMetadatas);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            write(lockHolder.getProtectedFile(), wharfResolverMetadatas);
         } finally {
-            WharfUtils.closeQuietly(stream);
-            if (locked) {
-                lockHolder.releaseLock();
-            }
+            lockHolder.releaseLock();
         }
     }
 
-    public Set<WharfResolverMetadata> getWharfMetadatas(File baseDir) {
-        LockHolder lockHolder = getLockHolder(baseDir);
-        boolean locked = false;
+    public Set<WharfResolverMetadata> merge(File baseDir, Set<WharfResolverMetadata> additions) {
+        LockHolder lockHolder = acquireLock(baseDir);
         try {
-            locked = lockHolder.acquireLock();
-            if (!locked) {
-                throw new RuntimeException("Could not acquire lock due to: " + lockHolder.stateMessage());
-            }
             File resolversFile = lockHolder.getProtectedFile();
-            if (resolversFile.exists()) {
-                InputStream stream = null;
-                try {
-                    stream = new FileInputStream(resolversFile);
-                    ObjectBuffer buffer = KryoFactory.createWharfResolverObjectBuffer();
-                    //noinspection unchecked
-                    return buffer.readObject(stream, HashSet.class);
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
-                } finally {
-                    WharfUtils.closeQuietly(stream);
-                }
+            Set<WharfResolverMetadata> metadatas = read(resolversFile);
+            if (metadatas.addAll(additions)) {
+                write(resolversFile, metadatas);
             }
+            return metadatas;
         } finally {
-            if (locked) {
-                lockHolder.releaseLock();
+            lockHolder.releaseLock();
+        }
+    }
+
+    public Set<WharfResolverMetadata> getWharfMetadatas(File baseDir) {
+        return read(getResolversFile(baseDir));
+    }
+
+    public File getResolversFile(File baseDir) {
+        return new File(baseDir, RESOLVERS_FILE_PATH);
+    }
+
+    private Set<WharfResolverMetadata> read(File resolversFile) {
+        try {
+            byte[] content = AtomicFileHelper.read(resolversFile);
+            if (content != null) {
+                ObjectBuffer buffer = KryoFactory.createWharfResolverObjectBuffer();
+                //noinspection unchecked
+                return buffer.readObject(content, HashSet.class);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (SerializationException e) {
+            AtomicFileHelper.moveAside(resolversFile, e.getMessage());
         }
         return new HashSet<WharfResolverMetadata>();
     }
 
-    private LockHolder getLockHolder(File baseDir) {
-        return lockFactory.getOrCreateLockHolder(new File(baseDir, RESOLVERS_FILE_PATH));
+    private void write(File resolversFile, Set<WharfResolverMetadata> wharfResolverMetadatas) {
+        try {
+            ObjectBuffer buffer = KryoFactory.createWharfResolverObjectBuffer();
+            AtomicFileHelper.write(resolversFile, buffer.writeObject(wharfResolverMetadatas));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private LockHolder acquireLock(File baseDir) {
+        LockHolder lockHolder = lockFactory.getOrCreateLockHolder(getResolversFile(baseDir));
+        if (!lockHolder.acquireLock()) {
+            throw new RuntimeException("Could not acquire lock due to: " + lockHolder.stateMessage());
+        }
+        return lockHolder;
     }
 }
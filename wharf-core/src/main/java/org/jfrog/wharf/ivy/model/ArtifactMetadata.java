@@ -45,6 +45,16 @@ public class ArtifactMetadata implements Serializable {
     public ArtifactMetadata() {
     }
 
+    public ArtifactMetadata(ArtifactMetadata other) {
+        this.resolverId = other.resolverId;
+        this.artResolverId = other.artResolverId;
+        this.id = other.id;
+        this.location = other.location;
+        this.local = other.local;
+        this.md5 = other.md5;
+        this.sha1 = other.sha1;
+    }
+
     public static String extractResolverId(Artifact artifact, ArtifactOrigin origin) {
         String artifactResolverId = extractResolverId(artifact);
         if (WharfUtils.isEmptyString(artifactResolverId)) {
@@ -20,7 +20,12 @@ package org.jfrog.wharf.ivy.model;
 
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -33,6 +38,108 @@ public class ModuleRevisionMetadata implements Serializable {
 
     public Set<ArtifactMetadata> artifactMetadata = new HashSet<ArtifactMetadata>();
 
+    /**
+     * Artifact metadata by artifact id then resolver id, not marshalled and rebuilt on first lookup. Changes done
+     * directly on the artifactMetadata set should go through {@link #addArtifactMetadata(ArtifactMetadata)} and
+     * {@link #removeArtifactMetadata(ArtifactMetadata)}, or be followed by {@link #invalidateIndex()}.
+     */
+    private transient Map<String, Map<String, ArtifactMetadata>> index;
+    private transient Set<ArtifactMetadata> indexedSet;
+    private transient int indexedSize;
+
+    public ModuleRevisionMetadata() {
+    }
+
+    /**
+     * Deep copy constructor
+     */
+    public ModuleRevisionMetadata(ModuleRevisionMetadata other) {
+        this.latestResolvedRevision = other.latestResolvedRevision;
+        this.latestResolvedTime = other.latestResolvedTime;
+        if (other.artifactMetadata != null) {
+            for (ArtifactMetadata artMd : other.artifactMetadata) {
+                addArtifactMetadata(new ArtifactMetadata(artMd));
+            }
+        }
+    }
+
+    /**
+     * @param artId      The artifact id as given by {@link ArtifactMetadata#getArtId}
+     * @param resolverId The resolver id
+     * @return The artifact metadata for this artifact and resolver, null if none
+     */
+    public ArtifactMetadata findArtifactMetadata(String artId, String resolverId) {
+        Map<String, ArtifactMetadata> byResolver = getIndex().get(artId);
+        return byResolver == null ? null : byResolver.get(resolverId);
+    }
+
+    /**
+     * @param artId The artifact id as given by {@link ArtifactMetadata#getArtId}
+     * @return The artifact metadata of this artifact for all the resolvers, in the order they were added
+     */
+    public Collection<ArtifactMetadata> findArtifactMetadata(String artId) {
+        Map<String, ArtifactMetadata> byResolver = getIndex().get(artId);
+        if (byResolver == null) {
+            return Collections.emptyList();
+        }
+        return byResolver.values();
+    }
+
+    /**
+     * @return true if added, false if an artifact metadata for the same artifact and resolver was already there
+     */
+    public boolean addArtifactMetadata(ArtifactMetadata artMd) {
+        Map<String, Map<String, ArtifactMetadata>> currentIndex = getIndex();
+        if (!artifactMetadata.add(artMd)) {
+            return false;
+        }
+        indexArtifactMetadata(currentIndex, artMd);
+        indexedSize = artifactMetadata.size();
+        return true;
+    }
+
+    public boolean removeArtifactMetadata(ArtifactMetadata artMd) {
+        Map<String, Map<String, ArtifactMetadata>> currentIndex = getIndex();
+        if (!artifactMetadata.remove(artMd)) {
+            return false;
+        }
+        Map<String, ArtifactMetadata> byResolver = currentIndex.get(artMd.id);
+        if (byResolver != null) {
+            byResolver.remove(artMd.resolverId);
+            if (byResolver.isEmpty()) {
+                currentIndex.remove(artMd.id);
+            }
+        }
+        indexedSize = artifactMetadata.size();
+        return true;
+    }
+
+    public void invalidateIndex() {
+        index = null;
+    }
+
+    private Map<String, Map<String, ArtifactMetadata>> getIndex() {
+        if (index == null || indexedSet != artifactMetadata || indexedSize != artifactMetadata.size()) {
+            Map<String, Map<String, ArtifactMetadata>> newIndex = new HashMap<String, Map<String, ArtifactMetadata>>();
+            for (ArtifactMetadata artMd : artifactMetadata) {
+                indexArtifactMetadata(newIndex, artMd);
+            }
+            index = newIndex;
+            indexedSet = artifactMetadata;
+            indexedSize = artifactMetadata.size();
+        }
+        return index;
+    }
+
+    private static void indexArtifactMetadata(Map<String, Map<String, ArtifactMetadata>> index,
+            ArtifactMetadata artMd) {
+        Map<String, ArtifactMetadata> byResolver = index.get(artMd.id);
+        if (byResolver == null) {
+            byResolver = new LinkedHashMap<String, ArtifactMetadata>(4);
+            index.put(artMd.id, byResolver);
+        }
+        byResolver.put(artMd.resolverId, artMd);
+    }
 
     public Set<ArtifactMetadata> getArtifactMetadata() {
         return artifactMetadata;
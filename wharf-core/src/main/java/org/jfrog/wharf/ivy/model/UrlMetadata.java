@@ -0,0 +1,56 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.model;
+
+import java.io.Serializable;
+
+/**
+ * What is known of the last response for a url: its validators, for how long it stays fresh, and the checksums the
+ * server published for it.
+ */
+public class UrlMetadata implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public String etag;
+    public long lastModified;
+    public long contentLength;
+    /**
+     * The time until which the response is fresh and the url is not checked again, 0 if it must be revalidated
+     */
+    public long expires;
+    public String sha1;
+    public String md5;
+
+    public UrlMetadata() {
+    }
+
+    public UrlMetadata(UrlMetadata other) {
+        this.etag = other.etag;
+        this.lastModified = other.lastModified;
+        this.contentLength = other.contentLength;
+        this.expires = other.expires;
+        this.sha1 = other.sha1;
+        this.md5 = other.md5;
+    }
+
+    public boolean isFresh(long now) {
+        return expires > now;
+    }
+}
@@ -2,12 +2,16 @@ package org.jfrog.wharf.ivy.repository;
 
 
 import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
 import org.apache.ivy.plugins.repository.AbstractRepository;
 import org.apache.ivy.plugins.repository.RepositoryCopyProgressListener;
 import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.repository.TransferEvent;
 import org.apache.ivy.util.url.ApacheURLLister;
+import org.jfrog.wharf.ivy.cache.UrlMetadataCache;
+import org.jfrog.wharf.ivy.cache.WharfCacheManager;
 import org.jfrog.wharf.ivy.checksum.ChecksumType;
+import org.jfrog.wharf.ivy.resolver.WharfResolver;
 import org.jfrog.wharf.ivy.resource.WharfUrlResource;
 import org.jfrog.wharf.ivy.util.WharfUtils;
 
@@ -18,6 +22,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Tomer Cohen
@@ -29,10 +34,19 @@ public class WharfURLRepository extends AbstractRepository {
     private final Map<String, WharfUrlResource> resourcesCache;
     private final RepositoryCopyProgressListener progressListener;
     private EnumSet<ChecksumType> checksums;
+    private final WharfResolver resolver;
 
     public WharfURLRepository() {
+        this(null);
+    }
+
+    /**
+     * @param resolver The resolver using this repository, its cache keeps the validators of the urls
+     */
+    public WharfURLRepository(WharfResolver resolver) {
+        this.resolver = resolver;
         this.progressListener = new RepositoryCopyProgressListener(this);
-        this.resourcesCache = new HashMap<String, WharfUrlResource>();
+        this.resourcesCache = new ConcurrentHashMap<String, WharfUrlResource>();
         // Only SHA1 by default
         checkOnlySha1();
     }
@@ -113,7 +127,7 @@ public class WharfURLRepository extends AbstractRepository {
             } catch (MalformedURLException e) {
                 url = new File(source).toURI().toURL();
             }
-            res = new WharfUrlResource(url);
+            res = new WharfUrlResource(url, getUrlMetadataCache());
             resourcesCache.put(source, res);
             resourcesCache.put(url.toExternalForm(), res);
             if (isAlwaysCheck()) {
@@ -123,19 +137,40 @@ public class WharfURLRepository extends AbstractRepository {
         return res;
     }
 
+    private UrlMetadataCache getUrlMetadataCache() {
+        if (resolver != null) {
+            RepositoryCacheManager cacheManager = resolver.getRepositoryCacheManager();
+            if (cacheManager instanceof WharfCacheManager) {
+                return ((WharfCacheManager) cacheManager).getUrlMetadataCache();
+            }
+        }
+        return null;
+    }
+
     public void get(String source, File destination) throws IOException {
         WharfUrlResource res = getWharfResource(source);
         get(res, destination);
     }
 
     public void get(WharfUrlResource res, File destination) throws IOException {
+        get(res, destination, false);
+    }
+
+    /**
+     * @param resume true to download only the rest of the resource when destination holds its first bytes
+     */
+    public void get(WharfUrlResource res, File destination, boolean resume) throws IOException {
         fireTransferInitiated(res, TransferEvent.REQUEST_GET);
         try {
             long totalLength = res.getContentLength();
             if (totalLength > 0) {
                 getProgressListener().setTotalLength(totalLength);
             }
-            WharfUtils.getWharfUrlHandler().download(res, destination, getProgressListener());
+            // The sha1 is always needed to store the file, the others only if they are checked
+            EnumSet<ChecksumType> checksumTypes = EnumSet.copyOf(checksums);
+            checksumTypes.add(ChecksumType.sha1);
+            WharfUtils.getWharfUrlHandler().download(res, destination, getProgressListener(), checksumTypes,
+                    resume);
         } catch (IOException ex) {
             fireTransferError(ex);
             throw ex;
@@ -202,8 +237,10 @@ public class WharfURLRepository extends AbstractRepository {
         }
         boolean oneGood = false;
         for (ChecksumType checksumType : checksums) {
+            // One good checksum is enough, the next ones are not even requested
             if (checkResourceChecksum(wharfUrlResource, checksumType)) {
                 oneGood = true;
+                break;
             }
         }
         if (!oneGood) {
@@ -213,7 +250,10 @@ public class WharfURLRepository extends AbstractRepository {
 
     private boolean checkResourceChecksum(WharfUrlResource wharfUrlResource, ChecksumType checksumType) {
         String actualChecksum = wharfUrlResource.getActual().get(checksumType);
-        String remoteChecksum = wharfUrlResource.getRemote().get(checksumType);
-        return actualChecksum != null && remoteChecksum != null && actualChecksum.equals(remoteChecksum);
+        if (actualChecksum == null) {
+            return false;
+        }
+        String remoteChecksum = wharfUrlResource.getRemoteChecksum(checksumType);
+        return actualChecksum.equals(remoteChecksum);
     }
 }
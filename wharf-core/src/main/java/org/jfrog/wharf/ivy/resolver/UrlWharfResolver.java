@@ -77,14 +77,66 @@ public class UrlWharfResolver extends URLResolver implements WharfResolver {
 
     @Override
     public ResolvedResource getArtifactRef(Artifact artifact, Date date) {
+        ModuleRevisionId mrid = artifact.getModuleRevisionId();
+        String resourceKey = WharfUtils.getResourceKey(artifact);
+        if (WharfUtils.isKnownMissing(this, mrid, resourceKey)) {
+            return null;
+        }
         ResolvedResource artifactRef = super.getArtifactRef(artifact, date);
-        return WharfUtils.convertToWharfResource(artifactRef);
+        return WharfUtils.saveResourceFound(this, mrid, resourceKey, WharfUtils.convertToWharfResource(artifactRef));
+    }
+
+    @Override
+    protected synchronized void logArtifactAttempt(Artifact art, String attempt) {
+        if (!WharfCacheManager.isRevalidating()) {
+            super.logArtifactAttempt(art, attempt);
+        }
+    }
+
+    @Override
+    protected synchronized void logIvyAttempt(String attempt) {
+        if (!WharfCacheManager.isRevalidating()) {
+            super.logIvyAttempt(attempt);
+        }
+    }
+
+    @Override
+    protected synchronized void clearIvyAttempts() {
+        if (!WharfCacheManager.isRevalidating()) {
+            super.clearIvyAttempts();
+        }
+    }
+
+    @Override
+    protected synchronized void clearArtifactAttempts() {
+        if (!WharfCacheManager.isRevalidating()) {
+            super.clearArtifactAttempts();
+        }
+    }
+
+    @Override
+    public synchronized void reportFailure() {
+        if (!WharfCacheManager.isRevalidating()) {
+            super.reportFailure();
+        }
+    }
+
+    @Override
+    public synchronized void reportFailure(Artifact art) {
+        if (!WharfCacheManager.isRevalidating()) {
+            super.reportFailure(art);
+        }
     }
 
     @Override
     public ResolvedResource findIvyFileRef(DependencyDescriptor dd, ResolveData data) {
+        ModuleRevisionId mrid = dd.getDependencyRevisionId();
+        String resourceKey = WharfUtils.getResourceKey(mrid);
+        if (WharfUtils.isKnownMissing(this, mrid, resourceKey)) {
+            return null;
+        }
         ResolvedResource ivyFileRef = super.findIvyFileRef(dd, data);
-        return WharfUtils.convertToWharfResource(ivyFileRef);
+        return WharfUtils.saveResourceFound(this, mrid, resourceKey, WharfUtils.convertToWharfResource(ivyFileRef));
     }
 
     public ResolvedModuleRevision basicFindModuleInCache(DependencyDescriptor dd, ResolveData data, boolean anyResolver) {
@@ -28,6 +28,7 @@ import org.apache.ivy.core.resolve.ResolvedModuleRevision;
 import org.apache.ivy.plugins.repository.Repository;
 import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.resolver.util.ResolvedResource;
+import org.jfrog.wharf.ivy.cache.WharfCacheManager;
 import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
 import org.jfrog.wharf.ivy.repository.WharfURLRepository;
 
@@ -36,6 +37,11 @@ import java.io.IOException;
 import java.util.Date;
 
 /**
+ * The attempts of a Wharf resolver are logged, cleared and reported under its lock: the artifacts of a download batch
+ * are resolved concurrently by the same resolver, in unsynchronized Ivy collections. A background revalidation
+ * (see {@link WharfCacheManager#isRevalidating()}) keeps no attempts at all, it would otherwise clear and report the
+ * attempts of the resolve using the same resolver in the foreground.
+ *
  * @author Tomer Cohen
  */
 public interface WharfResolver {
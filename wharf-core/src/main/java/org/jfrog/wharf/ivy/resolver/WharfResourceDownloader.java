@@ -41,23 +41,14 @@ public class WharfResourceDownloader implements ResourceDownloader {
         if (!(resource instanceof WharfUrlResource)) {
             throw new IllegalArgumentException("The Wharf Resolver manage only WharfUrlResource");
         }
-        //TODO: [by fs] The part is in the wrong place, there should be a part only in storage download not here
         if (dest.exists()) {
             dest.delete();
         }
-        File part = new File(dest.getAbsolutePath() + ".part");
         if (resource.getName().equals(String.valueOf(artifact.getUrl()))) {
             //TODO: [by tc] Check why in a wharf env this should not happen => throw exception
             throw new IllegalStateException("Don't know what this means!");
-        } else {
-            resolver.getAndCheck(resource, part);
-        }
-        if (!part.renameTo(dest)) {
-            throw new IOException("impossible to move part file to definitive one: " + part.getAbsolutePath() +
-                    " -> " + dest.getAbsolutePath());
-        }
-        if (!dest.setLastModified(resource.getLastModified())) {
-            throw new IOException("impossible to change file timestamp: " + dest.getAbsolutePath());
         }
+        // The download goes to the filestore temp area, dest is only linked once the file is complete
+        resolver.getAndCheck(resource, dest);
     }
 }
@@ -22,9 +22,12 @@ import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.repository.file.FileResource;
 import org.apache.ivy.plugins.repository.url.URLResource;
 import org.apache.ivy.util.url.URLHandlerRegistry;
+import org.jfrog.wharf.ivy.cache.UrlMetadataCache;
 import org.jfrog.wharf.ivy.checksum.ChecksumType;
 import org.jfrog.wharf.ivy.handler.WharfUrlHandler;
 import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.UrlMetadata;
+import org.jfrog.wharf.ivy.repository.WharfURLRepository;
 import org.jfrog.wharf.ivy.util.WharfUtils;
 
 import java.io.File;
@@ -33,6 +36,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.EnumMap;
+import java.util.EnumSet;
 
 /**
  * @author Tomer Cohen
@@ -48,12 +52,37 @@ public class WharfUrlResource implements Resource {
 
     private boolean exists;
 
+    private boolean downloadNeededForChecksums;
+
     private final EnumMap<ChecksumType, String> remote;
 
     private final EnumMap<ChecksumType, String> actual;
 
+    /**
+     * The remote checksums already looked for, found or not
+     */
+    private final EnumSet<ChecksumType> lookedUp = EnumSet.noneOf(ChecksumType.class);
+
+    private final UrlMetadataCache urlMetadataCache;
+
+    /**
+     * Whether the resolve asked to check the resource again, even if the cached response is still fresh
+     */
+    private final boolean checkModified;
+
+    private UrlMetadata urlMetadata;
+
     public WharfUrlResource(URL url) {
+        this(url, null);
+    }
+
+    /**
+     * @param urlMetadataCache Where the validators of the url are kept from one check to the next, or null
+     */
+    public WharfUrlResource(URL url, UrlMetadataCache urlMetadataCache) {
         this.url = url;
+        this.urlMetadataCache = urlMetadataCache;
+        this.checkModified = WharfURLRepository.isAlwaysCheck();
         remote = new EnumMap<ChecksumType, String>(ChecksumType.class);
         actual = new EnumMap<ChecksumType, String>(ChecksumType.class);
     }
@@ -67,10 +96,14 @@ public class WharfUrlResource implements Resource {
             }
             remote = new EnumMap<ChecksumType, String>(ChecksumType.class);
             actual = new EnumMap<ChecksumType, String>(ChecksumType.class);
+            urlMetadataCache = null;
+            checkModified = false;
         } else if (resource instanceof URLResource) {
             url = ((URLResource) resource).getURL();
             remote = new EnumMap<ChecksumType, String>(ChecksumType.class);
             actual = new EnumMap<ChecksumType, String>(ChecksumType.class);
+            urlMetadataCache = null;
+            checkModified = false;
         } else if (resource instanceof WharfUrlResource) {
             WharfUrlResource wharfUrlResource = (WharfUrlResource) resource;
             this.url = wharfUrlResource.url;
@@ -78,8 +111,13 @@ public class WharfUrlResource implements Resource {
             this.lastModified = wharfUrlResource.lastModified;
             this.contentLength = wharfUrlResource.contentLength;
             this.exists = wharfUrlResource.exists;
+            this.downloadNeededForChecksums = wharfUrlResource.downloadNeededForChecksums;
             this.remote = new EnumMap<ChecksumType, String>(wharfUrlResource.remote);
             this.actual = new EnumMap<ChecksumType, String>(wharfUrlResource.actual);
+            this.lookedUp.addAll(wharfUrlResource.lookedUp);
+            this.urlMetadataCache = wharfUrlResource.urlMetadataCache;
+            this.urlMetadata = wharfUrlResource.urlMetadata;
+            this.checkModified = wharfUrlResource.checkModified;
         } else {
             throw new IllegalArgumentException("Wharf Downloader manage only URL and Files");
         }
@@ -91,7 +129,7 @@ public class WharfUrlResource implements Resource {
 
     public Resource clone(String cloneName) {
         try {
-            return new WharfUrlResource(new URL(cloneName));
+            return new WharfUrlResource(new URL(cloneName), urlMetadataCache);
         } catch (MalformedURLException e) {
             try {
                 return new WharfUrlResource(new File(cloneName).toURI().toURL());
@@ -110,10 +148,22 @@ public class WharfUrlResource implements Resource {
     }
 
     private void init() {
-        WharfUrlHandler.WharfUrlInfo info = WharfUtils.getWharfUrlHandler().getURLInfo(url);
+        UrlMetadata previous = urlMetadataCache == null ? null : urlMetadataCache.get(url);
+        WharfUrlHandler.WharfUrlInfo info = WharfUtils.getWharfUrlHandler().getURLInfo(url, 0, previous, checkModified);
+        urlMetadata = info.getMetadata();
+        if (urlMetadataCache != null) {
+            if (urlMetadata == null) {
+                if (previous != null) {
+                    urlMetadataCache.remove(url);
+                }
+            } else if (urlMetadata != previous) {
+                urlMetadataCache.save(url, urlMetadata);
+            }
+        }
         contentLength = info.getContentLength();
         lastModified = info.getLastModified();
         exists = info.isReachable();
+        downloadNeededForChecksums = info.isDownloadNeededForChecksums();
         if (info.getSha1() != null) {
             remote.put(ChecksumType.sha1, WharfUtils.getCleanChecksum(info.getSha1()));
         }
@@ -142,22 +192,78 @@ public class WharfUrlResource implements Resource {
         return contentLength;
     }
 
+    /**
+     * @return true if the remote checksums are only available once the resource was downloaded
+     */
+    public boolean isDownloadNeededForChecksums() {
+        if (!init) {
+            init();
+        }
+        return downloadNeededForChecksums;
+    }
+
+    /**
+     * @return The validators of the last response for an http url, null otherwise
+     */
+    public UrlMetadata getUrlMetadata() {
+        if (!init) {
+            init();
+        }
+        return urlMetadata;
+    }
+
     public URL getUrl() {
         return url;
     }
 
     public String getSha1() {
+        return getRemoteChecksum(ChecksumType.sha1);
+    }
+
+    public String getMd5() {
+        return getRemoteChecksum(ChecksumType.md5);
+    }
+
+    /**
+     * @return The checksum published by the server, requested the first time it is needed, or null if there is none
+     */
+    public synchronized String getRemoteChecksum(ChecksumType checksumType) {
         if (!init) {
             init();
         }
-        return remote.get(ChecksumType.sha1);
+        if (exists && !remote.containsKey(checksumType) && lookedUp.add(checksumType)) {
+            String checksum = WharfUtils.getWharfUrlHandler().getRemoteChecksum(url, checksumType);
+            if (checksum != null) {
+                remote.put(checksumType, WharfUtils.getCleanChecksum(checksum));
+                saveRemoteChecksum(checksumType, remote.get(checksumType));
+            }
+        }
+        return remote.get(checksumType);
     }
 
-    public String getMd5() {
+    /**
+     * Remember the checksum with the url validators, it is valid as long as the resource is not modified
+     */
+    private void saveRemoteChecksum(ChecksumType checksumType, String checksum) {
+        if (urlMetadataCache == null || urlMetadata == null) {
+            return;
+        }
+        if (checksumType == ChecksumType.sha1) {
+            urlMetadata.sha1 = checksum;
+        } else if (checksumType == ChecksumType.md5) {
+            urlMetadata.md5 = checksum;
+        }
+        urlMetadataCache.save(url, urlMetadata);
+    }
+
+    /**
+     * @return The checksum published by the server if it came with the resource information, without requesting it
+     */
+    public String getKnownRemoteChecksum(ChecksumType checksumType) {
         if (!init) {
             init();
         }
-        return remote.get(ChecksumType.md5);
+        return remote.get(checksumType);
     }
 
     public boolean exists() {
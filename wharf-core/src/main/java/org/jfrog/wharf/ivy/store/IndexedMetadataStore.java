@@ -0,0 +1,680 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.store;
+
+import org.apache.ivy.util.Message;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A single file, memory mapped, hash indexed key/value store.
+ * <p/>
+ * The file is made of a fixed header, an open addressing slot table and an append only data area. Each record keeps
+ * some spare capacity so that most updates are done in place, and carries a CRC of its value so that a torn record is
+ * seen as missing instead of garbage. When the slot table gets too loaded or the data area contains too many dead
+ * records the whole file is rebuilt into a new one which is then renamed over the old one.
+ * <p/>
+ * Access from several JVMs is protected by a file lock on a side lock file (shared for reads, exclusive for writes),
+ * access from several threads of the same JVM by the monitor of the single instance held per store file.
+ * <p/>
+ * A mapping is released as soon as it is dropped, since Windows neither deletes nor replaces a mapped file. A rebuild
+ * can still not replace the file there while another process maps it, the store then keeps using the current file.
+ */
+public class IndexedMetadataStore implements Closeable {
+    private static final Map<String, IndexedMetadataStore> stores = new HashMap<String, IndexedMetadataStore>();
+
+    private static final int MAGIC = 0x57484446;
+    private static final int VERSION = 1;
+    private static final int STATE_OPEN = 0;
+    private static final int STATE_RELOCATED = 1;
+
+    // Header layout
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOT_COUNT = 8;
+    private static final int H_USED_SLOTS = 12;
+    private static final int H_DATA_END = 16;
+    private static final int H_GENERATION = 24;
+    private static final int H_STATE = 32;
+    private static final int H_LIVE_RECORDS = 36;
+    private static final int H_WASTED = 40;
+
+    // Slot layout: key hash then record offset, an offset of 0 means an empty slot
+    private static final int SLOT_SIZE = 16;
+
+    // Record layout
+    private static final int R_KEY_LENGTH = 0;
+    private static final int R_CAPACITY = 4;
+    private static final int R_VALUE_LENGTH = 8;
+    private static final int R_CRC = 12;
+    private static final int R_STAMP = 16;
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int DELETED = -1;
+
+    private static final int INITIAL_SLOT_COUNT = 4096;
+    private static final int MIN_RECORD_CAPACITY = 64;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final File storeFile;
+    private final File lockFile;
+    private int openCount;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private RandomAccessFile lockRaf;
+    private FileChannel lockChannel;
+
+    private IndexedMetadataStore(File storeFile) {
+        this.storeFile = storeFile;
+        this.lockFile = new File(storeFile.getPath() + ".lck");
+    }
+
+    /**
+     * Open the store backed by the given file, creating it if needed. There is only one store instance per file in a
+     * JVM, each call to open should be balanced by a call to {@link #close()}.
+     *
+     * @param storeFile The file holding the store
+     * @return The store instance for this file
+     */
+    public static IndexedMetadataStore open(File storeFile) {
+        String path = storeFile.getAbsolutePath();
+        synchronized (stores) {
+            IndexedMetadataStore store = stores.get(path);
+            if (store == null) {
+                store = new IndexedMetadataStore(storeFile.getAbsoluteFile());
+                stores.put(path, store);
+            }
+            store.openCount++;
+            return store;
+        }
+    }
+
+    public File getStoreFile() {
+        return storeFile;
+    }
+
+    /**
+     * @param key The record key
+     * @return The value stored for this key, null if not found or if the record is corrupted
+     */
+    public byte[] get(String key) {
+        StampedValue stamped = getWithStamp(key);
+        return stamped == null ? null : stamped.value;
+    }
+
+    /**
+     * @param key The record key
+     * @return The value stored for this key with the stamp of its record, both read under the same lock. Null if not
+     *         found or if the record is corrupted.
+     */
+    public synchronized StampedValue getWithStamp(String key) {
+        FileLock lock = lock(true);
+        try {
+            int slot = findSlot(keyBytes(key), hash(key));
+            if (slot < 0) {
+                return null;
+            }
+            long offset = buffer.getLong(slotPosition(slot) + 8);
+            int valueLength = buffer.getInt((int) offset + R_VALUE_LENGTH);
+            if (valueLength == DELETED) {
+                return null;
+            }
+            int keyLength = buffer.getInt((int) offset + R_KEY_LENGTH);
+            byte[] value = new byte[valueLength];
+            readBytes(offset + RECORD_HEADER_SIZE + keyLength, value);
+            if (crc(value) != buffer.getInt((int) offset + R_CRC)) {
+                Message.warn("Ignoring corrupted record '" + key + "' in " + storeFile.getAbsolutePath());
+                return null;
+            }
+            return new StampedValue(value, buffer.getLong((int) offset + R_STAMP));
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @param key The record key
+     * @return The generation at which the record was last written, 0 if not found. This stamp changes each time the
+     *         record is updated, by this JVM or by any other one.
+     */
+    public synchronized long getStamp(String key) {
+        FileLock lock = lock(true);
+        try {
+            int slot = findSlot(keyBytes(key), hash(key));
+            if (slot < 0) {
+                return 0L;
+            }
+            long offset = buffer.getLong(slotPosition(slot) + 8);
+            if (buffer.getInt((int) offset + R_VALUE_LENGTH) == DELETED) {
+                return 0L;
+            }
+            return buffer.getLong((int) offset + R_STAMP);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Store the value for the given key, in place if the current record is big enough.
+     *
+     * @param key   The record key
+     * @param value The value to store
+     */
+    public synchronized void put(String key, byte[] value) {
+        FileLock lock = lock(false);
+        try {
+            byte[] keyBytes = keyBytes(key);
+            long hash = hash(key);
+            long generation = buffer.getLong(H_GENERATION) + 1;
+            int slot = findSlot(keyBytes, hash);
+            if (slot >= 0) {
+                long offset = buffer.getLong(slotPosition(slot) + 8);
+                int capacity = buffer.getInt((int) offset + R_CAPACITY);
+                boolean wasDeleted = buffer.getInt((int) offset + R_VALUE_LENGTH) == DELETED;
+                if (capacity >= value.length) {
+                    writeValue(offset, keyBytes.length, value, generation);
+                    if (wasDeleted) {
+                        buffer.putInt(H_LIVE_RECORDS, buffer.getInt(H_LIVE_RECORDS) + 1);
+                        buffer.putLong(H_WASTED, buffer.getLong(H_WASTED) - recordSize(keyBytes.length, capacity));
+                    }
+                } else {
+                    long newOffset = appendRecord(keyBytes, value, generation);
+                    // Append may have remapped the buffer, so always re-read the old record through it
+                    buffer.putLong(slotPosition(slot) + 8, newOffset);
+                    if (wasDeleted) {
+                        buffer.putInt(H_LIVE_RECORDS, buffer.getInt(H_LIVE_RECORDS) + 1);
+                    } else {
+                        buffer.putLong(H_WASTED, buffer.getLong(H_WASTED) + recordSize(keyBytes.length, capacity));
+                    }
+                }
+            } else {
+                if (buffer.getInt(H_USED_SLOTS) + 1 > buffer.getInt(H_SLOT_COUNT) * 3 / 4) {
+                    rebuild(buffer.getInt(H_SLOT_COUNT) * 2);
+                }
+                long newOffset = appendRecord(keyBytes, value, generation);
+                int free = freeSlot(hash);
+                buffer.putLong(slotPosition(free), hash);
+                buffer.putLong(slotPosition(free) + 8, newOffset);
+                buffer.putInt(H_USED_SLOTS, buffer.getInt(H_USED_SLOTS) + 1);
+                buffer.putInt(H_LIVE_RECORDS, buffer.getInt(H_LIVE_RECORDS) + 1);
+            }
+            buffer.putLong(H_GENERATION, generation);
+            compactIfNeeded();
+        } catch (IOException e) {
+            closeFiles();
+            throw new RuntimeException("Could not write '" + key + "' in metadata store " +
+                    storeFile.getAbsolutePath(), e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @param key The record key
+     * @return true if a record was removed
+     */
+    public synchronized boolean remove(String key) {
+        FileLock lock = lock(false);
+        try {
+            byte[] keyBytes = keyBytes(key);
+            int slot = findSlot(keyBytes, hash(key));
+            if (slot < 0) {
+                return false;
+            }
+            long offset = buffer.getLong(slotPosition(slot) + 8);
+            if (buffer.getInt((int) offset + R_VALUE_LENGTH) == DELETED) {
+                return false;
+            }
+            // The slot is kept (tombstone) so that probing sequences stay valid until the next rebuild
+            buffer.putInt((int) offset + R_VALUE_LENGTH, DELETED);
+            buffer.putLong((int) offset + R_STAMP, 0L);
+            buffer.putInt(H_LIVE_RECORDS, buffer.getInt(H_LIVE_RECORDS) - 1);
+            buffer.putLong(H_WASTED,
+                    buffer.getLong(H_WASTED) + recordSize(keyBytes.length, buffer.getInt((int) offset + R_CAPACITY)));
+            buffer.putLong(H_GENERATION, buffer.getLong(H_GENERATION) + 1);
+            return true;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @return All the keys of the live records of the store
+     */
+    public synchronized List<String> keys() {
+        FileLock lock = lock(true);
+        try {
+            List<String> result = new ArrayList<String>(buffer.getInt(H_LIVE_RECORDS));
+            int slotCount = buffer.getInt(H_SLOT_COUNT);
+            for (int slot = 0; slot < slotCount; slot++) {
+                long offset = buffer.getLong(slotPosition(slot) + 8);
+                if (offset != 0L && buffer.getInt((int) offset + R_VALUE_LENGTH) != DELETED) {
+                    byte[] keyBytes = new byte[buffer.getInt((int) offset + R_KEY_LENGTH)];
+                    readBytes(offset + RECORD_HEADER_SIZE, keyBytes);
+                    result.add(toKey(keyBytes));
+                }
+            }
+            return result;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @return The global generation of the store, incremented on each modification
+     */
+    public synchronized long getGeneration() {
+        FileLock lock = lock(true);
+        try {
+            return buffer.getLong(H_GENERATION);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Write the modified pages of the store to the disk.
+     */
+    public synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (stores) {
+            if (--openCount > 0) {
+                return;
+            }
+            stores.remove(storeFile.getAbsolutePath());
+        }
+        synchronized (this) {
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() {
+        closeStoreFile();
+        WharfUtils.closeQuietly(lockRaf);
+        lockRaf = null;
+        lockChannel = null;
+    }
+
+    private void closeStoreFile() {
+        MappedByteBuffer mapped = buffer;
+        buffer = null;
+        unmap(mapped);
+        WharfUtils.closeQuietly(raf);
+        raf = null;
+        channel = null;
+    }
+
+    private FileLock lock(boolean shared) {
+        try {
+            if (lockChannel == null || !lockChannel.isOpen()) {
+                File dir = storeFile.getParentFile();
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Could not create directory " + dir.getAbsolutePath());
+                }
+                lockRaf = new RandomAccessFile(lockFile, "rw");
+                lockChannel = lockRaf.getChannel();
+            }
+            if (shared && channel == null && storeFile.length() < HEADER_SIZE) {
+                // The store file will be initialized, which is a write
+                shared = false;
+            }
+            FileLock lock = lockChannel.lock(0L, Long.MAX_VALUE, shared);
+            try {
+                ensureMapped();
+            } catch (IOException e) {
+                lock.release();
+                throw e;
+            } catch (RuntimeException e) {
+                lock.release();
+                throw e;
+            }
+            return lock;
+        } catch (IOException e) {
+            closeFiles();
+            throw new RuntimeException("Could not access metadata store " + storeFile.getAbsolutePath(), e);
+        }
+    }
+
+    private void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Message.verbose("Could not release lock on " + lockFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    private void ensureMapped() throws IOException {
+        if (buffer != null && buffer.getInt(H_STATE) == STATE_RELOCATED) {
+            // Another process rebuilt the store, our mapping points to the old file
+            closeStoreFile();
+        }
+        if (channel == null || !channel.isOpen()) {
+            raf = new RandomAccessFile(storeFile, "rw");
+            channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                initialize(channel, INITIAL_SLOT_COUNT);
+            }
+        }
+        long fileSize = channel.size();
+        if (buffer == null || buffer.capacity() < fileSize) {
+            remap(fileSize);
+            if (buffer.getInt(H_MAGIC) != MAGIC || buffer.getInt(H_VERSION) != VERSION) {
+                throw new IOException("File " + storeFile.getAbsolutePath() + " is not a valid metadata store");
+            }
+        }
+    }
+
+    private static void initialize(FileChannel fileChannel, int slotCount) throws IOException {
+        long dataStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        MappedByteBuffer header = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart);
+        for (int i = 0; i < dataStart; i += 8) {
+            header.putLong(i, 0L);
+        }
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_SLOT_COUNT, slotCount);
+        header.putInt(H_USED_SLOTS, 0);
+        header.putLong(H_DATA_END, dataStart);
+        header.putLong(H_GENERATION, 0L);
+        header.putInt(H_STATE, STATE_OPEN);
+        header.putInt(H_LIVE_RECORDS, 0);
+        header.putLong(H_WASTED, 0L);
+        header.force();
+        unmap(header);
+    }
+
+    private int findSlot(byte[] keyBytes, long hash) {
+        int slotCount = buffer.getInt(H_SLOT_COUNT);
+        int mask = slotCount - 1;
+        int slot = (int) (hash & mask);
+        for (int i = 0; i < slotCount; i++) {
+            int position = slotPosition(slot);
+            long offset = buffer.getLong(position + 8);
+            if (offset == 0L) {
+                return -1;
+            }
+            if (buffer.getLong(position) == hash && isValidRecord(offset) && keyEquals(offset, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int freeSlot(long hash) {
+        int slotCount = buffer.getInt(H_SLOT_COUNT);
+        int mask = slotCount - 1;
+        int slot = (int) (hash & mask);
+        while (buffer.getLong(slotPosition(slot) + 8) != 0L) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean isValidRecord(long offset) {
+        long dataStart = HEADER_SIZE + (long) buffer.getInt(H_SLOT_COUNT) * SLOT_SIZE;
+        return offset >= dataStart && offset + RECORD_HEADER_SIZE <= buffer.getLong(H_DATA_END);
+    }
+
+    private boolean keyEquals(long offset, byte[] keyBytes) {
+        if (buffer.getInt((int) offset + R_KEY_LENGTH) != keyBytes.length) {
+            return false;
+        }
+        int start = (int) offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buffer.get(start + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long appendRecord(byte[] keyBytes, byte[] value, long generation) throws IOException {
+        int capacity = Math.max(MIN_RECORD_CAPACITY, value.length + value.length / 4);
+        long offset = buffer.getLong(H_DATA_END);
+        long end = offset + recordSize(keyBytes.length, capacity);
+        ensureCapacity(end);
+        buffer.putInt((int) offset + R_KEY_LENGTH, keyBytes.length);
+        buffer.putInt((int) offset + R_CAPACITY, capacity);
+        writeBytes(offset + RECORD_HEADER_SIZE, keyBytes);
+        writeValue(offset, keyBytes.length, value, generation);
+        buffer.putLong(H_DATA_END, end);
+        return offset;
+    }
+
+    private void writeValue(long offset, int keyLength, byte[] value, long generation) {
+        // Value first, then the fields validating it
+        writeBytes(offset + RECORD_HEADER_SIZE + keyLength, value);
+        buffer.putInt((int) offset + R_CRC, crc(value));
+        buffer.putLong((int) offset + R_STAMP, generation);
+        buffer.putInt((int) offset + R_VALUE_LENGTH, value.length);
+    }
+
+    private void ensureCapacity(long end) throws IOException {
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Metadata store " + storeFile.getAbsolutePath() + " is full");
+        }
+        if (end > buffer.capacity()) {
+            long newSize = Math.min(Integer.MAX_VALUE, Math.max(end, (long) buffer.capacity() * 2));
+            raf.setLength(newSize);
+            remap(newSize);
+        }
+    }
+
+    private void remap(long size) throws IOException {
+        MappedByteBuffer old = buffer;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        unmap(old);
+    }
+
+    private void compactIfNeeded() throws IOException {
+        long wasted = buffer.getLong(H_WASTED);
+        long dataSize = buffer.getLong(H_DATA_END) - HEADER_SIZE - (long) buffer.getInt(H_SLOT_COUNT) * SLOT_SIZE;
+        if (dataSize > MIN_COMPACTION_SIZE && wasted > dataSize / 2) {
+            rebuild(buffer.getInt(H_SLOT_COUNT));
+        }
+    }
+
+    /**
+     * Rewrite all the live records in a new file, then atomically replace the store file with it. Must be called
+     * holding the exclusive lock.
+     */
+    private void rebuild(int slotCount) throws IOException {
+        while (buffer.getInt(H_LIVE_RECORDS) + 1 > slotCount * 3 / 4) {
+            slotCount *= 2;
+        }
+        File newFile = new File(storeFile.getPath() + ".rebuild");
+        RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw");
+        MappedByteBuffer target = null;
+        try {
+            newRaf.setLength(0);
+            FileChannel newChannel = newRaf.getChannel();
+            initialize(newChannel, slotCount);
+            long dataStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+            long newSize = Math.max(dataStart, buffer.getLong(H_DATA_END) - buffer.getLong(H_WASTED)
+                    - (long) (buffer.getInt(H_SLOT_COUNT) - slotCount) * SLOT_SIZE);
+            newRaf.setLength(newSize);
+            target = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+            int mask = slotCount - 1;
+            long end = dataStart;
+            int live = 0;
+            int oldSlotCount = buffer.getInt(H_SLOT_COUNT);
+            for (int slot = 0; slot < oldSlotCount; slot++) {
+                long hash = buffer.getLong(slotPosition(slot));
+                long offset = buffer.getLong(slotPosition(slot) + 8);
+                if (offset == 0L || buffer.getInt((int) offset + R_VALUE_LENGTH) == DELETED) {
+                    continue;
+                }
+                int size = (int) recordSize(buffer.getInt((int) offset + R_KEY_LENGTH),
+                        buffer.getInt((int) offset + R_CAPACITY));
+                for (int i = 0; i < size; i++) {
+                    target.put((int) end + i, buffer.get((int) offset + i));
+                }
+                int newSlot = (int) (hash & mask);
+                while (target.getLong(slotPosition(newSlot) + 8) != 0L) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                target.putLong(slotPosition(newSlot), hash);
+                target.putLong(slotPosition(newSlot) + 8, end);
+                end += size;
+                live++;
+            }
+            target.putInt(H_USED_SLOTS, live);
+            target.putInt(H_LIVE_RECORDS, live);
+            target.putLong(H_DATA_END, end);
+            target.putLong(H_GENERATION, buffer.getLong(H_GENERATION));
+            target.force();
+        } finally {
+            unmap(target);
+            WharfUtils.closeQuietly(newRaf);
+        }
+        // Tell the other processes mapping the old file to reopen it
+        buffer.putInt(H_STATE, STATE_RELOCATED);
+        buffer.force();
+        closeStoreFile();
+        if (!newFile.renameTo(storeFile)) {
+            // Windows does not rename over an existing file, nor delete a file mapped by another process
+            if (!storeFile.delete() || !newFile.renameTo(storeFile)) {
+                Message.verbose("Could not replace " + storeFile.getAbsolutePath() + " by " +
+                        newFile.getAbsolutePath() + ", keeping the current store file");
+                newFile.delete();
+                ensureMapped();
+                buffer.putInt(H_STATE, STATE_OPEN);
+                if (buffer.getInt(H_USED_SLOTS) >= buffer.getInt(H_SLOT_COUNT) - 1) {
+                    throw new IOException("Could not grow the full metadata store " + storeFile.getAbsolutePath());
+                }
+                return;
+            }
+        }
+        ensureMapped();
+    }
+
+    /**
+     * Release the mapping right away instead of waiting for the garbage collector. The buffer must not be used after.
+     */
+    private static void unmap(MappedByteBuffer mapped) {
+        if (mapped == null) {
+            return;
+        }
+        try {
+            Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(mapped);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // Not supported by this JVM, the mapping is released when the buffer is garbage collected
+            Message.debug("Could not unmap a metadata store buffer: " + e.getMessage());
+        }
+    }
+
+    private void readBytes(long position, byte[] dest) {
+        int start = (int) position;
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = buffer.get(start + i);
+        }
+    }
+
+    private void writeBytes(long position, byte[] src) {
+        int start = (int) position;
+        for (int i = 0; i < src.length; i++) {
+            buffer.put(start + i, src[i]);
+        }
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long recordSize(int keyLength, int capacity) {
+        return RECORD_HEADER_SIZE + keyLength + capacity;
+    }
+
+    private static int crc(byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(value, 0, value.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the key characters
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static byte[] keyBytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Impossible except with IBM :)
+            throw new IllegalArgumentException("unknown charset UTF-8", e);
+        }
+    }
+
+    private static String toKey(byte[] keyBytes) {
+        try {
+            return new String(keyBytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("unknown charset UTF-8", e);
+        }
+    }
+
+    /**
+     * A value with the stamp of its record, see {@link #getStamp(String)}.
+     */
+    public static class StampedValue {
+        public final byte[] value;
+        public final long stamp;
+
+        private StampedValue(byte[] value, long stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.util;
+
+import org.apache.ivy.util.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Crash safe writes of small metadata files.
+ * <p/>
+ * The content is written with a trailer (length, CRC32 and a magic number) to a temporary file of the same directory
+ * which is then renamed over the target, so readers see either the old or the new content, never a mix. Files
+ * without the trailer are the ones written before it existed and are read as is.
+ * <p/>
+ * When the data reach the disk is driven by the wharf.fsync system property:
+ * <ul>
+ * <li>always: each file is synced before being renamed</li>
+ * <li>group (default): written files are synced together on {@link #syncPending()}, which the cache manager calls
+ * at the end of each resolve, or when too many are pending</li>
+ * <li>never: left to the operating system</li>
+ * </ul>
+ */
+public abstract class AtomicFileHelper {
+    public static final String FSYNC_POLICY = "wharf.fsync";
+
+    public enum SyncPolicy {
+        ALWAYS, GROUP, NEVER
+    }
+
+    private static final long TRAILER_MAGIC = 0x5748415246435243L;
+    private static final int TRAILER_SIZE = 16;
+    private static final int MAX_PENDING_SYNC = 256;
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final Set<File> pendingSync = new LinkedHashSet<File>();
+    private static final Random random = new Random();
+
+    private AtomicFileHelper() {
+        // utility class
+    }
+
+    public static SyncPolicy getSyncPolicy() {
+        String policy = System.getProperty(FSYNC_POLICY, "group");
+        try {
+            return SyncPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Message.warn("Unknown " + FSYNC_POLICY + " value '" + policy + "', using group");
+            return SyncPolicy.GROUP;
+        }
+    }
+
+    /**
+     * Atomically replace the content of the file.
+     */
+    public static void write(File file, byte[] content) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Could not create directory " + dir.getAbsolutePath());
+        }
+        File tempFile = new File(dir, file.getName() + ".tmp-" + Math.abs(random.nextLong()));
+        SyncPolicy policy = getSyncPolicy();
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(content);
+            out.write(createTrailer(content));
+            if (policy == SyncPolicy.ALWAYS) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            WharfUtils.closeQuietly(out);
+            tempFile.delete();
+            throw e;
+        } finally {
+            WharfUtils.closeQuietly(out);
+        }
+        try {
+            rename(tempFile, file);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (policy == SyncPolicy.GROUP) {
+            addPendingSync(file);
+        }
+    }
+
+    /**
+     * Make sure the given file, written without this helper, reach the disk according to the sync policy.
+     */
+    public static void written(File file) {
+        SyncPolicy policy = getSyncPolicy();
+        if (policy == SyncPolicy.ALWAYS) {
+            sync(file);
+        } else if (policy == SyncPolicy.GROUP) {
+            addPendingSync(file);
+        }
+    }
+
+    /**
+     * @return The content of the file without the trailer, null if the file does not exist or its checksum is wrong.
+     *         In the latter case the file is moved aside.
+     */
+    public static byte[] read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] bytes = readFully(file);
+        int length = bytes.length - TRAILER_SIZE;
+        if (length < 0 || readLong(bytes, bytes.length - 8) != TRAILER_MAGIC) {
+            // Written before the trailer existed
+            return bytes;
+        }
+        byte[] content = new byte[length];
+        System.arraycopy(bytes, 0, content, 0, length);
+        if (readInt(bytes, length) != length || readInt(bytes, length + 4) != crc(content)) {
+            moveAside(file, "wrong checksum");
+            return null;
+        }
+        return content;
+    }
+
+    /**
+     * Keep a file which cannot be read for later analysis instead of deleting it, it is not seen by the cache anymore.
+     */
+    public static void moveAside(File file, String reason) {
+        File corrupt = new File(file.getPath() + CORRUPT_SUFFIX);
+        Message.warn("Metadata file " + file.getAbsolutePath() + " is unreadable (" + reason + "), moved to " +
+                corrupt.getName());
+        try {
+            rename(file, corrupt);
+        } catch (IOException e) {
+            Message.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Sync to disk all the files written since the last call.
+     */
+    public static void syncPending() {
+        File[] files;
+        synchronized (pendingSync) {
+            files = pendingSync.toArray(new File[pendingSync.size()]);
+            pendingSync.clear();
+        }
+        for (File file : files) {
+            sync(file);
+        }
+    }
+
+    private static void addPendingSync(File file) {
+        boolean syncNow;
+        synchronized (pendingSync) {
+            pendingSync.add(file);
+            syncNow = pendingSync.size() >= MAX_PENDING_SYNC;
+        }
+        if (syncNow) {
+            syncPending();
+        }
+    }
+
+    private static void sync(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Message.verbose("Could not sync " + file.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            WharfUtils.closeQuietly(raf);
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Windows does not rename over an existing file
+            if (!to.delete() || !from.renameTo(to)) {
+                throw new IOException("Could not rename " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+            }
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        } finally {
+            WharfUtils.closeQuietly(in);
+        }
+    }
+
+    private static byte[] createTrailer(byte[] content) {
+        byte[] trailer = new byte[TRAILER_SIZE];
+        writeInt(trailer, 0, content.length);
+        writeInt(trailer, 4, crc(content));
+        writeInt(trailer, 8, (int) (TRAILER_MAGIC >>> 32));
+        writeInt(trailer, 12, (int) TRAILER_MAGIC);
+        return trailer;
+    }
+
+    private static int crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+                ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.util;
+
+import org.apache.ivy.util.Message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * How the files of the cache are linked to their filestore file. The links are created in process with the
+ * java.nio.file API when the JVM provides it. A mode not supported by the JVM or the file system falls back to the
+ * next one: hard link, then symbolic link, then copy.
+ */
+public enum LinkMode {
+    /**
+     * The cache file is another name of the filestore file. Evicting the filestore file does not free its space until
+     * the cache file is deleted as well.
+     */
+    HARDLINK {
+        @Override
+        boolean doLink(File storageFile, File cacheFile) throws Exception {
+            return Nio.createLink(cacheFile, storageFile);
+        }
+    },
+    SYMLINK {
+        @Override
+        boolean doLink(File storageFile, File cacheFile) throws Exception {
+            if (Nio.createSymbolicLink(cacheFile, storageFile)) {
+                return true;
+            }
+            // Older JVMs, fork a process per link
+            WharfUtils.legacyLinkCacheFileToStorage(storageFile, cacheFile);
+            return true;
+        }
+    },
+    /**
+     * The content is copied by the kernel, without going through the JVM heap. Some file systems then share the
+     * blocks of both files until one is modified.
+     */
+    COPY {
+        @Override
+        boolean doLink(File storageFile, File cacheFile) throws IOException {
+            copy(storageFile, cacheFile);
+            return true;
+        }
+    };
+
+    /**
+     * False once the JVM showed it does not provide this kind of link, the other failures are not remembered
+     */
+    private volatile boolean supported = true;
+
+    /**
+     * Replace the cache file, if it exists, by a link to the storage file.
+     */
+    public void link(File storageFile, File cacheFile) throws IOException {
+        File parent = cacheFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        for (LinkMode mode = this; mode != null; mode = mode.fallback()) {
+            if (!mode.supported) {
+                continue;
+            }
+            deleteExisting(cacheFile);
+            try {
+                if (mode.doLink(storageFile, cacheFile)) {
+                    return;
+                }
+                Message.verbose(mode + " links are not supported by this JVM");
+                mode.supported = false;
+            } catch (UnsupportedOperationException e) {
+                Message.verbose(mode + " links are not supported: " + e.getMessage());
+                mode.supported = false;
+            } catch (Exception e) {
+                if (mode == COPY) {
+                    throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+                }
+                // Depends on the file systems of both files, only this link falls back
+                Message.verbose("could not create " + mode + " link " + cacheFile + ": " + e.getMessage());
+            }
+        }
+        throw new IOException("could not link " + cacheFile + " to " + storageFile);
+    }
+
+    /**
+     * @return false if the JVM does not provide this kind of link
+     */
+    abstract boolean doLink(File storageFile, File cacheFile) throws Exception;
+
+    private LinkMode fallback() {
+        int next = ordinal() + 1;
+        return next < values().length ? values()[next] : null;
+    }
+
+    private static void deleteExisting(File cacheFile) throws IOException {
+        // Also delete dangling symbolic links, for which exists() is false
+        if (!cacheFile.delete() && cacheFile.exists()) {
+            throw new IOException("could not delete " + cacheFile);
+        }
+    }
+
+    private static void copy(File src, File dest) throws IOException {
+        // Copied aside first, so that an interrupted copy never looks like a cached file
+        File part = new File(dest.getPath() + ".part");
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(part);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        part.setLastModified(src.lastModified());
+        if (!part.renameTo(dest)) {
+            part.delete();
+            throw new IOException("impossible to move part file to definitive one: " + part + " -> " + dest);
+        }
+    }
+
+    /**
+     * The java.nio.file calls, through reflection to keep running on Java 6.
+     */
+    private static class Nio {
+        private static final Method TO_PATH;
+        private static final Method CREATE_LINK;
+        private static final Method CREATE_SYMBOLIC_LINK;
+        private static final Object NO_ATTRIBUTES;
+
+        static {
+            Method toPath = null;
+            Method createLink = null;
+            Method createSymbolicLink = null;
+            Object noAttributes = null;
+            try {
+                Class<?> pathClass = Class.forName("java.nio.file.Path");
+                Class<?> filesClass = Class.forName("java.nio.file.Files");
+                Class<?> attributeClass = Class.forName("java.nio.file.attribute.FileAttribute");
+                noAttributes = Array.newInstance(attributeClass, 0);
+                toPath = File.class.getMethod("toPath");
+                createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+                createSymbolicLink = filesClass.getMethod("createSymbolicLink", pathClass, pathClass,
+                        noAttributes.getClass());
+            } catch (Exception e) {
+                Message.debug("java.nio.file is not available, links are created by external processes");
+            }
+            TO_PATH = toPath;
+            CREATE_LINK = createLink;
+            CREATE_SYMBOLIC_LINK = createSymbolicLink;
+            NO_ATTRIBUTES = noAttributes;
+        }
+
+        private static boolean createLink(File link, File existing) throws Exception {
+            if (CREATE_LINK == null) {
+                return false;
+            }
+            invoke(CREATE_LINK, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+            return true;
+        }
+
+        private static boolean createSymbolicLink(File link, File target) throws Exception {
+            if (CREATE_SYMBOLIC_LINK == null) {
+                return false;
+            }
+            invoke(CREATE_SYMBOLIC_LINK, TO_PATH.invoke(link), TO_PATH.invoke(target.getAbsoluteFile()),
+                    NO_ATTRIBUTES);
+            return true;
+        }
+
+        private static void invoke(Method method, Object... args) throws Exception {
+            try {
+                method.invoke(null, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+}
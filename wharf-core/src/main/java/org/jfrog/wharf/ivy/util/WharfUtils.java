@@ -19,17 +19,23 @@
 package org.jfrog.wharf.ivy.util;
 
 import org.apache.ivy.core.cache.CacheMetadataOptions;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
+import org.apache.ivy.core.module.descriptor.Artifact;
 import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
 import org.apache.ivy.core.resolve.ResolveData;
 import org.apache.ivy.core.resolve.ResolvedModuleRevision;
 import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.resolver.BasicResolver;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
 import org.apache.ivy.plugins.resolver.util.ResolvedResource;
 import org.apache.ivy.util.ChecksumHelper;
 import org.apache.ivy.util.FileUtil;
 import org.apache.ivy.util.Message;
 import org.apache.ivy.util.url.URLHandler;
 import org.apache.ivy.util.url.URLHandlerRegistry;
+import org.jfrog.wharf.ivy.cache.FilestoreDownloads;
+import org.jfrog.wharf.ivy.cache.PartialDownloads;
 import org.jfrog.wharf.ivy.cache.WharfCacheManager;
 import org.jfrog.wharf.ivy.checksum.ChecksumType;
 import org.jfrog.wharf.ivy.handler.WharfUrlHandler;
@@ -47,7 +53,9 @@ import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  * @author Tomer Cohen
@@ -76,7 +84,7 @@ public class WharfUtils {
     public static void hackIvyBasicResolver(WharfResolver wharfResolver) {
         try {
             // Override the URLRepository
-            wharfResolver.setRepository(new WharfURLRepository());
+            wharfResolver.setRepository(new WharfURLRepository(wharfResolver));
             // TODO: The following reflection can be removed once Ivy uses a getDownloader and getArtifactResourceResolver methods
             Field downloaderField = BasicResolver.class.getDeclaredField("downloader");
             downloaderField.setAccessible(true);
@@ -140,7 +148,7 @@ public class WharfUtils {
             WharfURLRepository.setAlwaysCheck(true);
             return null;
         }
-        if (cacheManager.isChanging(dd, dd.getDependencyRevisionId(), cacheOptions)) {
+        if (cacheManager.isChanging(dd, dd.getDependencyRevisionId(), cacheOptions) && !cacheManager.isStaleChanging()) {
             Message.verbose("don't use cache for " + dd + ": changing=true");
             // TODO: Check if we can Remove this global flag
             WharfURLRepository.setAlwaysCheck(true);
@@ -149,6 +157,44 @@ public class WharfUtils {
         return wharfResolver.basicFindModuleInCache(dd, data, false);
     }
 
+    public static String getResourceKey(ModuleRevisionId mrid) {
+        return "ivy:" + mrid.encodeToString();
+    }
+
+    public static String getResourceKey(Artifact artifact) {
+        return "artifact:" + artifact.getModuleRevisionId().encodeToString() + "!" + artifact.getName() + "." +
+                artifact.getExt() + "(" + artifact.getType() + ")" +
+                new TreeMap<Object, Object>((Map<?, ?>) artifact.getQualifiedExtraAttributes());
+    }
+
+    /**
+     * @return true if the resolver recently did not find this resource, and so should not look for it again
+     */
+    public static boolean isKnownMissing(WharfResolver wharfResolver, ModuleRevisionId mrid, String resourceKey) {
+        WharfUrlHandler.clearAccessError();
+        RepositoryCacheManager cacheManager = wharfResolver.getRepositoryCacheManager();
+        if (!(cacheManager instanceof WharfCacheManager) || WharfURLRepository.isAlwaysCheck()) {
+            return false;
+        }
+        return ((WharfCacheManager) cacheManager).isKnownMissing(
+                (DependencyResolver) wharfResolver, mrid, resourceKey);
+    }
+
+    /**
+     * Remember if the resolver found the resource, unless it could not access its repository.
+     *
+     * @return The resolved resource
+     */
+    public static ResolvedResource saveResourceFound(WharfResolver wharfResolver, ModuleRevisionId mrid,
+                                                     String resourceKey, ResolvedResource resolvedResource) {
+        RepositoryCacheManager cacheManager = wharfResolver.getRepositoryCacheManager();
+        if (cacheManager instanceof WharfCacheManager && !WharfUrlHandler.hasAccessError()) {
+            ((WharfCacheManager) cacheManager).saveResourceFound(
+                    (DependencyResolver) wharfResolver, mrid, resourceKey, resolvedResource != null);
+        }
+        return resolvedResource;
+    }
+
     public static void closeQuietly(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -197,6 +243,10 @@ public class WharfUtils {
     }
 
     public static void linkCacheFileToStorage(File storageFile, File cacheFile) throws IOException {
+        LinkMode.SYMLINK.link(storageFile, cacheFile);
+    }
+
+    static void legacyLinkCacheFileToStorage(File storageFile, File cacheFile) throws IOException {
         OS.linkCacheFileToStorage(storageFile, cacheFile);
     }
 
@@ -268,19 +318,33 @@ public class WharfUtils {
         if (!(resource instanceof WharfUrlResource)) {
             throw new IllegalArgumentException("The Wharf Resolver manage only WharfUrlResource");
         }
-        WharfUrlResource wharfResource = (WharfUrlResource) resource;
-        WharfCacheManager cacheManager = (WharfCacheManager) wharfResolver.getRepositoryCacheManager();
-        // First get the checksum for this resource
-        String checksumValue = wharfResource.getSha1();
-        File tempStorageFile = cacheManager.getTempStorageFile();
+        final WharfUrlResource wharfResource = (WharfUrlResource) resource;
+        final WharfCacheManager cacheManager = (WharfCacheManager) wharfResolver.getRepositoryCacheManager();
+        final WharfURLRepository wharfUrlRepository = wharfResolver.getWharfUrlRepository();
+        final File tempStorageFile = cacheManager.getTempStorageFile();
         if (!tempStorageFile.getParentFile().exists()) {
             tempStorageFile.getParentFile().mkdirs();
         }
 
         try {
-            WharfURLRepository wharfUrlRepository = wharfResolver.getWharfUrlRepository();
+            if (wharfResource.isDownloadNeededForChecksums() &&
+                    wharfResource.getKnownRemoteChecksum(ChecksumType.sha1) == null) {
+                // The server publishes the checksums once it has the content: download it first, the temp file
+                // and the checksums computed while downloading are then used to store it
+                transfer(cacheManager, wharfUrlRepository, wharfResource, tempStorageFile);
+            }
+            // First get the checksum for this resource. When the sha1 is not verified, the one computed while
+            // downloading is used and the remote one is only used if it came for free with the resource information.
+            String checksumValue;
+            if (wharfUrlRepository.getChecksums().contains(ChecksumType.sha1)) {
+                checksumValue = wharfResource.getSha1();
+            } else {
+                checksumValue = wharfResource.getKnownRemoteChecksum(ChecksumType.sha1);
+            }
             if (checksumValue == null && wharfResolver.supportsWrongSha1()) {
-                wharfUrlRepository.get(wharfResource, tempStorageFile);
+                if (!tempStorageFile.exists()) {
+                    transfer(cacheManager, wharfUrlRepository, wharfResource, tempStorageFile);
+                }
                 // Check with the actual sha1 now
                 checksumValue = wharfResource.getActual().get(ChecksumType.sha1);
             }
@@ -288,24 +352,26 @@ public class WharfUtils {
                 throw new IOException(
                         "Checksum " + ChecksumType.sha1.alg() + " not found for " + resource.getName());
             }
-            File storageFile = cacheManager.getStorageFile(checksumValue);
-            if (!storageFile.exists()) {
-                // Not in storage cache => download to temp if needed
-                if (!tempStorageFile.exists()) {
-                    wharfUrlRepository.get(wharfResource, tempStorageFile);
-                }
-                wharfUrlRepository.checkChecksums(wharfResource);
-                if (!storageFile.getParentFile().exists()) {
-                    storageFile.getParentFile().mkdirs();
+            final File storageFile = cacheManager.getStorageFile(checksumValue);
+            // Not in storage cache => download to temp if needed, unless another thread or process already does
+            cacheManager.getFilestoreDownloads().store(storageFile, new FilestoreDownloads.Download() {
+                public void download() throws IOException {
+                    if (!tempStorageFile.exists()) {
+                        transfer(cacheManager, wharfUrlRepository, wharfResource, tempStorageFile);
+                    }
+                    wharfUrlRepository.checkChecksums(wharfResource);
+                    if (!storageFile.getParentFile().exists()) {
+                        storageFile.getParentFile().mkdirs();
+                    }
+                    tempStorageFile.renameTo(storageFile);
                 }
-                tempStorageFile.renameTo(storageFile);
-            }
+            });
             // If we get here, then the file was found in cache with the good checksum!
             // Just need to link the storage to file to the final cache destination.
-            WharfUtils.linkCacheFileToStorage(storageFile, dest);
             if (!storageFile.setLastModified(resource.getLastModified())) {
                 throw new IOException("Could not change the timestamp of " + storageFile.getAbsolutePath());
             }
+            cacheManager.getLinkMode().link(storageFile, dest);
             return dest.length();
         } finally {
             if (tempStorageFile.exists()) {
@@ -314,6 +380,25 @@ public class WharfUtils {
         }
     }
 
+    private static void transfer(WharfCacheManager cacheManager, WharfURLRepository wharfUrlRepository,
+                                 WharfUrlResource wharfResource, File tempStorageFile) throws IOException {
+        URL url = wharfResource.getUrl();
+        PartialDownloads partialDownloads = cacheManager.getPartialDownloads();
+        boolean resume = partialDownloads.resume(wharfResource, tempStorageFile);
+        try {
+            cacheManager.acquireHostPermit(url, tempStorageFile);
+            try {
+                wharfUrlRepository.get(wharfResource, tempStorageFile, resume);
+            } finally {
+                cacheManager.releaseHostPermit(tempStorageFile);
+            }
+        } catch (IOException e) {
+            // Interrupted or broken transfer, the next one continues from there
+            partialDownloads.keep(wharfResource, tempStorageFile);
+            throw e;
+        }
+    }
+
     public static boolean isEmptyString(String s) {
         return s == null || s.length() == 0 || s.trim().length() == 0;
     }
@@ -35,6 +35,7 @@ import org.junit.Assert;
 import org.junit.Before;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
 
@@ -119,6 +120,7 @@ public class AbstractDependencyResolverTest {
 
     protected File cacheFolder;
     protected File repoTestRoot;
+    protected File tempRepoDir;
 
     @Before
     public void setUp() throws Exception {
@@ -153,6 +155,33 @@ public class AbstractDependencyResolverTest {
         return holder;
     }
 
+    /**
+     * Create an empty repository the test can publish to, deleted after the test.
+     */
+    protected File createTempRepository() {
+        tempRepoDir = new File(cacheFolder.getParentFile(), "temprepo");
+        deleteCacheFolder(tempRepoDir);
+        tempRepoDir.mkdirs();
+        return tempRepoDir;
+    }
+
+    protected FileSystemWharfResolver createTempRepositoryResolver(String resolverName) {
+        FileSystemWharfResolver resolver = new FileSystemWharfResolver();
+        resolver.setName(resolverName);
+        resolver.setSettings(defaultSettings.settings);
+        defaultSettings.settings.addResolver(resolver);
+        resolver.addIvyPattern(tempRepoDir.getAbsolutePath() + "/" + DEFAULT_IVY_PATTERN);
+        resolver.addArtifactPattern(tempRepoDir.getAbsolutePath() + "/" + DEFAULT_ARTIFACT_PATTERN);
+        return resolver;
+    }
+
+    /**
+     * Copy a file of the test repository 1 to the same path in the temporary repository.
+     */
+    protected void publishToTempRepository(String path) throws IOException {
+        FileUtil.copy(new File(repoTestRoot, "1/" + path), new File(tempRepoDir, path), null);
+    }
+
     public String getIvyPattern() {
         return repoTestRoot + FS + REL_IVY_PATTERN;
     }
@@ -219,6 +248,9 @@ public class AbstractDependencyResolverTest {
         }
         defaultSettings.cacheManager.close();
         deleteCacheFolder(cacheFolder);
+        if (tempRepoDir != null) {
+            deleteCacheFolder(tempRepoDir);
+        }
     }
 
     protected DownloadOptions getDownloadOptions() {
@@ -0,0 +1,162 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.parser.ParserSettings;
+import org.apache.ivy.plugins.parser.xml.XmlModuleDescriptorParser;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+public class BinaryModuleDescriptorCacheTest {
+
+    private File cacheDir;
+    private File ivyFile;
+    private IvySettings settings;
+
+    @Before
+    public void setup() throws IOException {
+        cacheDir = new File("build/test/cache");
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+        cacheDir.mkdirs();
+        ivyFile = new File(cacheDir, "ivy-1.0.xml");
+        writeIvyFile("${dep.rev}");
+        settings = new IvySettings();
+        settings.setVariable("dep.rev", "2.0");
+    }
+
+    @After
+    public void tearDown() {
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+    }
+
+    @Test
+    public void readBackWithoutParsing() throws Exception {
+        ModuleDescriptor parsed = newCache().get(ivyFile, settings, false, PROVIDER);
+        Assert.assertTrue(new File(ivyFile.getPath() + ".wbin").exists());
+
+        ModuleDescriptorMemoryCache cache = newCache();
+        ModuleDescriptor read = cache.get(ivyFile, settings, false, PROVIDER);
+        Assert.assertEquals(0, cache.getLoadCount());
+        Assert.assertEquals(1, cache.getBinaryLoadCount());
+
+        Assert.assertEquals(parsed.getModuleRevisionId(), read.getModuleRevisionId());
+        Assert.assertEquals(parsed.getStatus(), read.getStatus());
+        Assert.assertEquals(parsed.getPublicationDate(), read.getPublicationDate());
+        Assert.assertEquals(Arrays.asList(parsed.getConfigurationsNames()),
+                Arrays.asList(read.getConfigurationsNames()));
+        Assert.assertEquals(Arrays.asList(parsed.getConfiguration("test").getExtends()),
+                Arrays.asList(read.getConfiguration("test").getExtends()));
+        Assert.assertEquals(Arrays.asList(parsed.getAllArtifacts()), Arrays.asList(read.getAllArtifacts()));
+        Artifact[] artifacts = read.getArtifacts("default");
+        Assert.assertEquals(1, artifacts.length);
+        Assert.assertEquals("mod1.1", artifacts[0].getName());
+
+        DependencyDescriptor[] parsedDeps = parsed.getDependencies();
+        DependencyDescriptor[] readDeps = read.getDependencies();
+        Assert.assertEquals(parsedDeps.length, readDeps.length);
+        for (int i = 0; i < parsedDeps.length; i++) {
+            Assert.assertEquals(parsedDeps[i].getDependencyRevisionId(), readDeps[i].getDependencyRevisionId());
+            Assert.assertEquals(parsedDeps[i].isChanging(), readDeps[i].isChanging());
+            Assert.assertEquals(parsedDeps[i].isTransitive(), readDeps[i].isTransitive());
+            Assert.assertEquals(Arrays.asList(parsedDeps[i].getModuleConfigurations()),
+                    Arrays.asList(readDeps[i].getModuleConfigurations()));
+            for (String conf : parsedDeps[i].getModuleConfigurations()) {
+                Assert.assertEquals(Arrays.asList(parsedDeps[i].getDependencyConfigurations(conf)),
+                        Arrays.asList(readDeps[i].getDependencyConfigurations(conf)));
+            }
+        }
+        Assert.assertEquals("2.0", readDeps[0].getDependencyRevisionId().getRevision());
+    }
+
+    @Test
+    public void parsedAgainWhenIvyFileChanges() throws Exception {
+        newCache().get(ivyFile, settings, false, PROVIDER);
+        writeIvyFile("3.0");
+
+        ModuleDescriptorMemoryCache cache = newCache();
+        ModuleDescriptor md = cache.get(ivyFile, settings, false, PROVIDER);
+        Assert.assertEquals(1, cache.getLoadCount());
+        Assert.assertEquals(0, cache.getBinaryLoadCount());
+        Assert.assertEquals("3.0", md.getDependencies()[0].getDependencyRevisionId().getRevision());
+    }
+
+    @Test
+    public void parsedAgainWhenVariableChanges() throws Exception {
+        newCache().get(ivyFile, settings, false, PROVIDER);
+        settings.setVariable("dep.rev", "2.1");
+
+        ModuleDescriptorMemoryCache cache = newCache();
+        ModuleDescriptor md = cache.get(ivyFile, settings, false, PROVIDER);
+        Assert.assertEquals(1, cache.getLoadCount());
+        Assert.assertEquals("2.1", md.getDependencies()[0].getDependencyRevisionId().getRevision());
+    }
+
+    private ModuleDescriptorMemoryCache newCache() {
+        ModuleDescriptorMemoryCache cache = new ModuleDescriptorMemoryCache(10);
+        cache.setBinaryCache(true);
+        return cache;
+    }
+
+    private void writeIvyFile(String depRev) throws IOException {
+        FileWriter writer = new FileWriter(ivyFile);
+        try {
+            writer.write("<ivy-module version=\"2.0\">\n" +
+                    "    <info organisation=\"org1\" module=\"mod1.1\" revision=\"1.0\" status=\"integration\"\n" +
+                    "          publication=\"20041101110000\"/>\n" +
+                    "    <configurations>\n" +
+                    "        <conf name=\"default\"/>\n" +
+                    "        <conf name=\"test\" extends=\"default\" visibility=\"private\"/>\n" +
+                    "    </configurations>\n" +
+                    "    <publications>\n" +
+                    "        <artifact name=\"mod1.1\" type=\"jar\" conf=\"default\"/>\n" +
+                    "        <artifact name=\"mod1.1-tests\" type=\"jar\" conf=\"test\"/>\n" +
+                    "    </publications>\n" +
+                    "    <dependencies>\n" +
+                    "        <dependency name=\"mod1.2\" rev=\"" + depRev + "\" conf=\"default->default;test->*\"/>\n" +
+                    "        <dependency org=\"org2\" name=\"mod2.1\" rev=\"latest.integration\" changing=\"true\"\n" +
+                    "                    transitive=\"false\" conf=\"test->default\"/>\n" +
+                    "    </dependencies>\n" +
+                    "</ivy-module>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static final ModuleDescriptorProvider PROVIDER = new ModuleDescriptorProvider() {
+        public ModuleDescriptor provideModule(ParserSettings ivySettings, File descriptorFile, boolean validate)
+                throws ParseException, IOException {
+            return XmlModuleDescriptorParser.getInstance().parseDescriptor(ivySettings,
+                    descriptorFile.toURI().toURL(), validate);
+        }
+    };
+}
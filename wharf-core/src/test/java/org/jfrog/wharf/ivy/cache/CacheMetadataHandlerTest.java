@@ -0,0 +1,237 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.lock.LockHolderFactory;
+import org.jfrog.wharf.ivy.lock.NioFileLockFactory;
+import org.jfrog.wharf.ivy.marshall.kryo.MrmKryoMarshallerImpl;
+import org.jfrog.wharf.ivy.marshall.kryo.MrmKryoStoreMarshallerImpl;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+public class CacheMetadataHandlerTest {
+
+    private File cacheDir;
+    private LockHolderFactory lockFactory;
+    private ModuleRevisionId mrid = ModuleRevisionId.newInstance("org", "mod", "1.0");
+
+    @Before
+    public void setup() {
+        cacheDir = new File("build/test/cache");
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+        lockFactory = new NioFileLockFactory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        lockFactory.close();
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+    }
+
+    @Test
+    public void returnedMetadataIsACopy() {
+        CacheMetadataHandler handler = new CacheMetadataHandler(cacheDir, lockFactory, new MrmKryoMarshallerImpl());
+        handler.saveModuleRevisionMetadata(mrid, newMetadata("1"));
+        ModuleRevisionMetadata read = handler.getModuleRevisionMetadata(mrid);
+        read.latestResolvedTime = "2";
+        Assert.assertEquals("1", handler.getModuleRevisionMetadata(mrid).latestResolvedTime);
+    }
+
+    @Test
+    public void seesChangesFromOtherHandlers() throws IOException {
+        MrmKryoStoreMarshallerImpl marshaller1 = new MrmKryoStoreMarshallerImpl(cacheDir);
+        MrmKryoStoreMarshallerImpl marshaller2 = new MrmKryoStoreMarshallerImpl(cacheDir);
+        try {
+            CacheMetadataHandler handler1 = new CacheMetadataHandler(cacheDir, lockFactory, marshaller1);
+            CacheMetadataHandler handler2 = new CacheMetadataHandler(cacheDir, lockFactory, marshaller2);
+            handler1.saveModuleRevisionMetadata(mrid, newMetadata("1"));
+            Assert.assertEquals("1", handler2.getModuleRevisionMetadata(mrid).latestResolvedTime);
+            handler1.saveModuleRevisionMetadata(mrid, newMetadata("2"));
+            Assert.assertEquals("2", handler2.getModuleRevisionMetadata(mrid).latestResolvedTime);
+        } finally {
+            marshaller1.close();
+            marshaller2.close();
+        }
+    }
+
+    @Test
+    public void saveBetweenReadAndStamp() throws IOException {
+        final MrmKryoStoreMarshallerImpl otherProcess = new MrmKryoStoreMarshallerImpl(cacheDir);
+        final File dataFile = new File(cacheDir, "org/mod/wharfdata-1.0.kryo");
+        final boolean[] saved = new boolean[1];
+        MrmKryoStoreMarshallerImpl marshaller = new MrmKryoStoreMarshallerImpl(cacheDir) {
+            @Override
+            public ModuleRevisionMetadata getModuleRevisionMetadata(File file) {
+                ModuleRevisionMetadata mrm = super.getModuleRevisionMetadata(file);
+                saveOnce();
+                return mrm;
+            }
+
+            @Override
+            public StampedMetadata getModuleRevisionMetadataWithStamp(File file) {
+                StampedMetadata stamped = super.getModuleRevisionMetadataWithStamp(file);
+                saveOnce();
+                return stamped;
+            }
+
+            private void saveOnce() {
+                if (!saved[0]) {
+                    saved[0] = true;
+                    otherProcess.save(newMetadata("2"), dataFile);
+                }
+            }
+        };
+        try {
+            otherProcess.save(newMetadata("1"), dataFile);
+            CacheMetadataHandler handler = new CacheMetadataHandler(cacheDir, lockFactory, marshaller);
+            Assert.assertEquals("1", handler.getModuleRevisionMetadata(mrid).latestResolvedTime);
+            Assert.assertTrue(saved[0]);
+            // The first read must not be cached as the metadata saved right after it
+            Assert.assertEquals("2", handler.getModuleRevisionMetadata(mrid).latestResolvedTime);
+        } finally {
+            marshaller.close();
+            otherProcess.close();
+        }
+    }
+
+    @Test
+    public void journalArtifactsUntilFlush() throws IOException {
+        MrmKryoMarshallerImpl marshaller = new MrmKryoMarshallerImpl();
+        CacheMetadataHandler handler = new CacheMetadataHandler(cacheDir, lockFactory, marshaller);
+        File dataFile = new File(cacheDir, "org/mod/wharfdata-1.0.kryo");
+        File journalFile = new MetadataJournal(dataFile).getJournalFile();
+        Assert.assertTrue(handler.lockMetadataArtifact(mrid));
+        try {
+            for (int i = 0; i < 3; i++) {
+                handler.addArtifactMetadata(mrid, newArtifactMetadata("art" + i));
+            }
+            Assert.assertEquals(3, handler.getModuleRevisionMetadata(mrid).artifactMetadata.size());
+        } finally {
+            handler.unlockMetadataArtifact(mrid);
+        }
+        Assert.assertFalse(dataFile.exists());
+        Assert.assertTrue(journalFile.exists());
+
+        // A crash in the middle of an append leaves a torn record
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[]{0, 0, 0, 42, 1, 2});
+        out.close();
+        CacheMetadataHandler otherHandler = new CacheMetadataHandler(cacheDir, lockFactory, marshaller);
+        Assert.assertEquals(3, otherHandler.getModuleRevisionMetadata(mrid).artifactMetadata.size());
+
+        handler.flushJournals();
+        Assert.assertFalse(journalFile.exists());
+        Assert.assertEquals(3, marshaller.getModuleRevisionMetadata(dataFile).artifactMetadata.size());
+        Assert.assertEquals("1.0", otherHandler.getModuleRevisionMetadata(mrid).latestResolvedRevision);
+    }
+
+    @Test
+    public void appendAfterTornJournal() throws IOException {
+        MrmKryoMarshallerImpl marshaller = new MrmKryoMarshallerImpl();
+        CacheMetadataHandler handler = new CacheMetadataHandler(cacheDir, lockFactory, marshaller);
+        File dataFile = new File(cacheDir, "org/mod/wharfdata-1.0.kryo");
+        File journalFile = new MetadataJournal(dataFile).getJournalFile();
+        Assert.assertTrue(handler.lockMetadataArtifact(mrid));
+        try {
+            handler.addArtifactMetadata(mrid, newArtifactMetadata("art0"));
+        } finally {
+            handler.unlockMetadataArtifact(mrid);
+        }
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[]{0, 0, 0, 42, 1, 2});
+        out.close();
+
+        CacheMetadataHandler otherHandler = new CacheMetadataHandler(cacheDir, lockFactory, marshaller);
+        Assert.assertTrue(otherHandler.lockMetadataArtifact(mrid));
+        try {
+            otherHandler.addArtifactMetadata(mrid, newArtifactMetadata("art1"));
+        } finally {
+            otherHandler.unlockMetadataArtifact(mrid);
+        }
+        CacheMetadataHandler reader = new CacheMetadataHandler(cacheDir, lockFactory, marshaller);
+        Assert.assertEquals(2, reader.getModuleRevisionMetadata(mrid).artifactMetadata.size());
+
+        otherHandler.flushJournals();
+        Assert.assertFalse(journalFile.exists());
+        Assert.assertEquals(2, marshaller.getModuleRevisionMetadata(dataFile).artifactMetadata.size());
+    }
+
+    @Test
+    public void indexedArtifactLookup() {
+        ModuleRevisionMetadata mrm = newMetadata("1");
+        ArtifactMetadata art1 = newArtifactMetadata("art1");
+        ArtifactMetadata art1Other = newArtifactMetadata("art1");
+        art1Other.resolverId = "other";
+        mrm.addArtifactMetadata(art1);
+        mrm.addArtifactMetadata(art1Other);
+        mrm.addArtifactMetadata(newArtifactMetadata("art2"));
+        Assert.assertSame(art1Other, mrm.findArtifactMetadata("art1", "other"));
+        Assert.assertEquals(2, mrm.findArtifactMetadata("art1").size());
+        Assert.assertTrue(mrm.removeArtifactMetadata(art1));
+        Assert.assertNull(mrm.findArtifactMetadata("art1", "resolver"));
+        // Direct changes of the set are seen too
+        mrm.artifactMetadata.add(newArtifactMetadata("art3"));
+        Assert.assertNotNull(mrm.findArtifactMetadata("art3", "resolver"));
+        Assert.assertNotNull(new ModuleRevisionMetadata(mrm).findArtifactMetadata("art2", "resolver"));
+    }
+
+    @Test
+    public void corruptFileIsMovedAside() throws IOException {
+        MrmKryoMarshallerImpl marshaller = new MrmKryoMarshallerImpl();
+        File dataFile = new File(cacheDir, "org/mod/wharfdata-1.0.kryo");
+        marshaller.save(newMetadata("1"), dataFile);
+        Assert.assertEquals("1", marshaller.getModuleRevisionMetadata(dataFile).latestResolvedTime);
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        int first = raf.read();
+        raf.seek(0);
+        raf.write(first ^ 0xFF);
+        raf.close();
+        Assert.assertNull(marshaller.getModuleRevisionMetadata(dataFile));
+        Assert.assertFalse(dataFile.exists());
+        Assert.assertTrue(new File(dataFile.getPath() + ".corrupt").exists());
+    }
+
+    private ArtifactMetadata newArtifactMetadata(String id) {
+        ArtifactMetadata artMd = new ArtifactMetadata();
+        artMd.id = id;
+        artMd.resolverId = "resolver";
+        artMd.artResolverId = "resolver";
+        artMd.location = "";
+        return artMd;
+    }
+
+    private ModuleRevisionMetadata newMetadata(String time) {
+        ModuleRevisionMetadata mrm = new ModuleRevisionMetadata();
+        mrm.latestResolvedRevision = "1.0";
+        mrm.latestResolvedTime = time;
+        return mrm;
+    }
+}
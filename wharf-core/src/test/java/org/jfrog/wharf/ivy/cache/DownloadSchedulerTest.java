@@ -0,0 +1,214 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.cache.ArtifactOrigin;
+import org.apache.ivy.core.cache.CacheDownloadOptions;
+import org.apache.ivy.core.cache.DownloadListener;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DefaultArtifact;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
+import org.apache.ivy.plugins.resolver.util.ResolvedResource;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.resolver.FileSystemWharfResolver;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSchedulerTest extends AbstractDependencyResolverTest {
+
+    @Test
+    public void downloadBatch() throws Exception {
+        WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        FileSystemWharfResolver resolver = createFileSystemResolver("test", "1");
+        Map<Artifact, FileSystemWharfResolver> artifacts = new LinkedHashMap<Artifact, FileSystemWharfResolver>();
+        for (String revision : new String[]{"0.9", "1.0", "1.1", "2.1"}) {
+            artifacts.put(jar("org1", "mod1.2", revision), resolver);
+        }
+        for (String revision : new String[]{"1.0", "1.1", "2.0"}) {
+            artifacts.put(jar("org1", "mod1.1", revision), resolver);
+        }
+
+        DownloadReport report = cacheManager.download(artifacts, new CacheDownloadOptions());
+        assertEquals(artifacts.size(), report.getArtifactsReports().length);
+        for (Artifact artifact : artifacts.keySet()) {
+            ArtifactDownloadReport adr = report.getArtifactReport(artifact);
+            assertEquals(DownloadStatus.SUCCESSFUL, adr.getDownloadStatus());
+            assertTrue(adr.getLocalFile().exists());
+        }
+
+        report = cacheManager.download(artifacts, new CacheDownloadOptions());
+        assertEquals(artifacts.size(), report.getArtifactsReports(DownloadStatus.NO).length);
+    }
+
+    @Test
+    public void metadataFirst() throws Exception {
+        WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        cacheManager.setMaxDownloads(1);
+        FileSystemWharfResolver resolver = createFileSystemResolver("test", "1");
+        Map<Artifact, FileSystemWharfResolver> artifacts = new LinkedHashMap<Artifact, FileSystemWharfResolver>();
+        artifacts.put(jar("org1", "mod1.2", "1.0"), resolver);
+        artifacts.put(jar("org1", "mod1.2", "2.1"), resolver);
+        Artifact ivyArtifact = DefaultArtifact.newIvyArtifact(ModuleRevisionId.newInstance("org1", "mod1.1", "1.0"), null);
+        artifacts.put(ivyArtifact, resolver);
+
+        final List<String> needed = Collections.synchronizedList(new ArrayList<String>());
+        CacheDownloadOptions options = new CacheDownloadOptions().setListener(new DownloadListener() {
+            public void needArtifact(RepositoryCacheManager cache, Artifact artifact) {
+                needed.add(artifact.getModuleRevisionId().getModuleId().getName() + "#" + artifact.getType());
+            }
+
+            public void startArtifactDownload(RepositoryCacheManager cache, ResolvedResource rres, Artifact artifact,
+                                              ArtifactOrigin origin) {
+            }
+
+            public void endArtifactDownload(RepositoryCacheManager cache, Artifact artifact,
+                                            ArtifactDownloadReport adr, File archiveFile) {
+            }
+        });
+        cacheManager.download(artifacts, options);
+        assertEquals(3, needed.size());
+        assertEquals("mod1.1#ivy", needed.get(0));
+    }
+
+    @Test
+    public void concurrentBatchesForSameModule() throws Exception {
+        final WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        FileSystemWharfResolver resolver = createFileSystemResolver("test", "1");
+        Artifact artifact = jar("org1", "mod1.2", "2.1");
+        final Map<Artifact, FileSystemWharfResolver> artifacts = new LinkedHashMap<Artifact, FileSystemWharfResolver>();
+        artifacts.put(artifact, resolver);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final CacheDownloadOptions options = new CacheDownloadOptions().setListener(new DownloadListener() {
+            public void needArtifact(RepositoryCacheManager cache, Artifact artifact) {
+                if (inside.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void startArtifactDownload(RepositoryCacheManager cache, ResolvedResource rres, Artifact artifact,
+                                              ArtifactOrigin origin) {
+            }
+
+            public void endArtifactDownload(RepositoryCacheManager cache, Artifact artifact,
+                                            ArtifactDownloadReport adr, File archiveFile) {
+                inside.decrementAndGet();
+            }
+        });
+        final DownloadReport[] reports = new DownloadReport[2];
+        Thread[] batches = new Thread[reports.length];
+        for (int i = 0; i < batches.length; i++) {
+            final int batch = i;
+            batches[i] = new Thread() {
+                @Override
+                public void run() {
+                    reports[batch] = cacheManager.download(artifacts, options);
+                }
+            };
+            batches[i].start();
+        }
+        for (Thread batch : batches) {
+            batch.join(20000);
+        }
+
+        // The second batch waits for the metadata lock of the module revision held by the first one
+        assertFalse(overlapped.get());
+        for (DownloadReport report : reports) {
+            ArtifactDownloadReport adr = report.getArtifactReport(artifact);
+            assertTrue(adr.getDownloadStatus() != DownloadStatus.FAILED);
+            assertTrue(adr.getLocalFile().exists());
+        }
+        assertEquals(1, reports[0].getArtifactsReports(DownloadStatus.SUCCESSFUL).length
+                + reports[1].getArtifactsReports(DownloadStatus.SUCCESSFUL).length);
+    }
+
+    @Test
+    public void hostLimitChangedWhileDownloading() throws Exception {
+        final WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        cacheManager.setMaxDownloadsPerHost(1);
+        final URL url = new URL("http://localhost:8080/mod1.1-1.0.jar");
+        File first = new File("first");
+        cacheManager.acquireHostPermit(url, first);
+        cacheManager.setMaxDownloadsPerHost(2);
+        File second = new File("second");
+        cacheManager.acquireHostPermit(url, second);
+        cacheManager.releaseHostPermit(first);
+        cacheManager.releaseHostPermit(second);
+
+        // The new limit is kept, the permit of the first download did not go to the new permits
+        File third = new File("third");
+        cacheManager.acquireHostPermit(url, third);
+        cacheManager.acquireHostPermit(url, new File("fourth"));
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final File fifth = new File("fifth");
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cacheManager.acquireHostPermit(url, fifth);
+                    acquired.set(true);
+                } catch (IOException e) {
+                    // not acquired
+                }
+            }
+        };
+        waiting.start();
+        waiting.join(200);
+        assertFalse(acquired.get());
+        cacheManager.releaseHostPermit(third);
+        waiting.join(5000);
+        assertTrue(acquired.get());
+    }
+
+    @Test
+    public void priorities() {
+        ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+        assertEquals(0, DownloadScheduler.getPriority(DefaultArtifact.newIvyArtifact(mrid, null)));
+        assertEquals(0, DownloadScheduler.getPriority(new DefaultArtifact(mrid, null, "mod1.1", "pom", "pom")));
+        assertEquals(1, DownloadScheduler.getPriority(new DefaultArtifact(mrid, null, "mod1.1", "jar", "jar")));
+        assertEquals(2, DownloadScheduler.getPriority(new DefaultArtifact(mrid, null, "mod1.1", "source", "jar")));
+    }
+
+    private Artifact jar(String org, String module, String revision) {
+        return new DefaultArtifact(ModuleRevisionId.newInstance(org, module, revision), null, module, "jar", "jar");
+    }
+}
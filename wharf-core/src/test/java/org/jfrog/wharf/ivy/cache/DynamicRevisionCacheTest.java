@@ -0,0 +1,97 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.descriptor.DefaultDependencyDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.resolve.ResolvedModuleRevision;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.resolver.FileSystemWharfResolver;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DynamicRevisionCacheTest extends AbstractDependencyResolverTest {
+
+    private final ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "latest.integration");
+
+    @Test
+    public void resolvedRevisionIsUsedUntilItExpires() throws Exception {
+        defaultSettings.cacheManager.setDefaultTTL("1h");
+        createTempRepository();
+        publishIvyFile("1.0");
+        assertEquals("1.0", resolve(createTempRepositoryResolver("test")));
+
+        publishIvyFile("1.1");
+        assertEquals("1.0", resolve(createTempRepositoryResolver("test")));
+
+        defaultSettings.cacheManager.setDefaultTTL(0);
+        assertEquals("1.1", resolve(createTempRepositoryResolver("test")));
+    }
+
+    @Test
+    public void expiredResolvedRevisionIsUsedWhileRefreshed() throws Exception {
+        WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        cacheManager.setDefaultTTL(0);
+        cacheManager.setStaleTTL("eternal");
+        createTempRepository();
+        publishIvyFile("1.0");
+        assertEquals("1.0", resolve(createTempRepositoryResolver("test")));
+
+        publishIvyFile("1.1");
+        assertEquals("1.0", resolve(createTempRepositoryResolver("test")));
+        assertTrue(cacheManager.awaitRevalidations(10000));
+        assertEquals("1.1", resolve(createTempRepositoryResolver("test")));
+        assertTrue(cacheManager.awaitRevalidations(10000));
+    }
+
+    @Test
+    public void resolvedRevisionSavedAgainWhenItsModuleIsNotCached() throws Exception {
+        WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        cacheManager.setDefaultTTL("1h");
+        createTempRepository();
+        publishIvyFile("1.0");
+        FileSystemWharfResolver resolver = createTempRepositoryResolver("test");
+        assertEquals("1.0", resolve(resolver));
+        String resolvedTime = cacheManager.getMetadataHandler().getModuleRevisionMetadata(mrid).latestResolvedTime;
+
+        // The cached resolved revision is found but not its module, the resolver finds the same revision again
+        String resolverId = cacheManager.getResolverHandler().getResolver(resolver).getId();
+        assertTrue(cacheManager.getIvyFileInCache(ModuleRevisionId.newInstance(mrid, "1.0"), resolverId).delete());
+        Thread.sleep(10);
+        assertEquals("1.0", resolve(resolver));
+        assertFalse(resolvedTime.equals(
+                cacheManager.getMetadataHandler().getModuleRevisionMetadata(mrid).latestResolvedTime));
+    }
+
+    private String resolve(FileSystemWharfResolver resolver) throws Exception {
+        ResolvedModuleRevision rmr = resolver.getDependency(new DefaultDependencyDescriptor(mrid, false),
+                defaultSettings.data);
+        assertNotNull(rmr);
+        return rmr.getId().getRevision();
+    }
+
+    private void publishIvyFile(String revision) throws Exception {
+        publishToTempRepository("org1/mod1.1/ivys/ivy-" + revision + ".xml");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilestoreDownloadsTest {
+
+    private File dir;
+    private File storageFile;
+    private FilestoreDownloads downloads;
+    private ExecutorService executor;
+
+    @Before
+    public void createFilestore() {
+        dir = new File("build/test/downloads").getAbsoluteFile();
+        FileUtil.forceDelete(dir);
+        storageFile = new File(dir, "filestore/abc/abcdef");
+        downloads = new FilestoreDownloads(new File(dir, "filestore/temp"));
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void deleteFilestore() {
+        executor.shutdownNow();
+        FileUtil.forceDelete(dir);
+    }
+
+    @Test
+    public void concurrentRequestersShareOneDownload() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    downloads.store(storageFile, new FilestoreDownloads.Download() {
+                        public void download() throws IOException {
+                            count.incrementAndGet();
+                            sleep(200);
+                            write(storageFile);
+                        }
+                    });
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        assertEquals(1, count.get());
+        assertTrue(storageFile.exists());
+    }
+
+    @Test
+    public void waitingRequesterDownloadsWhenTheFirstFails() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<Void> failing = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                downloads.store(storageFile, new FilestoreDownloads.Download() {
+                    public void download() throws IOException {
+                        started.countDown();
+                        sleep(200);
+                        throw new IOException("wrong checksum");
+                    }
+                });
+                return null;
+            }
+        });
+        started.await();
+        final AtomicInteger count = new AtomicInteger();
+        downloads.store(storageFile, new FilestoreDownloads.Download() {
+            public void download() throws IOException {
+                count.incrementAndGet();
+                write(storageFile);
+            }
+        });
+        assertEquals(1, count.get());
+        assertTrue(storageFile.exists());
+        try {
+            failing.get();
+            throw new AssertionError("The first download should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("wrong checksum", e.getCause().getMessage());
+        }
+    }
+
+    private static void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        FileUtil.copy(new ByteArrayInputStream("content".getBytes("UTF-8")), file, null);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+    }
+}
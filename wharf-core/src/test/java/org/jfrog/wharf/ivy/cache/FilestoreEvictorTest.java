@@ -0,0 +1,192 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.plugins.matcher.ExactPatternMatcher;
+import org.apache.ivy.util.FileUtil;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.checksum.Checksum;
+import org.jfrog.wharf.ivy.checksum.ChecksumType;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.resolver.FileSystemWharfResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FilestoreEvictorTest extends AbstractDependencyResolverTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private WharfCacheManager cacheManager;
+    private FilestoreAccessTracker tracker;
+    private String resolverId;
+
+    @Before
+    public void initTracker() {
+        cacheManager = defaultSettings.cacheManager;
+        tracker = cacheManager.getFilestoreAccessTracker();
+        FileSystemWharfResolver resolver = createFileSystemResolver("test", "1");
+        resolverId = cacheManager.getResolverHandler().getResolver(resolver).getId();
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreEvictedFirst() throws Exception {
+        long now = System.currentTimeMillis();
+        store("aaa1", 100, "org1#mod1.1;1.0", now - 3 * HOUR);
+        store("aaa2", 100, "org1#mod1.1;1.1", now - HOUR);
+        store("aaa3", 100, "org1#mod1.1;2.0", now - 2 * HOUR);
+        cacheManager.setFilestoreQuota(200);
+
+        assertEquals(100, cacheManager.evictFilestore());
+        assertEvicted("aaa1");
+        assertKept("aaa2", "aaa3");
+    }
+
+    @Test
+    public void leastFrequentlyUsedFilesAreEvictedFirst() throws Exception {
+        long now = System.currentTimeMillis();
+        store("aaa1", 100, "org1#mod1.1;1.0", now - 3 * HOUR);
+        tracker.recordAccess("aaa1", 100, resolverId, ModuleRevisionId.parse("org1#mod1.1;1.0").encodeToString(), "art",
+                now - 2 * HOUR);
+        store("aaa2", 100, "org1#mod1.1;1.1", now - HOUR);
+        cacheManager.setFilestoreQuota("150b");
+        cacheManager.setEvictionPolicy("lfu");
+
+        assertEquals(100, cacheManager.evictFilestore());
+        assertEvicted("aaa2");
+        assertKept("aaa1");
+    }
+
+    @Test
+    public void pinnedAndRecentFilesAreKept() throws Exception {
+        long now = System.currentTimeMillis();
+        store("aaa1", 100, "org1#mod1.1;1.0", now - 2 * HOUR);
+        store("aaa2", 100, "org1#mod1.2;1.0", now - HOUR);
+        store("aaa3", 100, "org1#mod1.3;1.0", now);
+        Map<String, String> pin = new HashMap<String, String>();
+        pin.put("module", "mod1.1");
+        pin.put("resolver", "test");
+        cacheManager.addPin(pin, ExactPatternMatcher.INSTANCE);
+        cacheManager.setFilestoreQuota(1);
+
+        assertEquals(100, cacheManager.evictFilestore());
+        assertEvicted("aaa2");
+        assertKept("aaa1", "aaa3");
+    }
+
+    @Test
+    public void resolverQuota() throws Exception {
+        long now = System.currentTimeMillis();
+        store("aaa1", 100, "org1#mod1.1;1.0", now - 2 * HOUR);
+        store("aaa2", 100, "org1#mod1.1;1.1", now - HOUR);
+        cacheManager.setResolverQuota("other", 1);
+        assertEquals(0, cacheManager.evictFilestore());
+        cacheManager.setResolverQuota("test", 100);
+
+        assertEquals(100, cacheManager.evictFilestore());
+        assertEvicted("aaa1");
+        assertKept("aaa2");
+    }
+
+    @Test
+    public void downloadsAreTracked() throws Exception {
+        FileSystemWharfResolver resolver = (FileSystemWharfResolver) defaultSettings.settings.getResolver("test");
+        ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+        downloadAndCheck(mrid, resolver, 1);
+        // the ivy file and the jar
+        assertEquals(2, tracker.getAccesses().size());
+        FilestoreAccessTracker.FilestoreAccess access = tracker.getAccesses().get(0);
+        assertEquals(resolverId, access.resolverId);
+        assertEquals(mrid, ModuleRevisionId.decode(access.mrid));
+        assertEquals(cacheManager.getStorageFile(access.sha1).length(), access.size);
+        assertEquals(1, access.hits);
+    }
+
+    @Test
+    public void allReferencesAreEvicted() throws Exception {
+        cacheManager.setLinkMode("copy");
+        FileSystemWharfResolver resolver = (FileSystemWharfResolver) defaultSettings.settings.getResolver("test");
+        ModuleRevisionId mrid1 = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+        ModuleRevisionId mrid2 = ModuleRevisionId.newInstance("org1", "mod1.2", "1.0");
+        // Both jars have the same content
+        downloadAndCheck(mrid1, resolver, 1);
+        downloadAndCheck(mrid2, resolver, 1);
+        File jar1 = findCacheFile("mod1.1-1.0.jar");
+        File jar2 = findCacheFile("mod1.2-1.0.jar");
+        String sha1 = Checksum.compute(jar1, EnumSet.of(ChecksumType.sha1)).get(ChecksumType.sha1);
+        FilestoreAccessTracker.FilestoreAccess access = tracker.getAccess(sha1);
+        tracker.removeAccess(sha1);
+        tracker.recordAccess(sha1, access.size, access.resolverId, access.mrid, access.artId,
+                System.currentTimeMillis() - HOUR);
+        cacheManager.setFilestoreQuota(1);
+
+        assertEquals(access.size, cacheManager.evictFilestore());
+        assertEvicted(sha1);
+        assertFalse(jar1.exists());
+        assertFalse(jar2.exists());
+        for (ModuleRevisionId mrid : Arrays.asList(mrid1, mrid2)) {
+            for (ArtifactMetadata artMd : cacheManager.getMetadataHandler().getModuleRevisionMetadata(mrid)
+                    .getArtifactMetadata()) {
+                assertFalse(sha1.equals(artMd.sha1));
+            }
+        }
+        downloadAndCheck(mrid1, resolver, 1);
+    }
+
+    private void store(String sha1, int size, String mrid, long time) throws Exception {
+        File file = cacheManager.getStorageFile(sha1);
+        file.getParentFile().mkdirs();
+        FileUtil.copy(new ByteArrayInputStream(new byte[size]), file, null);
+        tracker.recordAccess(sha1, size, resolverId, ModuleRevisionId.parse(mrid).encodeToString(), "art", time);
+    }
+
+    private File findCacheFile(String name) {
+        for (Object file : FileUtil.listAll(cacheFolder, Collections.EMPTY_SET)) {
+            if (((File) file).getName().equals(name)) {
+                return (File) file;
+            }
+        }
+        throw new AssertionError(name + " is not in the cache");
+    }
+
+    private void assertEvicted(String sha1) {
+        assertFalse(sha1 + " should be evicted", cacheManager.getStorageFile(sha1).exists());
+        assertEquals(null, tracker.getAccess(sha1));
+    }
+
+    private void assertKept(String... sha1s) {
+        for (String sha1 : sha1s) {
+            assertTrue(sha1 + " should be kept", cacheManager.getStorageFile(sha1).exists());
+            assertNotNull(tracker.getAccess(sha1));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.util.FileUtil;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FilestoreGarbageCollectorTest extends AbstractDependencyResolverTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private final ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+    private WharfCacheManager cacheManager;
+
+    @Before
+    public void download() throws Exception {
+        cacheManager = defaultSettings.cacheManager;
+        downloadAndCheck(mrid, createFileSystemResolver("test", "1"), 1);
+    }
+
+    @Test
+    public void orphanedFilesAreDeleted() throws Exception {
+        File orphan = createFile(cacheManager.getStorageFile("bbb1"), 10);
+        File staleTemp = createFile(new File(cacheManager.getBasedir(), "filestore/temp/123"), 20);
+        staleTemp.setLastModified(System.currentTimeMillis() - DAY);
+        File activeTemp = createFile(new File(cacheManager.getBasedir(), "filestore/temp/456"), 30);
+
+        assertEquals(30, cacheManager.collectGarbage());
+        assertFalse(orphan.exists());
+        assertFalse(staleTemp.exists());
+        assertTrue(activeTemp.exists());
+        for (ArtifactMetadata artMd : getModuleRevisionMetadata().getArtifactMetadata()) {
+            assertTrue(cacheManager.getStorageFile(artMd.sha1).exists());
+        }
+        assertEquals(0, cacheManager.collectGarbage());
+    }
+
+    @Test
+    public void recentlyAccessedFilesAreKept() throws Exception {
+        // Their last use may have been counted in the same access granularity as an earlier one
+        FilestoreAccessTracker tracker = cacheManager.getFilestoreAccessTracker();
+        long now = System.currentTimeMillis();
+        File recent = createFile(cacheManager.getStorageFile("bbb3"), 10);
+        tracker.recordAccess("bbb3", 10, "resolver", mrid.encodeToString(), "art",
+                now - FilestoreAccessTracker.ACCESS_GRANULARITY / 2);
+        File old = createFile(cacheManager.getStorageFile("bbb4"), 20);
+        tracker.recordAccess("bbb4", 20, "resolver", mrid.encodeToString(), "art", now - DAY);
+
+        assertEquals(20, cacheManager.collectGarbage());
+        assertTrue(recent.exists());
+        assertFalse(old.exists());
+    }
+
+    @Test
+    public void metadataOfUnknownResolversArePruned() throws Exception {
+        ArtifactMetadata unknown = new ArtifactMetadata();
+        unknown.id = "artifact:mod1.1#jar#jar#0";
+        unknown.resolverId = "unknown";
+        unknown.artResolverId = "unknown";
+        unknown.location = "somewhere";
+        unknown.sha1 = "bbb2";
+        File blob = createFile(cacheManager.getStorageFile(unknown.sha1), 10);
+        cacheManager.getMetadataHandler().addArtifactMetadata(mrid, unknown);
+        int artifacts = getModuleRevisionMetadata().getArtifactMetadata().size();
+
+        assertEquals(10, cacheManager.collectGarbage());
+        assertFalse(blob.exists());
+        ModuleRevisionMetadata mrm = getModuleRevisionMetadata();
+        assertEquals(artifacts - 1, mrm.getArtifactMetadata().size());
+        for (ArtifactMetadata artMd : mrm.getArtifactMetadata()) {
+            assertFalse(unknown.resolverId.equals(artMd.resolverId));
+        }
+    }
+
+    private ModuleRevisionMetadata getModuleRevisionMetadata() {
+        ModuleRevisionMetadata mrm = cacheManager.getMetadataHandler().getModuleRevisionMetadata(mrid);
+        assertNotNull(mrm);
+        return mrm;
+    }
+
+    private File createFile(File file, int size) throws Exception {
+        file.getParentFile().mkdirs();
+        FileUtil.copy(new ByteArrayInputStream(new byte[size]), file, null);
+        // Created before the collection starts
+        file.setLastModified(System.currentTimeMillis() - 1000);
+        return file;
+    }
+}
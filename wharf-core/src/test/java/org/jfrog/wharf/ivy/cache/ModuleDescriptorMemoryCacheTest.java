@@ -0,0 +1,94 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.module.descriptor.DefaultModuleDescriptor;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.settings.IvySettings;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class ModuleDescriptorMemoryCacheTest {
+
+    private File cacheDir;
+    private IvySettings settings;
+
+    @Before
+    public void setup() {
+        cacheDir = new File("build/test/cache");
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+        cacheDir.mkdirs();
+        settings = new IvySettings();
+    }
+
+    @After
+    public void tearDown() {
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+    }
+
+    @Test
+    public void boundedByWeight() throws IOException {
+        ModuleDescriptorMemoryCache cache = new ModuleDescriptorMemoryCache(100, 1000);
+        for (int i = 0; i < 5; i++) {
+            put(cache, "mod" + i, 300);
+        }
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(900, cache.getWeight());
+        Assert.assertEquals(2, cache.getEvictionCount());
+        Assert.assertNull(cache.getFromCache(ivyFile("mod0"), settings, false));
+        Assert.assertNotNull(cache.getFromCache(ivyFile("mod4"), settings, false));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void scanDoesNotEvictFrequentEntries() throws IOException {
+        ModuleDescriptorMemoryCache cache = new ModuleDescriptorMemoryCache(100, 1000);
+        put(cache, "frequent", 100);
+        Assert.assertNotNull(cache.getFromCache(ivyFile("frequent"), settings, false));
+        for (int i = 0; i < 50; i++) {
+            put(cache, "scan" + i, 100);
+        }
+        Assert.assertNotNull(cache.getFromCache(ivyFile("frequent"), settings, false));
+        Assert.assertTrue(cache.getWeight() <= 1000);
+    }
+
+    private void put(ModuleDescriptorMemoryCache cache, String module, int length) throws IOException {
+        File ivyFile = ivyFile(module);
+        RandomAccessFile raf = new RandomAccessFile(ivyFile, "rw");
+        raf.setLength(length);
+        raf.close();
+        ModuleDescriptor md = DefaultModuleDescriptor.newDefaultInstance(
+                ModuleRevisionId.newInstance("org", module, "1.0"));
+        cache.putInCache(ivyFile, new ParserSettingsMonitor(settings), false, md);
+    }
+
+    private File ivyFile(String module) {
+        return new File(cacheDir, "ivy-" + module + ".xml");
+    }
+}
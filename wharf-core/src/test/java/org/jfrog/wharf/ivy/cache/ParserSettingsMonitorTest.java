@@ -0,0 +1,85 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.settings.IvySettings;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParserSettingsMonitorTest {
+
+    private CountingSettings settings;
+
+    @Before
+    public void setup() {
+        settings = new CountingSettings();
+        settings.setVariable("used", "1");
+        VersionedVariableContainer.install(settings);
+    }
+
+    @Test
+    public void unchangedSettingsAreNotSubstitutedAgain() {
+        ParserSettingsMonitor monitor = monitor();
+        Assert.assertFalse(monitor.hasChanged(settings));
+        Assert.assertEquals(0, settings.substitutions);
+    }
+
+    @Test
+    public void changedVariablesAreCompared() {
+        ParserSettingsMonitor monitor = monitor();
+        settings.setVariable("unused", "1");
+        Assert.assertFalse(monitor.hasChanged(settings));
+        Assert.assertEquals(1, settings.substitutions);
+        // The new version is remembered
+        Assert.assertFalse(monitor.hasChanged(settings));
+        Assert.assertEquals(1, settings.substitutions);
+
+        settings.setVariable("used", "2");
+        Assert.assertTrue(monitor.hasChanged(settings));
+    }
+
+    @Test
+    public void otherSettingsAreCompared() {
+        ParserSettingsMonitor monitor = monitor();
+        IvySettings other = new IvySettings();
+        other.setVariable("used", "1");
+        Assert.assertFalse(monitor.hasChanged(other));
+        other.setVariable("used", "2");
+        Assert.assertTrue(monitor.hasChanged(other));
+    }
+
+    private ParserSettingsMonitor monitor() {
+        ParserSettingsMonitor monitor = new ParserSettingsMonitor(settings);
+        Assert.assertEquals("1", monitor.getMonitoredSettings().substitute("${used}"));
+        settings.substitutions = 0;
+        return monitor;
+    }
+
+    private static class CountingSettings extends IvySettings {
+        private int substitutions;
+
+        @Override
+        public String substitute(String str) {
+            substitutions++;
+            return super.substitute(str);
+        }
+    }
+}
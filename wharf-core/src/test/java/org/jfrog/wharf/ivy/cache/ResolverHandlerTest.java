@@ -0,0 +1,110 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.cache;
+
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.resolver.FileSystemResolver;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.lock.LockHolderFactory;
+import org.jfrog.wharf.ivy.lock.NioFileLockFactory;
+import org.jfrog.wharf.ivy.marshall.kryo.WharfKryoResolverMarshaller;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ResolverHandlerTest {
+
+    private File cacheDir;
+    private IvySettings settings;
+    private LockHolderFactory lockFactory;
+    private ResolverHandler handler;
+
+    @Before
+    public void setup() {
+        cacheDir = new File("build/test/cache");
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+        cacheDir.mkdirs();
+        settings = new IvySettings();
+        lockFactory = new NioFileLockFactory();
+        handler = new ResolverHandler(cacheDir, settings, new WharfKryoResolverMarshaller(lockFactory));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        lockFactory.close();
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+    }
+
+    @Test
+    public void resolversWithSameHashCodeAreDistinct() {
+        FileSystemResolver a = newResolver("a", "[module]/ivy-[revision].xml");
+        FileSystemResolver b = newResolver("b", "[module]/ivy-[revision].xml");
+        Assert.assertEquals(a.hashCode(), b.hashCode());
+        Assert.assertFalse(handler.getResolver(a).getId().equals(handler.getResolver(b).getId()));
+        Assert.assertSame(handler.getResolver(a), handler.getResolver(a));
+        Assert.assertEquals(2, handler.getAllResolvers().size());
+    }
+
+    @Test
+    public void activeResolverFollowsSettings() {
+        FileSystemResolver a = newResolver("a", "[module]/ivy-[revision].xml");
+        settings.addResolver(a);
+        String id = handler.getResolver(a).getId();
+        Assert.assertTrue(handler.isActiveResolver(id));
+        Assert.assertTrue(handler.isActiveResolver(id));
+
+        settings.addResolver(newResolver("a", "/other/[module]/ivy-[revision].xml"));
+        Assert.assertFalse(handler.isActiveResolver(id));
+    }
+
+    @Test
+    public void newResolversAreMergedWithOtherProcesses() {
+        ResolverHandler other = new ResolverHandler(cacheDir, settings, new WharfKryoResolverMarshaller(lockFactory));
+        String idA = handler.getResolver(newResolver("a", "[module]/ivy-[revision].xml")).getId();
+        String idB = other.getResolver(newResolver("b", "[module]/ivy-[revision].xml")).getId();
+        Assert.assertNull(other.getResolver(idA));
+
+        handler.saveCacheResolverFile();
+        Assert.assertNotNull(other.getResolver(idA));
+        other.saveCacheResolverFile();
+        Assert.assertNotNull(handler.getResolver(idB));
+
+        ResolverHandler reloaded =
+                new ResolverHandler(cacheDir, settings, new WharfKryoResolverMarshaller(lockFactory));
+        Assert.assertEquals(2, reloaded.getAllResolvers().size());
+    }
+
+    private FileSystemResolver newResolver(String name, String ivyPattern) {
+        FileSystemResolver resolver = new FileSystemResolver() {
+            @Override
+            public int hashCode() {
+                return 1;
+            }
+        };
+        resolver.setName(name);
+        resolver.setSettings(settings);
+        resolver.addIvyPattern(new File(cacheDir, ivyPattern).getAbsolutePath());
+        return resolver;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.checksum;
+
+import org.apache.ivy.util.ChecksumHelper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BackgroundChecksumsTest {
+
+    @Test
+    public void sameChecksumsAsOnTheReadingThread() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+
+        Checksum[] checksums = Checksum.create(EnumSet.allOf(ChecksumType.class));
+        BackgroundChecksums background = new BackgroundChecksums(4096, checksums);
+        InputStream in = new ByteArrayInputStream(data);
+        while (true) {
+            byte[] buffer = background.nextBuffer();
+            int read = in.read(buffer, 0, buffer.length);
+            if (read == -1) {
+                break;
+            }
+            background.update(read);
+        }
+        background.finish();
+
+        for (Checksum checksum : checksums) {
+            assertEquals(digest(checksum.getType(), data), checksum.getChecksum());
+        }
+    }
+
+    @Test
+    public void pooledDigestsStartClean() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Checksum checksum = new Checksum(ChecksumType.sha1);
+            checksum.update(new byte[]{1, 2, 3}, 0, 3);
+            checksum.calc();
+            assertEquals(digest(ChecksumType.sha1, new byte[]{1, 2, 3}), checksum.getChecksum());
+        }
+    }
+
+    private String digest(ChecksumType type, byte[] data) throws Exception {
+        return ChecksumHelper.byteArrayToHexString(MessageDigest.getInstance(type.alg()).digest(data));
+    }
+}
@@ -6,7 +6,10 @@ import org.apache.ivy.core.module.id.ModuleRevisionId;
 import org.apache.ivy.core.report.DownloadReport;
 import org.apache.ivy.core.report.DownloadStatus;
 import org.apache.ivy.core.resolve.ResolvedModuleRevision;
+import org.apache.ivy.util.ChecksumHelper;
 import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.cache.WharfCacheManager;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
 import org.jfrog.wharf.ivy.resolver.FileSystemWharfResolver;
 import org.junit.Test;
 
@@ -40,4 +43,40 @@ public class FileSystemWharfResolverTest extends AbstractDependencyResolverTest
         assertNull(rmr);
     }
 
+    @Test
+    public void testChecksumsComputedWhileDownloading() throws Exception {
+        ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+        downloadAndCheck(mrid, createFileSystemResolver("test", "1"), 1);
+        File jar = new File(repoTestRoot, "1/org1/mod1.1/jars/mod1.1-1.0.jar");
+        ArtifactMetadata artMd = getArtifactMetadata(mrid, jar.getName());
+        assertEquals(ChecksumHelper.computeAsString(jar, "sha1"), artMd.sha1);
+        // Not checked, so not computed
+        assertNull(artMd.md5);
+        assertEquals(0, new File(defaultSettings.cacheManager.getBasedir(), "filestore/temp").list().length);
+    }
+
+    @Test
+    public void testCheckedChecksumsComputedWhileDownloading() throws Exception {
+        FileSystemWharfResolver resolver = createFileSystemResolver("test", "checksums",
+                "[module]/ivy-[revision].xml", "[module]/[artifact]-[revision].[ext]");
+        resolver.setChecksums("sha1,md5");
+        ModuleRevisionId mrid = ModuleRevisionId.newInstance("test", "allright", "1.0");
+        downloadAndCheck(mrid, resolver, 1, 4);
+        File jar = new File(repoTestRoot, "checksums/allright/allright-1.0.jar");
+        ArtifactMetadata artMd = getArtifactMetadata(mrid, jar.getName());
+        assertEquals(ChecksumHelper.computeAsString(jar, "sha1"), artMd.sha1);
+        assertEquals(ChecksumHelper.computeAsString(jar, "md5"), artMd.md5);
+    }
+
+    private ArtifactMetadata getArtifactMetadata(ModuleRevisionId mrid, String fileName) {
+        WharfCacheManager cacheManager = defaultSettings.cacheManager;
+        for (ArtifactMetadata artMd : cacheManager.getMetadataHandler().getModuleRevisionMetadata(mrid)
+                .getArtifactMetadata()) {
+            if (artMd.location.endsWith("/" + fileName)) {
+                return artMd;
+            }
+        }
+        fail("No metadata for " + fileName);
+        return null;
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.file;
+
+import org.apache.ivy.core.module.descriptor.DefaultDependencyDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.plugins.matcher.ExactPatternMatcher;
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.cache.WharfCacheManager;
+import org.jfrog.wharf.ivy.resolver.FileSystemWharfResolver;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MissingResourceTest extends AbstractDependencyResolverTest {
+
+    private final ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+
+    @Test
+    public void missingModuleIsNotLookedForAgain() throws Exception {
+        defaultSettings.cacheManager.setMissingTTL("1h");
+        FileSystemWharfResolver resolver = createEmptyRepositoryResolver("test");
+        assertNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+
+        publishIvyFile();
+        // A new resolver does not share the resources already checked by the previous one
+        resolver = createTempRepositoryResolver("test");
+        assertNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+
+        defaultSettings.cacheManager.setMissingTTL(0);
+        resolver = createTempRepositoryResolver("test");
+        assertNotNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+    }
+
+    @Test
+    public void missingTtlRulesTargetResolvers() throws Exception {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(WharfCacheManager.RESOLVER_ATTRIBUTE, "other");
+        defaultSettings.cacheManager.addMissingTTL(attributes, ExactPatternMatcher.INSTANCE, 3600000L);
+        FileSystemWharfResolver resolver = createEmptyRepositoryResolver("test");
+        assertNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+
+        publishIvyFile();
+        resolver = createTempRepositoryResolver("test");
+        assertNotNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+    }
+
+    @Test
+    public void ttlRulesDoNotRememberMissingResources() throws Exception {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("organisation", "org1");
+        defaultSettings.cacheManager.addTTL(attributes, ExactPatternMatcher.INSTANCE, 3600000L);
+        FileSystemWharfResolver resolver = createEmptyRepositoryResolver("test");
+        assertNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+
+        publishIvyFile();
+        resolver = createTempRepositoryResolver("test");
+        assertNotNull(resolver.getDependency(new DefaultDependencyDescriptor(mrid, false), defaultSettings.data));
+    }
+
+    private FileSystemWharfResolver createEmptyRepositoryResolver(String name) {
+        createTempRepository();
+        return createTempRepositoryResolver(name);
+    }
+
+    private void publishIvyFile() throws Exception {
+        publishToTempRepository("org1/mod1.1/ivys/ivy-1.0.xml");
+    }
+}
@@ -311,6 +311,64 @@ public class WharfCacheManagerResolveTest extends AbstractDependencyResolverTest
         r.close();
     }
 
+    @Test
+    public void testStaleChanging() throws Exception {
+        FileSystemResolver resolver = createFileSystemResolver("test", "checkmodified", "ivy-[revision].xml", "[artifact]-[revision].[ext]");
+        defaultSettings.cacheManager.setStaleChanging(true);
+
+        File modify = new File(repoTestRoot, "checkmodified/ivy-1.0.xml");
+        File artifact = new File(repoTestRoot, "checkmodified/mod1.1-1.0.jar");
+
+        // 'publish' 'before' version
+        FileUtil.copy(new File(repoTestRoot, "checkmodified/ivy-1.0-before.xml"), modify, null,
+                true);
+        FileUtil.copy(new File(repoTestRoot, "checkmodified/mod1.1-1.0-before.jar"), artifact,
+                null, true);
+        Date pubdate = new GregorianCalendar(2004, 10, 1, 11, 0, 0).getTime();
+        modify.setLastModified(pubdate.getTime());
+
+        ModuleRevisionId mrid = ModuleRevisionId.newInstance("org1", "mod1.1", "1.0");
+        ResolvedModuleRevision rmr = resolver.getDependency(new DefaultDependencyDescriptor(mrid,
+                false, true), defaultSettings.data);
+        assertNotNull(rmr);
+        assertEquals(pubdate, rmr.getPublicationDate());
+
+        Artifact[] artifacts = rmr.getDescriptor().getArtifacts("default");
+        resolver.download(artifacts, getDownloadOptions());
+        WharfResolverMetadata wharfResolverMetadata = defaultSettings.cacheManager.getResolverHandler().getResolver(resolver);
+        artifacts[0] = ArtifactMetadata.fillResolverId(artifacts[0], wharfResolverMetadata.getId());
+        File archiveFileInCache = defaultSettings.cacheManager.getArchiveFileInCache(artifacts[0]);
+        assertTrue(archiveFileInCache.exists());
+
+        // updates ivy file and artifact in repository
+        FileUtil.copy(new File(repoTestRoot, "checkmodified/ivy-1.0-after.xml"), modify, null,
+                true);
+        FileUtil.copy(new File(repoTestRoot, "checkmodified/mod1.1-1.0-after.jar"), artifact,
+                null, true);
+        Date newPubdate = new GregorianCalendar(2005, 4, 1, 11, 0, 0).getTime();
+        modify.setLastModified(newPubdate.getTime());
+
+        // the cached version is used right away, and revalidated in background
+        rmr = resolver.getDependency(new DefaultDependencyDescriptor(mrid, false, true), defaultSettings.data);
+        assertNotNull(rmr);
+        assertEquals(pubdate, rmr.getPublicationDate());
+        assertTrue(defaultSettings.cacheManager.awaitRevalidations(10000));
+        assertFalse(archiveFileInCache.exists());
+
+        // the next resolve gets the new version
+        rmr = resolver.getDependency(new DefaultDependencyDescriptor(mrid, false, true), defaultSettings.data);
+        assertNotNull(rmr);
+        assertEquals(newPubdate, rmr.getPublicationDate());
+        assertTrue(defaultSettings.cacheManager.awaitRevalidations(10000));
+
+        artifacts = rmr.getDescriptor().getArtifacts("default");
+        resolver.download(artifacts, getDownloadOptions());
+        assertTrue(archiveFileInCache.exists());
+        BufferedReader r = new BufferedReader(new FileReader(archiveFileInCache));
+        assertEquals("after", r.readLine());
+        r.close();
+    }
+
     @Test
     public void testRelativePath() throws Exception {
         // TODO: Check also standard FS resolver with WharfCacheManager?
@@ -0,0 +1,112 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.ivy.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveTransportTest {
+
+    private HttpServer server;
+    private URL url;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] body = "content".getBytes("UTF-8");
+                int status = exchange.getRequestURI().getPath().endsWith("missing") ? 404 : 200;
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/file");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void connectionReused() throws Exception {
+        KeepAliveTransport transport = new KeepAliveTransport();
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection con = (HttpURLConnection) transport.open(url, "GET");
+            assertEquals(200, con.getResponseCode());
+            assertEquals("content", FileUtil.readEntirely(con.getInputStream()));
+            transport.release(con);
+            // Unread and error responses are drained
+            con = (HttpURLConnection) transport.open(new URL(url, "missing"), "GET");
+            assertEquals(404, con.getResponseCode());
+            transport.release(con);
+        }
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void connectionsPerHostLimited() throws Exception {
+        final KeepAliveTransport transport = new KeepAliveTransport();
+        transport.setMaxConnectionsPerHost(1);
+        HttpURLConnection con = (HttpURLConnection) transport.open(url, "GET");
+        assertEquals(200, con.getResponseCode());
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    transport.release(transport.open(url, "GET"));
+                    opened.countDown();
+                } catch (IOException e) {
+                    // the latch is not counted down
+                }
+            }
+        };
+        waiting.start();
+        assertFalse(opened.await(200, TimeUnit.MILLISECONDS));
+        transport.release(con);
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+    }
+}
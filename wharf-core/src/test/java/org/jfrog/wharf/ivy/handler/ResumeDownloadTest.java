@@ -0,0 +1,172 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.ivy.util.FileUtil;
+import org.jfrog.wharf.ivy.cache.PartialDownloads;
+import org.jfrog.wharf.ivy.checksum.ChecksumType;
+import org.jfrog.wharf.ivy.resource.WharfUrlResource;
+import org.jfrog.wharf.ivy.util.WharfUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResumeDownloadTest {
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] content = new byte[300 * 1024];
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private HttpServer server;
+    private File dir;
+
+    @Before
+    public void startServer() throws IOException {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(String.valueOf(range));
+                int start = 0;
+                if (range != null && !exchange.getRequestURI().getPath().startsWith("/norange/") &&
+                        ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                    start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    exchange.getResponseHeaders().add("Content-Range",
+                            "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                }
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(start > 0 ? 206 : 200, content.length - start);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(content, start, content.length - start);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        dir = new File("build/test/resume").getAbsoluteFile();
+        FileUtil.forceDelete(dir);
+        dir.mkdirs();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        FileUtil.forceDelete(dir);
+    }
+
+    @Test
+    public void resumeWithRange() throws Exception {
+        WharfUrlResource resource = new WharfUrlResource(url("/dist.zip"));
+        File dest = new File(dir, "dest");
+        writeStart(dest, 100000);
+
+        WharfUtils.getWharfUrlHandler().download(resource, dest, null, EnumSet.of(ChecksumType.sha1), true);
+        assertEquals("bytes=100000-", ranges.get(ranges.size() - 1));
+        assertTrue(Arrays.equals(content, read(dest)));
+        assertEquals(sha1(content), resource.getActual().get(ChecksumType.sha1));
+    }
+
+    @Test
+    public void fullDownloadWhenRangeIgnored() throws Exception {
+        WharfUrlResource resource = new WharfUrlResource(url("/norange/dist.zip"));
+        File dest = new File(dir, "dest");
+        writeStart(dest, 100000);
+
+        WharfUtils.getWharfUrlHandler().download(resource, dest, null, EnumSet.of(ChecksumType.sha1), true);
+        assertTrue(Arrays.equals(content, read(dest)));
+        assertEquals(sha1(content), resource.getActual().get(ChecksumType.sha1));
+    }
+
+    @Test
+    public void keepAndResumePartialDownload() throws Exception {
+        PartialDownloads partialDownloads = new PartialDownloads(dir);
+        WharfUrlResource resource = new WharfUrlResource(url("/dist.zip"));
+        File failed = new File(dir, "failed");
+        writeStart(failed, 280 * 1024);
+        partialDownloads.keep(resource, failed);
+        assertFalse(failed.exists());
+
+        File other = new File(dir, "other");
+        assertFalse(partialDownloads.resume(new WharfUrlResource(url("/other.zip")), other));
+        File retry = new File(dir, "retry");
+        assertTrue(partialDownloads.resume(resource, retry));
+        assertEquals(280 * 1024, retry.length());
+        // Taken once only
+        assertFalse(partialDownloads.resume(resource, new File(dir, "again")));
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    private void writeStart(File file, int length) throws IOException {
+        FileUtil.copy(new ByteArrayInputStream(content, 0, length), file, null);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static String sha1(byte[] bytes) throws Exception {
+        StringBuilder result = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.resource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.ivy.util.FileUtil;
+import org.jfrog.wharf.ivy.cache.UrlMetadataCache;
+import org.jfrog.wharf.ivy.checksum.ChecksumType;
+import org.jfrog.wharf.ivy.repository.WharfURLRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WharfUrlResourceTest {
+    private static final String SHA1 = "0123456789abcdef0123456789abcdef01234567";
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer server;
+    private URL url;
+    private File cacheDir;
+    private UrlMetadataCache urlMetadataCache;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.add(exchange.getRequestMethod() + " " + path);
+                byte[] body;
+                if (path.endsWith(".sha1")) {
+                    body = SHA1.getBytes("UTF-8");
+                } else if (path.endsWith(".md5")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                } else {
+                    body = "content".getBytes("UTF-8");
+                }
+                if (!path.startsWith("/artifactory/") && !path.startsWith("/plain/")) {
+                    // The ETag of Artifactory is its sha1
+                    exchange.getResponseHeaders().add("ETag", ETAG);
+                }
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                if (path.startsWith("/fresh/")) {
+                    exchange.getResponseHeaders().add("Cache-Control", "public, max-age=3600");
+                }
+                if (path.startsWith("/artifactory/")) {
+                    exchange.getResponseHeaders().add("Server", "Artifactory/2.3.4");
+                }
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(body.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/mod-1.0.jar");
+        cacheDir = new File("build/test/urls").getAbsoluteFile();
+        FileUtil.forceDelete(cacheDir);
+        urlMetadataCache = new UrlMetadataCache(cacheDir);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.stop(0);
+        urlMetadataCache.close();
+        FileUtil.forceDelete(cacheDir);
+    }
+
+    @Test
+    public void checksumsRequestedOnDemand() throws Exception {
+        WharfUrlResource resource = new WharfUrlResource(url);
+        assertTrue(resource.exists());
+        assertNull(resource.getKnownRemoteChecksum(ChecksumType.sha1));
+        assertEquals(Collections.singletonList("HEAD /mod-1.0.jar"), requests);
+
+        assertEquals(SHA1, resource.getSha1());
+        assertEquals(SHA1, resource.getSha1());
+        assertEquals(2, requests.size());
+        assertEquals("GET /mod-1.0.jar.sha1", requests.get(1));
+
+        // A missing checksum is not requested again
+        assertNull(resource.getMd5());
+        assertNull(resource.getMd5());
+        assertEquals(3, requests.size());
+        assertEquals("GET /mod-1.0.jar.md5", requests.get(2));
+        assertFalse(resource.isDownloadNeededForChecksums());
+    }
+
+    @Test
+    public void artifactoryWithoutChecksumHeaders() throws Exception {
+        WharfUrlResource resource = new WharfUrlResource(new URL(url, "/artifactory/mod-1.0.jar"));
+        assertTrue(resource.exists());
+        assertTrue(resource.isDownloadNeededForChecksums());
+        assertEquals(Collections.singletonList("HEAD /artifactory/mod-1.0.jar"), requests);
+    }
+
+    @Test
+    public void conditionalRequestWithSavedValidators() throws Exception {
+        WharfUrlResource resource = new WharfUrlResource(url, urlMetadataCache);
+        assertTrue(resource.exists());
+        assertEquals(SHA1, resource.getSha1());
+        assertEquals(ETAG, urlMetadataCache.get(url).etag);
+        requests.clear();
+
+        // Not modified: the saved information is used, including the checksum
+        resource = new WharfUrlResource(url, urlMetadataCache);
+        assertTrue(resource.exists());
+        assertEquals(7, resource.getContentLength());
+        assertEquals(SHA1, resource.getSha1());
+        assertEquals(Collections.singletonList("HEAD /mod-1.0.jar"), requests);
+    }
+
+    @Test
+    public void nothingSavedWithoutValidators() throws Exception {
+        URL plainUrl = new URL(url, "/plain/mod-1.0.jar");
+        WharfUrlResource resource = new WharfUrlResource(plainUrl, urlMetadataCache);
+        assertTrue(resource.exists());
+        assertEquals(7, resource.getContentLength());
+        assertNull(resource.getUrlMetadata());
+        assertNull(urlMetadataCache.get(plainUrl));
+    }
+
+    @Test
+    public void noRequestWhileFresh() throws Exception {
+        URL freshUrl = new URL(url, "/fresh/mod-1.0.jar");
+        assertTrue(new WharfUrlResource(freshUrl, urlMetadataCache).exists());
+        assertEquals(1, requests.size());
+
+        WharfUrlResource resource = new WharfUrlResource(freshUrl, urlMetadataCache);
+        assertTrue(resource.exists());
+        assertEquals(7, resource.getContentLength());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void checkModifiedWhileFresh() throws Exception {
+        URL freshUrl = new URL(url, "/fresh/mod-1.0.jar");
+        assertTrue(new WharfUrlResource(freshUrl, urlMetadataCache).exists());
+        WharfURLRepository.setAlwaysCheck(true);
+        WharfUrlResource resource;
+        try {
+            resource = new WharfUrlResource(freshUrl, urlMetadataCache);
+        } finally {
+            WharfURLRepository.setAlwaysCheck(false);
+        }
+        assertTrue(resource.exists());
+        assertEquals(7, resource.getContentLength());
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void credentialsNotSaved() throws Exception {
+        URL urlWithCredentials = new URL("http://user:secret@" + url.getHost() + ":" + url.getPort() + url.getPath());
+        WharfUrlResource resource = new WharfUrlResource(urlWithCredentials, urlMetadataCache);
+        assertTrue(resource.exists());
+        assertEquals(ETAG, urlMetadataCache.get(url).etag);
+        urlMetadataCache.close();
+        String store = FileUtil.readEntirely(new File(cacheDir, ".wharf/urls.store"));
+        assertFalse(store.contains("secret"));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+
+package org.jfrog.wharf.ivy.store;
+
+import org.jfrog.wharf.ivy.AbstractDependencyResolverTest;
+import org.jfrog.wharf.ivy.marshall.kryo.MrmKryoMarshallerImpl;
+import org.jfrog.wharf.ivy.marshall.kryo.MrmKryoStoreMarshallerImpl;
+import org.jfrog.wharf.ivy.model.ArtifactMetadata;
+import org.jfrog.wharf.ivy.model.ModuleRevisionMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+
+public class IndexedMetadataStoreTest {
+
+    private File cacheDir;
+    private File storeFile;
+
+    @Before
+    public void setup() {
+        cacheDir = new File("build/test/cache");
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+        storeFile = new File(cacheDir, ".wharf/test.store");
+    }
+
+    @After
+    public void tearDown() {
+        AbstractDependencyResolverTest.deleteCacheFolder(cacheDir);
+    }
+
+    @Test
+    public void putGetAndRemove() throws IOException {
+        IndexedMetadataStore store = IndexedMetadataStore.open(storeFile);
+        try {
+            Assert.assertNull(store.get("a"));
+            store.put("a", "value-a".getBytes("UTF-8"));
+            store.put("b", "value-b".getBytes("UTF-8"));
+            Assert.assertEquals("value-a", new String(store.get("a"), "UTF-8"));
+            long stamp = store.getStamp("a");
+            // Smaller value, updated in place
+            store.put("a", "a".getBytes("UTF-8"));
+            Assert.assertEquals("a", new String(store.get("a"), "UTF-8"));
+            Assert.assertTrue(store.getStamp("a") > stamp);
+            // Bigger value, relocated
+            byte[] big = new byte[1000];
+            big[999] = 42;
+            store.put("a", big);
+            Assert.assertEquals(42, store.get("a")[999]);
+            Assert.assertTrue(store.remove("b"));
+            Assert.assertFalse(store.remove("b"));
+            Assert.assertNull(store.get("b"));
+            Assert.assertEquals(0L, store.getStamp("b"));
+            Assert.assertEquals(1, store.keys().size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void growAndReopen() throws IOException {
+        IndexedMetadataStore store = IndexedMetadataStore.open(storeFile);
+        try {
+            for (int i = 0; i < 10000; i++) {
+                store.put("org/module/wharfdata-" + i + ".kryo", ("revision " + i).getBytes("UTF-8"));
+            }
+            for (int i = 0; i < 10000; i += 2) {
+                store.remove("org/module/wharfdata-" + i + ".kryo");
+            }
+        } finally {
+            store.close();
+        }
+        store = IndexedMetadataStore.open(storeFile);
+        try {
+            Assert.assertEquals(5000, store.keys().size());
+            for (int i = 0; i < 10000; i++) {
+                byte[] value = store.get("org/module/wharfdata-" + i + ".kryo");
+                if (i % 2 == 0) {
+                    Assert.assertNull(value);
+                } else {
+                    Assert.assertEquals("revision " + i, new String(value, "UTF-8"));
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void migrateLegacyFiles() throws IOException {
+        ModuleRevisionMetadata mrm = new ModuleRevisionMetadata();
+        mrm.latestResolvedRevision = "1.0";
+        mrm.latestResolvedTime = "12345";
+        mrm.artifactMetadata = new HashSet<ArtifactMetadata>();
+        File legacyA = new File(cacheDir, "org/mod-a/wharfdata-1.0.kryo");
+        File legacyB = new File(cacheDir, "org/mod-b/wharfdata-1.0.kryo");
+        MrmKryoMarshallerImpl legacyMarshaller = new MrmKryoMarshallerImpl();
+        legacyMarshaller.save(mrm, legacyA);
+        legacyMarshaller.save(mrm, legacyB);
+
+        MrmKryoStoreMarshallerImpl marshaller = new MrmKryoStoreMarshallerImpl(cacheDir);
+        try {
+            // Lazy import on read
+            ModuleRevisionMetadata read = marshaller.getModuleRevisionMetadata(legacyA);
+            Assert.assertEquals("12345", read.latestResolvedTime);
+            Assert.assertFalse(legacyA.exists());
+            Assert.assertEquals("1.0", marshaller.getModuleRevisionMetadata(legacyA).latestResolvedRevision);
+            // Bulk import
+            Assert.assertEquals(1, marshaller.migrateAll());
+            Assert.assertFalse(legacyB.exists());
+            Assert.assertEquals("12345", marshaller.getModuleRevisionMetadata(legacyB).latestResolvedTime);
+            Assert.assertTrue(new File(cacheDir, MrmKryoStoreMarshallerImpl.STORE_FILE_NAME).exists());
+        } finally {
+            marshaller.close();
+        }
+    }
+}
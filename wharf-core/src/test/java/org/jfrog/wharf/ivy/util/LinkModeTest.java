@@ -0,0 +1,104 @@
+/*
+ *
+ *  Copyright (C) 2010 JFrog Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * /
+ */
+
+package org.jfrog.wharf.ivy.util;
+
+import org.apache.ivy.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LinkModeTest {
+
+    private File dir;
+    private File storageFile;
+    private File cacheFile;
+
+    @Before
+    public void createStorageFile() throws Exception {
+        dir = new File("build/test/links").getAbsoluteFile();
+        FileUtil.forceDelete(dir);
+        storageFile = new File(dir, "filestore/abc/abcdef");
+        storageFile.getParentFile().mkdirs();
+        FileUtil.copy(new ByteArrayInputStream("content".getBytes("UTF-8")), storageFile, null);
+        cacheFile = new File(dir, "org/mod/jars/mod-1.0.jar");
+        cacheFile.getParentFile().mkdirs();
+        FileUtil.copy(new ByteArrayInputStream("old content".getBytes("UTF-8")), cacheFile, null);
+    }
+
+    @After
+    public void deleteDir() {
+        FileUtil.forceDelete(dir);
+    }
+
+    @Test
+    public void hardLink() throws Exception {
+        LinkMode.HARDLINK.link(storageFile, cacheFile);
+        assertEquals("content", read(cacheFile));
+        assertFalse(isSymbolicLink(cacheFile));
+        storageFile.delete();
+        assertEquals("content", read(cacheFile));
+    }
+
+    @Test
+    public void failedLinkOnlyFallsBackOnce() throws Exception {
+        // A hard link to a missing file fails, this link falls back to a symbolic one
+        LinkMode.HARDLINK.link(new File(dir, "filestore/abc/missing"), cacheFile);
+        LinkMode.HARDLINK.link(storageFile, cacheFile);
+        assertEquals("content", read(cacheFile));
+        assertFalse(isSymbolicLink(cacheFile));
+    }
+
+    @Test
+    public void symbolicLink() throws Exception {
+        LinkMode.SYMLINK.link(storageFile, cacheFile);
+        assertEquals("content", read(cacheFile));
+        assertTrue(isSymbolicLink(cacheFile));
+        // Dangling links are replaced as well
+        storageFile.delete();
+        FileUtil.copy(new ByteArrayInputStream("new content".getBytes("UTF-8")), storageFile, null);
+        LinkMode.SYMLINK.link(storageFile, cacheFile);
+        assertEquals("new content", read(cacheFile));
+    }
+
+    @Test
+    public void copy() throws Exception {
+        storageFile.setLastModified(100000L);
+        LinkMode.COPY.link(storageFile, cacheFile);
+        assertEquals("content", read(cacheFile));
+        assertFalse(isSymbolicLink(cacheFile));
+        assertEquals(storageFile.lastModified(), cacheFile.lastModified());
+    }
+
+    private boolean isSymbolicLink(File file) throws Exception {
+        return !file.getCanonicalFile().equals(new File(file.getParentFile().getCanonicalFile(), file.getName()));
+    }
+
+    private String read(File file) throws Exception {
+        return FileUtil.readEntirely(new BufferedReader(new FileReader(file))).trim();
+    }
+}